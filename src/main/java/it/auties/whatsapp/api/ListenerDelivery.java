@@ -0,0 +1,59 @@
+package it.auties.whatsapp.api;
+
+import it.auties.whatsapp.util.Validate;
+
+/**
+ * The strategy used to deliver events to listeners
+ *
+ * @param ordered        whether each listener receives its events one at a time, in the order they were fired
+ * @param capacity       the maximum number of events that can wait to be delivered to a listener, only used if the delivery is ordered
+ * @param overflowPolicy what to do when an event is fired for a listener whose queue is full, only used if the delivery is ordered
+ */
+public record ListenerDelivery(boolean ordered, int capacity, OverflowPolicy overflowPolicy) {
+    private static final ListenerDelivery CONCURRENT = new ListenerDelivery(false, Integer.MAX_VALUE, OverflowPolicy.BLOCK);
+
+    public ListenerDelivery {
+        Validate.isTrue(capacity > 0, "Invalid capacity: %s", capacity);
+        Validate.isTrue(overflowPolicy != null, "Missing overflow policy");
+    }
+
+    /**
+     * Every event is delivered as soon as it's fired, so a listener can receive more events at the same time and in any order
+     * This is the default setting
+     */
+    public static ListenerDelivery concurrent() {
+        return CONCURRENT;
+    }
+
+    /**
+     * Events are queued for each listener and delivered to it one at a time, in the order they were fired
+     * A slow listener only delays its own events, and its queue never grows past the provided capacity
+     *
+     * @param capacity       the maximum number of events that can wait to be delivered to a listener
+     * @param overflowPolicy what to do when the queue of a listener is full
+     */
+    public static ListenerDelivery ordered(int capacity, OverflowPolicy overflowPolicy) {
+        return new ListenerDelivery(true, capacity, overflowPolicy);
+    }
+
+    /**
+     * The constants of this enumerated type describe what happens when an event is fired for a listener whose queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * The thread that fires the event waits until there is room in the queue, which slows down the session to the pace of its slowest listener
+         */
+        BLOCK,
+
+        /**
+         * The oldest event in the queue is discarded to make room for the new one
+         */
+        DROP_OLDEST,
+
+        /**
+         * A presence update replaces the one that is still queued for the same contact in the same chat, if any, so that only the latest one is delivered
+         * Other events wait until there is room in the queue, like with {@link #BLOCK}
+         */
+        COALESCE_PRESENCE
+    }
+}
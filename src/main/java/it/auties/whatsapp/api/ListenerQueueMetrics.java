@@ -0,0 +1,16 @@
+package it.auties.whatsapp.api;
+
+/**
+ * A snapshot of the queue of events that are waiting to be delivered to a listener
+ * Queues are only used if the delivery of events is {@link ListenerDelivery#ordered(int, ListenerDelivery.OverflowPolicy) ordered}
+ *
+ * @param depth      the number of events that are waiting to be delivered
+ * @param peakDepth  the highest number of events that were waiting to be delivered at the same time
+ * @param capacity   the maximum number of events that can wait to be delivered
+ * @param delivered  the number of events that were delivered
+ * @param dropped    the number of events that were discarded because the queue was full
+ * @param coalesced  the number of presence updates that were replaced by a newer one before being delivered
+ */
+public record ListenerQueueMetrics(int depth, int peakDepth, int capacity, long delivered, long dropped, long coalesced) {
+
+}
@@ -122,6 +122,7 @@ public final class MobileOptionsBuilder extends OptionsBuilder<MobileOptionsBuil
                 .keys(keys)
                 .errorHandler(errorHandler)
                 .socketExecutor(socketExecutor)
+                .runtime(runtime)
                 .build());
     }
 
@@ -132,7 +133,7 @@ public final class MobileOptionsBuilder extends OptionsBuilder<MobileOptionsBuil
      * @return a non-null selector
      */
     public Unregistered unregistered() {
-        return new Unregistered(store, keys, errorHandler, socketExecutor);
+        return new Unregistered(store, keys, errorHandler, socketExecutor, runtime);
     }
 
     /**
@@ -142,6 +143,6 @@ public final class MobileOptionsBuilder extends OptionsBuilder<MobileOptionsBuil
      * @return a non-null selector
      */
     public Unverified unverified() {
-        return new Unverified(store, keys, errorHandler, socketExecutor);
+        return new Unverified(store, keys, errorHandler, socketExecutor, runtime);
     }
 }
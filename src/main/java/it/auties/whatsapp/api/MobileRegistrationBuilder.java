@@ -22,15 +22,17 @@ public sealed class MobileRegistrationBuilder<T extends MobileRegistrationBuilde
     final Keys keys;
     final ErrorHandler errorHandler;
     final Executor socketExecutor;
+    final WhatsappRuntime runtime;
     Whatsapp whatsapp;
     AsyncVerificationCodeSupplier verificationCodeSupplier;
     AsyncCaptchaCodeSupplier verificationCaptchaSupplier;
 
-    MobileRegistrationBuilder(Store store, Keys keys, ErrorHandler errorHandler, Executor socketExecutor) {
+    MobileRegistrationBuilder(Store store, Keys keys, ErrorHandler errorHandler, Executor socketExecutor, WhatsappRuntime runtime) {
         this.store = store;
         this.keys = keys;
         this.errorHandler = errorHandler;
         this.socketExecutor = socketExecutor;
+        this.runtime = runtime;
     }
 
     /**
@@ -89,14 +91,15 @@ public sealed class MobileRegistrationBuilder<T extends MobileRegistrationBuilde
                 .keys(keys)
                 .errorHandler(errorHandler)
                 .socketExecutor(socketExecutor)
+                .runtime(runtime)
                 .build();
     }
 
     public final static class Unregistered extends MobileRegistrationBuilder<Unregistered> {
         private VerificationCodeMethod verificationCodeMethod;
 
-        Unregistered(Store store, Keys keys, ErrorHandler errorHandler, Executor socketExecutor) {
-            super(store, keys, errorHandler, socketExecutor);
+        Unregistered(Store store, Keys keys, ErrorHandler errorHandler, Executor socketExecutor, WhatsappRuntime runtime) {
+            super(store, keys, errorHandler, socketExecutor, runtime);
             this.verificationCodeMethod = VerificationCodeMethod.SMS;
         }
 
@@ -148,16 +151,16 @@ public sealed class MobileRegistrationBuilder<T extends MobileRegistrationBuilde
             store.setPhoneNumber(number);
             if (!keys.registered()) {
                 return RegistrationHelper.requestVerificationCode(store, keys, verificationCodeMethod)
-                        .thenApply(ignored -> new Unverified(store, keys, errorHandler, socketExecutor));
+                        .thenApply(ignored -> new Unverified(store, keys, errorHandler, socketExecutor, runtime));
             }
 
-            return CompletableFuture.completedFuture(new Unverified(store, keys, errorHandler, socketExecutor));
+            return CompletableFuture.completedFuture(new Unverified(store, keys, errorHandler, socketExecutor, runtime));
         }
     }
 
     public final static class Unverified extends MobileRegistrationBuilder<Unverified> {
-        Unverified(Store store, Keys keys, ErrorHandler errorHandler, Executor socketExecutor) {
-            super(store, keys, errorHandler, socketExecutor);
+        Unverified(Store store, Keys keys, ErrorHandler errorHandler, Executor socketExecutor, WhatsappRuntime runtime) {
+            super(store, keys, errorHandler, socketExecutor, runtime);
         }
 
         /**
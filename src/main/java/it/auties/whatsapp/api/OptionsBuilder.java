@@ -15,6 +15,7 @@ public sealed class OptionsBuilder<T extends OptionsBuilder<T>> permits MobileOp
     Keys keys;
     ErrorHandler errorHandler;
     Executor socketExecutor;
+    WhatsappRuntime runtime;
 
     OptionsBuilder(Store store, Keys keys) {
         this.store = store;
@@ -60,6 +61,19 @@ public sealed class OptionsBuilder<T extends OptionsBuilder<T>> permits MobileOp
         return (T) this;
     }
 
+    /**
+     * Sets how events are delivered to listeners
+     * By default, events are delivered concurrently as soon as they are fired
+     * Use {@link ListenerDelivery#ordered(int, ListenerDelivery.OverflowPolicy)} if your listeners depend on the order of events, or if a slow listener shouldn't hold an unbounded number of threads
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T listenerDelivery(ListenerDelivery listenerDelivery) {
+        store.setListenerDelivery(listenerDelivery);
+        return (T) this;
+    }
+
     /**
      * Sets whether a preview should be automatically generated and attached to text messages that contain links
      * By default, it's enabled with inference
@@ -95,6 +109,31 @@ public sealed class OptionsBuilder<T extends OptionsBuilder<T>> permits MobileOp
         return (T) this;
     }
 
+    /**
+     * Sets the runtime that supplies the threads and the timer used by the session
+     * Sessions that share a runtime share its threads, which is useful to host many accounts in the same JVM
+     * By default, {@link WhatsappRuntime#shared()} is used
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T runtime(WhatsappRuntime runtime) {
+        this.runtime = runtime;
+        return (T) this;
+    }
+
+    /**
+     * Sets whether the code that sends a request to Whatsapp should be recorded, so that it's included in the exception thrown if the request fails or times out
+     * This is useful to debug failed requests, but recording it is expensive, so it's disabled by default
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T traceRequests(boolean traceRequests) {
+        store.setTraceRequests(traceRequests);
+        return (T) this;
+    }
+
     /**
      * Sets the release channel
      *
@@ -134,8 +134,8 @@ public class Whatsapp {
         return SocketHandler.isConnected(alias);
     }
 
-    protected Whatsapp(Store store, Keys keys, ErrorHandler errorHandler, WebVerificationSupport webVerificationSupport, Executor socketExecutor) {
-        this.socketHandler = new SocketHandler(this, store, keys, errorHandler, webVerificationSupport, socketExecutor);
+    protected Whatsapp(Store store, Keys keys, ErrorHandler errorHandler, WebVerificationSupport webVerificationSupport, Executor socketExecutor, WhatsappRuntime runtime) {
+        this.socketHandler = new SocketHandler(this, store, keys, errorHandler, webVerificationSupport, socketExecutor, runtime);
         store.addListener((OnDisconnected) (reason) -> {
             if (reason != DisconnectReason.RECONNECTING) {
                 removeInstanceByUuid(store.uuid());
@@ -216,6 +216,16 @@ public class Whatsapp {
         return socketHandler.store();
     }
 
+    /**
+     * Returns the metrics of the queues of events that are waiting to be delivered to each listener
+     * Queues are only used if the delivery of events is {@link ListenerDelivery#ordered(int, ListenerDelivery.OverflowPolicy) ordered}
+     *
+     * @return a non-null immutable map
+     */
+    public Map<Listener, ListenerQueueMetrics> listenerQueueMetrics() {
+        return socketHandler.listenerQueueMetrics();
+    }
+
     /**
      * Disconnects from Whatsapp Web's WebSocket if a previous connection exists
      *
@@ -353,6 +363,21 @@ public class Whatsapp {
         return socketHandler.subscribeToPresence(jid);
     }
 
+    /**
+     * Establishes the Signal sessions needed to message every device of the provided contacts.
+     * Sessions that are missing are queried in as few requests as possible, so it's recommended to call this method before sending messages to many new contacts.
+     *
+     * @param contacts the non-null contacts whose sessions should be prepared
+     * @return a CompletableFuture
+     */
+    public CompletableFuture<Whatsapp> prepareSessions(Collection<? extends JidProvider> contacts) {
+        var jids = contacts.stream()
+                .map(JidProvider::toJid)
+                .toList();
+        return socketHandler.querySessions(jids)
+                .thenApply(ignored -> this);
+    }
+
     /**
      * Remove a reaction from a message
      *
@@ -386,7 +411,7 @@ public class Whatsapp {
      */
     public CompletableFuture<? extends MessageInfo> sendReaction(MessageInfo message, String reaction) {
         var key = new ChatMessageKeyBuilder()
-                .id(ChatMessageKey.randomId())
+                .id(store().randomId())
                 .chatJid(message.parentJid())
                 .senderJid(message.senderJid())
                 .fromMe(Objects.equals(message.senderJid().withoutDevice(), jidOrThrowError().withoutDevice()))
@@ -442,7 +467,7 @@ public class Whatsapp {
                     .orElse(0);
             var info = new NewsletterMessageInfo(
                     newsletter.get(),
-                    ChatMessageKey.randomId(),
+                    store().randomId(),
                     oldServerId + 1,
                     Clock.nowSeconds(),
                     null,
@@ -454,7 +479,7 @@ public class Whatsapp {
         }
 
         var key = new ChatMessageKeyBuilder()
-                .id(ChatMessageKey.randomId())
+                .id(store().randomId())
                 .chatJid(recipient.toJid())
                 .fromMe(true)
                 .senderJid(jidOrThrowError())
@@ -614,6 +639,7 @@ public class Whatsapp {
             }
         });
         info.setStatus(MessageStatus.READ);
+        store().markUpdated(info);
         return CompletableFuture.completedFuture(info);
     }
 
@@ -658,9 +684,8 @@ public class Whatsapp {
                 .map(JidProvider::toJid)
                 .toList();
         var contactNodes = jids.stream()
-                .map(jid -> Node.of("user", Node.of("contact", jid.toPhoneNumber())))
-                .toArray(Node[]::new);
-        return socketHandler.sendInteractiveQuery(Node.of("contact"), contactNodes)
+                .collect(Collectors.toMap(Function.identity(), jid -> Node.of("user", Node.of("contact", jid.toPhoneNumber())), (first, second) -> first, LinkedHashMap::new));
+        return socketHandler.sendUsyncQuery("interactive", Node.of("contact"), contactNodes)
                 .thenApplyAsync(result -> parseHasWhatsappResponse(jids, result));
     }
 
@@ -708,7 +733,7 @@ public class Whatsapp {
     }
 
     private CompletableFuture<Optional<String>> queryNameFromServer(JidProvider contactJid) {
-        var query = new ContactStatusRequest(ChatMessageKey.randomId(), List.of(new ContactStatusRequest.Variable(contactJid.toJid().user(), List.of("STATUS"))));
+        var query = new ContactStatusRequest(store().randomId(), List.of(new ContactStatusRequest.Variable(contactJid.toJid().user(), List.of("STATUS"))));
         return socketHandler.sendQuery("get", "w:mex", Node.of("query", Json.writeValueAsBytes(query)))
                 .thenApplyAsync(this::parseNameResponse);
     }
@@ -1017,7 +1042,7 @@ public class Whatsapp {
                 .map(content -> Node.of("body", content.getBytes(StandardCharsets.UTF_8)))
                 .orElse(null);
         var attributes = Attributes.of()
-                .put("id", ChatMessageKey.randomId(), () -> description != null)
+                .put("id", store().randomId(), () -> description != null)
                 .put("delete", true, () -> description == null)
                 .put("prev", descriptionId, () -> descriptionId != null)
                 .toMap();
@@ -1372,6 +1397,7 @@ public class Whatsapp {
         }
         socketHandler.sendReceipt(info.chatJid(), info.senderJid(), List.of(info.id()), "played");
         info.setStatus(MessageStatus.PLAYED);
+        store().markUpdated(info);
         return CompletableFuture.completedFuture(info);
     }
 
@@ -1425,6 +1451,7 @@ public class Whatsapp {
         if (store().clientType() == ClientType.MOBILE) {
             // TODO: Send notification to companions
             info.setStarred(star);
+            store().markUpdated(info);
             return CompletableFuture.completedFuture(info);
         }
 
@@ -1535,7 +1562,7 @@ public class Whatsapp {
                     .build();
             var sender = messageInfo.chatJid().hasServer(JidServer.GROUP) ? jidOrThrowError() : null;
             var key = new ChatMessageKeyBuilder()
-                    .id(ChatMessageKey.randomId())
+                    .id(store().randomId())
                     .chatJid(messageInfo.chatJid())
                     .fromMe(true)
                     .senderJid(sender)
@@ -2433,7 +2460,7 @@ public class Whatsapp {
     }
 
     private CompletableFuture<Call> sendCallMessage(JidProvider provider) {
-        var callId = ChatMessageKey.randomId();
+        var callId = store().randomId();
         var audioStream = Node.of("audio", Map.of("rate", 8000, "enc", "opus"));
         var audioStreamTwo = Node.of("audio", Map.of("rate", 16000, "enc", "opus"));
         var net = Node.of("net", Map.of("medium", 3));
@@ -2594,7 +2621,7 @@ public class Whatsapp {
         var input = new CreateNewsletterRequest.NewsletterInput(name, description, picture != null ? Base64.getEncoder().encodeToString(picture) : null);
         var variable = new CreateNewsletterRequest.Variable(input);
         var request = new CreateNewsletterRequest(variable);
-        return socketHandler.sendQuery("set", "tos", Node.of("notice", Map.of("stage", 5, "id", ChatMessageKey.randomId())))
+        return socketHandler.sendQuery("set", "tos", Node.of("notice", Map.of("stage", 5, "id", store().randomId())))
                 .thenComposeAsync(ignored -> socketHandler.sendQuery("get", "w:mex", Node.of("query", Map.of("query_id", "6234210096708695"), Json.writeValueAsBytes(request))))
                 .thenApplyAsync(this::parseNewsletterCreation)
                 .thenComposeAsync(this::onNewsletterCreation);
@@ -0,0 +1,130 @@
+package it.auties.whatsapp.api;
+
+import it.auties.whatsapp.util.HashedWheelTimer;
+import it.auties.whatsapp.util.Validate;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that run the background work of {@link Whatsapp} instances: a pool of workers, a pool of threads for listeners, and a timer for pings, refreshes and timeouts.
+ * A runtime can be shared by any number of instances through {@link OptionsBuilder#runtime(WhatsappRuntime)}, so that hosting many accounts in the same JVM doesn't multiply the threads and timers in use.
+ * Threads are created on demand and are released when they are idle, so an idle runtime doesn't prevent the JVM from exiting.
+ */
+public final class WhatsappRuntime implements AutoCloseable {
+    private static final Duration TIMER_TICK = Duration.ofMillis(100);
+    private static final int TIMER_TICKS_PER_WHEEL = 512;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final int SHARED_LISTENER_THREADS_PER_PROCESSOR = 4;
+
+    private static final AtomicInteger RUNTIMES = new AtomicInteger();
+
+    private static volatile WhatsappRuntime shared;
+
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor listeners;
+    private final HashedWheelTimer timer;
+
+    private WhatsappRuntime(String name, ThreadPoolExecutor workers, ThreadPoolExecutor listeners) {
+        this.workers = workers;
+        this.listeners = listeners;
+        this.timer = new HashedWheelTimer(name + "-timer", TIMER_TICK, TIMER_TICKS_PER_WHEEL, workers);
+    }
+
+    /**
+     * Returns the runtime that is used by every instance that wasn't configured with a different one
+     * Its workers are bounded by the number of available processors, and its listeners by a few times that number, as they can block
+     * Work that can't be run immediately is queued until a thread is available
+     *
+     * @return a non-null runtime
+     */
+    public static WhatsappRuntime shared() {
+        var result = shared;
+        if (result != null) {
+            return result;
+        }
+
+        synchronized (WhatsappRuntime.class) {
+            if (shared == null) {
+                var name = "whatsapp-shared";
+                var workers = fixedPool(name + "-worker", Math.max(2, Runtime.getRuntime().availableProcessors()));
+                var listeners = fixedPool(name + "-listener", Math.max(8, Runtime.getRuntime().availableProcessors() * SHARED_LISTENER_THREADS_PER_PROCESSOR));
+                shared = new WhatsappRuntime(name, workers, listeners);
+            }
+
+            return shared;
+        }
+    }
+
+    /**
+     * Creates a runtime with a fixed number of threads
+     * Listener callbacks that can't be run immediately are queued until a thread is available
+     *
+     * @param workerThreads   the number of threads that run background work, including timers
+     * @param listenerThreads the number of threads that run listener callbacks
+     * @return a non-null runtime
+     */
+    public static WhatsappRuntime of(int workerThreads, int listenerThreads) {
+        Validate.isTrue(workerThreads > 0, "Invalid number of worker threads: %s", workerThreads);
+        Validate.isTrue(listenerThreads > 0, "Invalid number of listener threads: %s", listenerThreads);
+        var name = "whatsapp-runtime-" + RUNTIMES.incrementAndGet();
+        return new WhatsappRuntime(name, fixedPool(name + "-worker", workerThreads), fixedPool(name + "-listener", listenerThreads));
+    }
+
+    private static ThreadPoolExecutor fixedPool(String name, int threads) {
+        var executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        var counter = new AtomicInteger();
+        return runnable -> Thread.ofPlatform()
+                .name(name + "-" + counter.incrementAndGet())
+                .unstarted(runnable);
+    }
+
+    /**
+     * Returns the executor that runs background work
+     *
+     * @return a non-null executor
+     */
+    public Executor workers() {
+        return workers;
+    }
+
+    /**
+     * Returns the executor that runs listener callbacks
+     *
+     * @return a non-null executor
+     */
+    public Executor listeners() {
+        return listeners;
+    }
+
+    /**
+     * Returns the timer used for pings, refreshes and timeouts
+     *
+     * @return a non-null timer
+     */
+    public HashedWheelTimer timer() {
+        return timer;
+    }
+
+    /**
+     * Stops the threads of this runtime and cancels the tasks of its timer
+     * Instances that use this runtime should be disconnected first
+     * Closing the shared runtime does nothing, as it can be used by any instance at any time
+     */
+    @Override
+    public void close() {
+        if (this == shared) {
+            return;
+        }
+
+        timer.shutdown();
+        workers.shutdownNow();
+        listeners.shutdownNow();
+    }
+}
@@ -2,47 +2,68 @@ package it.auties.whatsapp.binary;
 
 import it.auties.whatsapp.model.jid.Jid;
 import it.auties.whatsapp.model.jid.JidServer;
+import it.auties.whatsapp.model.node.Attributes;
 import it.auties.whatsapp.model.node.Node;
 import it.auties.whatsapp.util.BytesHelper;
 import it.auties.whatsapp.util.Validate;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static it.auties.whatsapp.binary.BinaryTag.*;
 
 public final class BinaryDecoder implements AutoCloseable {
-    private final DataInputStream dataInputStream;
+    private final ByteBuffer buffer;
+    private final boolean lazy;
     private boolean closed;
+
     public BinaryDecoder(byte[] buffer) {
+        this(buffer, false);
+    }
+
+    /**
+     * Constructs a decoder for a deciphered frame
+     *
+     * @param buffer the non-null frame, prefixed by its flags
+     * @param lazy   whether the children of each node should only be decoded when they are first accessed
+     */
+    public BinaryDecoder(byte[] buffer, boolean lazy) {
         var token = buffer[0] & 2;
         if (token == 0) {
-            this.dataInputStream = new DataInputStream(new ByteArrayInputStream(buffer, 1, buffer.length - 1));
+            this.buffer = ByteBuffer.wrap(buffer, 1, buffer.length - 1).slice();
         }else {
-            this.dataInputStream = new DataInputStream(new ByteArrayInputStream(BytesHelper.decompress(buffer, 1, buffer.length - 1)));
+            this.buffer = ByteBuffer.wrap(BytesHelper.decompress(buffer, 1, buffer.length - 1));
         }
+        this.lazy = lazy;
+    }
+
+    BinaryDecoder(ByteBuffer buffer, boolean lazy) {
+        this.buffer = buffer;
+        this.lazy = lazy;
     }
-    
-    public Node decode() throws IOException {
+
+    public Node decode() {
         if(closed) {
-            throw new IllegalStateException("The encoder is closed");
+            throw new IllegalStateException("The decoder is closed");
         }
 
-        var token = dataInputStream.readUnsignedByte();
+        var token = readUnsignedByte();
         var size = readSize(token);
         Validate.isTrue(size != 0, "Cannot decode node with empty body");
         var description = readString();
         var attrs = readAttributes(size);
-        return size % 2 != 0 ? Node.of(description, attrs) : Node.of(description, attrs, read(false));
+        if (size % 2 != 0) {
+            return new Node(description, attrs, null);
+        }
+
+        var content = read(false);
+        return content instanceof LazyNodeList ? new Node(description, attrs, content) : Node.of(description, attrs, content);
     }
 
-    private String readString() throws IOException {
+    private String readString() {
         var read = read(true);
         if (read instanceof String string) {
             return string;
@@ -52,113 +73,189 @@ public final class BinaryDecoder implements AutoCloseable {
                 .formatted(read, read == null ? null : read.getClass().getName()));
     }
 
-    private List<Node> readList(int size) throws IOException {
-        var results = new ArrayList<Node>();
+    private Object readList(int size) {
+        if (!lazy) {
+            return decodeList(size);
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        var start = buffer.position();
+        for (var index = 0; index < size; index++) {
+            skipNode();
+        }
+
+        return new LazyNodeList(buffer.slice(start, buffer.position() - start), size);
+    }
+
+    List<Node> decodeList(int size) {
+        var results = new ArrayList<Node>(size);
         for (int index = 0; index < size; index++) {
             results.add(decode());
         }
-        
+
         return results;
     }
 
-    private String readString(List<Character> permitted, int start, int end) throws IOException {
+    private String readString(List<Character> permitted, int start, int end) {
         var string = new char[2 * end - start];
         for(var index = 0; index < string.length - 1; index += 2) {
             readChar(permitted, string, index);
         }
         if (start != 0) {
-            string[string.length - 1] = permitted.get(dataInputStream.readUnsignedByte() >>> 4);
+            string[string.length - 1] = permitted.get(readUnsignedByte() >>> 4);
         }
 
         return String.valueOf(string);
     }
 
-    private void readChar(List<Character> permitted, char[] string, int index) throws IOException {
-        var token = dataInputStream.readUnsignedByte();
+    private void readChar(List<Character> permitted, char[] string, int index) {
+        var token = readUnsignedByte();
         string[index] = permitted.get(token >>> 4);
         string[index + 1] = permitted.get(15 & token);
     }
 
-    private Object read(boolean parseBytes) throws IOException {
-        var tag = dataInputStream.readUnsignedByte();
+    private Object read(boolean parseBytes) {
+        var tag = readUnsignedByte();
         return switch (of(tag)) {
             case LIST_EMPTY -> null;
             case COMPANION_JID -> readCompanionJid();
-            case LIST_8 -> readList(dataInputStream.readUnsignedByte());
-            case LIST_16 -> readList(dataInputStream.readUnsignedShort());
+            case LIST_8 -> readList(readUnsignedByte());
+            case LIST_16 -> readList(readUnsignedShort());
             case JID_PAIR -> readJidPair();
             case HEX_8 -> readHexString();
-            case BINARY_8 -> readString(dataInputStream.readUnsignedByte(), parseBytes);
+            case BINARY_8 -> readString(readUnsignedByte(), parseBytes);
             case BINARY_20 -> readString(readString20Length(), parseBytes);
-            case BINARY_32 -> readString(dataInputStream.readUnsignedShort(), parseBytes);
+            case BINARY_32 -> readString(readUnsignedShort(), parseBytes);
             case NIBBLE_8 -> readNibble();
             default -> readStringFromToken(tag);
         };
     }
 
-    private int readString20Length() throws IOException {
-        return ((15 & dataInputStream.readUnsignedByte()) << 16)
-                + ((dataInputStream.readUnsignedByte()) << 8)
-                + (dataInputStream.readUnsignedByte());
+    private int readString20Length() {
+        return ((15 & readUnsignedByte()) << 16)
+                + ((readUnsignedByte()) << 8)
+                + (readUnsignedByte());
     }
 
-    private String readStringFromToken(int token) throws IOException {
+    private String readStringFromToken(int token) {
         if (token < DICTIONARY_0.data() || token > DICTIONARY_3.data()) {
             return BinaryTokens.SINGLE_BYTE.get(token - 1);
         }
 
         var delta = (BinaryTokens.DOUBLE_BYTE.size() / 4) * (token - DICTIONARY_0.data());
-        return BinaryTokens.DOUBLE_BYTE.get(dataInputStream.readUnsignedByte() + delta);
+        return BinaryTokens.DOUBLE_BYTE.get(readUnsignedByte() + delta);
     }
 
-    private String readNibble() throws IOException {
-        var number = dataInputStream.readUnsignedByte();
+    private String readNibble() {
+        var number = readUnsignedByte();
         return readString(BinaryTokens.NUMBERS, number >>> 7, 127 & number);
     }
 
-    private Object readString(int size, boolean parseBytes) throws IOException {
+    private Object readString(int size, boolean parseBytes) {
+        if (parseBytes) {
+            var result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), size, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + size);
+            return result;
+        }
+
         var data = new byte[size];
-        dataInputStream.readFully(data);
-        return parseBytes ? new String(data, StandardCharsets.UTF_8) : data;
+        buffer.get(data);
+        return data;
     }
 
-    private String readHexString() throws IOException {
-        var number = dataInputStream.readUnsignedByte();
+    private String readHexString() {
+        var number = readUnsignedByte();
         return readString(BinaryTokens.HEX, number >>> 7, 127 & number);
     }
 
-    private Jid readJidPair() throws IOException {
+    private Jid readJidPair() {
         return switch (read(true)) {
-            case String encoded -> Jid.of(encoded, JidServer.of(readString()));
+            case String encoded -> Jid.ofInterned(encoded, JidServer.of(readString()));
             case null -> Jid.ofServer(JidServer.of(readString()));
             default -> throw new RuntimeException("Invalid jid type");
         };
     }
 
-    private Jid readCompanionJid() throws IOException {
-        var agent = dataInputStream.readUnsignedByte();
-        var device = dataInputStream.readUnsignedByte();
+    private Jid readCompanionJid() {
+        var agent = readUnsignedByte();
+        var device = readUnsignedByte();
         var user = readString();
-        return Jid.ofDevice(user, device, agent);
+        return new Jid(user, JidServer.WHATSAPP, device, agent);
     }
 
-    private int readSize(int token) throws IOException {
-        return LIST_8.contentEquals(token) ? dataInputStream.readUnsignedByte() : dataInputStream.readUnsignedShort();
+    private int readSize(int token) {
+        return LIST_8.contentEquals(token) ? readUnsignedByte() : readUnsignedShort();
     }
 
-    private Map<String, Object> readAttributes(int size) throws IOException {
-        var map = new HashMap<String, Object>();
+    private Attributes readAttributes(int size) {
+        var map = new ConcurrentHashMap<String, Object>(size / 2 + 1);
         for (var pair = size - 1; pair > 1; pair -= 2) {
             var key = readString();
             var value = read(true);
-            map.put(key, value);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return new Attributes(map);
+    }
+
+    private void skipNode() {
+        var size = readSize(readUnsignedByte());
+        Validate.isTrue(size != 0, "Cannot decode node with empty body");
+        for (var index = 0; index < size; index++) {
+            skipValue();
         }
-        return map;
+    }
+
+    private void skipValue() {
+        var tag = readUnsignedByte();
+        switch (of(tag)) {
+            case LIST_EMPTY -> {}
+            case COMPANION_JID -> {
+                skip(2);
+                skipValue();
+            }
+            case LIST_8 -> skipNodes(readUnsignedByte());
+            case LIST_16 -> skipNodes(readUnsignedShort());
+            case JID_PAIR -> {
+                skipValue();
+                skipValue();
+            }
+            case HEX_8, NIBBLE_8 -> skip(127 & readUnsignedByte());
+            case BINARY_8 -> skip(readUnsignedByte());
+            case BINARY_20 -> skip(readString20Length());
+            case BINARY_32 -> skip(readUnsignedShort());
+            default -> {
+                if (tag >= DICTIONARY_0.data() && tag <= DICTIONARY_3.data()) {
+                    skip(1);
+                }
+            }
+        }
+    }
+
+    private void skipNodes(int size) {
+        for (var index = 0; index < size; index++) {
+            skipNode();
+        }
+    }
+
+    private void skip(int length) {
+        buffer.position(buffer.position() + length);
+    }
+
+    private int readUnsignedByte() {
+        return buffer.get() & 255;
+    }
+
+    private int readUnsignedShort() {
+        return buffer.getShort() & 65535;
     }
 
     @Override
-    public void close() throws IOException {
+    public void close() {
         this.closed = true;
-        dataInputStream.close();
     }
 }
@@ -3,10 +3,9 @@ package it.auties.whatsapp.binary;
 import it.auties.whatsapp.model.jid.Jid;
 import it.auties.whatsapp.model.node.Node;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
@@ -17,11 +16,15 @@ public final class BinaryEncoder implements AutoCloseable {
     private static final int UNSIGNED_BYTE_MAX_VALUE = 256;
     private static final int UNSIGNED_SHORT_MAX_VALUE = 65536;
     private static final int INT_20_MAX_VALUE = 1048576;
-
-    private final ByteArrayOutputStream byteArrayOutputStream;
-    private final DataOutputStream dataOutputStream;
-    private final List<String> singleByteTokens;
-    private final List<String> doubleByteTokens;
+    private static final int PACKED_MAX_LENGTH = 128;
+    private static final int DEFAULT_BUFFER_SIZE = 256;
+    private static final long NIBBLE_FLAG = 1L << 62;
+    private static final long HEX_FLAG = 1L << 61;
+    private static final long LENGTH_MASK = HEX_FLAG - 1;
+
+    private final BinaryTokensIndex tokensIndex;
+    private byte[] buffer;
+    private int position;
     private boolean closed;
 
     public BinaryEncoder() {
@@ -29,40 +32,66 @@ public final class BinaryEncoder implements AutoCloseable {
     }
 
     public BinaryEncoder(List<String> singleByteTokens, List<String> doubleByteTokens) {
-        this.byteArrayOutputStream = new ByteArrayOutputStream();
-        this.dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-        this.singleByteTokens = singleByteTokens;
-        this.doubleByteTokens = doubleByteTokens;
+        this(new byte[DEFAULT_BUFFER_SIZE], 0, singleByteTokens, doubleByteTokens);
+    }
+
+    /**
+     * Constructs an encoder that writes into an existing buffer, growing it if necessary
+     *
+     * @param buffer the non-null buffer to write into
+     * @param offset the offset at which the encoded node should start
+     */
+    public BinaryEncoder(byte[] buffer, int offset) {
+        this(buffer, offset, BinaryTokens.SINGLE_BYTE, BinaryTokens.DOUBLE_BYTE);
+    }
+
+    private BinaryEncoder(byte[] buffer, int offset, List<String> singleByteTokens, List<String> doubleByteTokens) {
+        this.tokensIndex = BinaryTokensIndex.of(singleByteTokens, doubleByteTokens);
+        this.buffer = buffer;
+        this.position = offset;
     }
 
     public byte[] encode(Node node) throws IOException {
+        var start = position;
+        var end = write(node);
+        return Arrays.copyOfRange(buffer, start, end);
+    }
+
+    /**
+     * Encodes a node into this encoder's buffer without copying it
+     *
+     * @param node the non-null node to encode
+     * @return the position in {@link #buffer()} where the encoded node ends
+     */
+    public int write(Node node) {
         if(closed) {
             throw new IllegalStateException("The encoder is closed");
         }
 
-        dataOutputStream.write(0);
+        writeByte(0);
         writeNode(node);
-        return byteArrayOutputStream.toByteArray();
+        return position;
     }
 
-    private void writeString(String input, BinaryTag token) throws IOException {
-        dataOutputStream.write(token.data());
-        writeStringLength(input);
-        for (int charCode = 0, index = 0; index < input.length(); index++) {
-            var stringCodePoint = Character.codePointAt(input, index);
-            var binaryCodePoint = getStringCodePoint(token, stringCodePoint);
-
-            if (index % 2 != 0) {
-                dataOutputStream.write(charCode |= binaryCodePoint);
-                continue;
-            }
-
-            charCode = binaryCodePoint << 4;
-            if (index != input.length() - 1) {
-                continue;
-            }
+    /**
+     * Returns the buffer used by this encoder, which is a new array if the original one was too small
+     *
+     * @return a non-null byte array
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
 
-            dataOutputStream.write(charCode |= 15);
+    private void writeString(String input, BinaryTag token) {
+        writeByte(token.data());
+        var length = input.length();
+        var packedLength = (length + 1) / 2;
+        writeByte(length % 2 == 1 ? packedLength | 128 : packedLength);
+        ensureCapacity(packedLength);
+        for (var index = 0; index < length; index += 2) {
+            var high = getStringCodePoint(token, input.charAt(index));
+            var low = index + 1 < length ? getStringCodePoint(token, input.charAt(index + 1)) : 15;
+            buffer[position++] = (byte) ((high << 4) | low);
         }
     }
 
@@ -86,92 +115,128 @@ public final class BinaryEncoder implements AutoCloseable {
         throw new IllegalArgumentException("Cannot parse codepoint %s with token %s".formatted(codePoint, token));
     }
 
-    private void writeStringLength(String input) throws IOException {
-        var roundedLength = (int) Math.ceil(input.length() / 2F);
-        if (input.length() % 2 == 1) {
-            dataOutputStream.write(roundedLength | 128);
-            return;
-        }
-
-        dataOutputStream.write(roundedLength);
-    }
-
-    private void writeLong(long input) throws IOException {
+    private void writeLong(long input) {
         if (input < UNSIGNED_BYTE_MAX_VALUE) {
-            dataOutputStream.write(BINARY_8.data());
-            dataOutputStream.write((int) input);
+            writeByte(BINARY_8.data());
+            writeByte((int) input);
             return;
         }
 
         if (input < INT_20_MAX_VALUE) {
-            dataOutputStream.write(BINARY_20.data());
-            dataOutputStream.write((int) ((input >>> 16) & 255));
-            dataOutputStream.write((int) ((input >>> 8) & 255));
-            dataOutputStream.write((int) (255 & input));
+            writeByte(BINARY_20.data());
+            writeByte((int) ((input >>> 16) & 255));
+            writeByte((int) ((input >>> 8) & 255));
+            writeByte((int) (255 & input));
             return;
         }
 
-        dataOutputStream.write(BINARY_32.data());
-        dataOutputStream.writeLong(input);
+        writeByte(BINARY_32.data());
+        ensureCapacity(Long.BYTES);
+        for (var shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (input >>> shift);
+        }
     }
 
-    private void writeString(String input) throws IOException {
+    private void writeString(String input) {
         if (input.isEmpty()) {
-            dataOutputStream.write(BINARY_8.data());
-            dataOutputStream.write(LIST_EMPTY.data());
+            writeByte(BINARY_8.data());
+            writeByte(LIST_EMPTY.data());
             return;
         }
 
-        var tokenIndex = singleByteTokens.indexOf(input);
-        if (tokenIndex != -1) {
-            dataOutputStream.write(tokenIndex + 1);
+        var token = tokensIndex.get(input);
+        if (token != BinaryTokensIndex.MISSING) {
+            writeToken(token);
             return;
         }
 
-        if (writeDoubleByteString(input)) {
-            return;
-        }
-
-        var length = length(input);
-        if (length < 128 && !BinaryTokens.anyMatch(input, BinaryTokens.NUMBERS_REGEX)) {
+        var classification = classify(input);
+        var length = classification & LENGTH_MASK;
+        if (length < PACKED_MAX_LENGTH && (classification & NIBBLE_FLAG) != 0) {
             writeString(input, NIBBLE_8);
             return;
         }
 
-        if (length < 128 && !BinaryTokens.anyMatch(input, BinaryTokens.HEX_REGEX)) {
+        if (length < PACKED_MAX_LENGTH && (classification & HEX_FLAG) != 0) {
             writeString(input, HEX_8);
             return;
         }
 
         writeLong(length);
-        dataOutputStream.write(input.getBytes(StandardCharsets.UTF_8));
+        writeUtf8(input, (int) length);
     }
 
-    private boolean writeDoubleByteString(String input) throws IOException {
-        if (!doubleByteTokens.contains(input)) {
-            return false;
+    /**
+     * Computes in a single pass the utf8 length of a string and whether it can be packed as a nibble or hex string
+     *
+     * @param input the non-empty string to classify
+     * @return the utf8 length of the string, or-ed with {@link #NIBBLE_FLAG} and {@link #HEX_FLAG} if applicable
+     */
+    private long classify(String input) {
+        var nibble = true;
+        var hex = true;
+        var length = 0L;
+        for (var index = 0; index < input.length(); index++) {
+            var character = input.charAt(index);
+            if (character < 0x80) {
+                length++;
+                var digit = character >= '0' && character <= '9';
+                nibble &= digit || character == '-' || character == '.';
+                hex &= digit || (character >= 'A' && character <= 'F');
+                continue;
+            }
+
+            nibble = false;
+            hex = false;
+            if (character < 0x800) {
+                length += 2;
+            } else if (!Character.isSurrogate(character)) {
+                length += 3;
+            } else if (Character.isHighSurrogate(character) && index + 1 < input.length() && Character.isLowSurrogate(input.charAt(index + 1))) {
+                length += 4;
+                index++;
+            } else {
+                length++;
+            }
         }
 
-        var index = doubleByteTokens.indexOf(input);
-        dataOutputStream.write(doubleByteStringTag(index).data());
-        dataOutputStream.write(index % (doubleByteTokens.size() / 4));
-        return true;
+        return length | (nibble ? NIBBLE_FLAG : 0) | (hex ? HEX_FLAG : 0);
     }
 
-    private BinaryTag doubleByteStringTag(int index) {
-        return switch (index / (doubleByteTokens.size() / 4)) {
-            case 0 -> DICTIONARY_0;
-            case 1 -> DICTIONARY_1;
-            case 2 -> DICTIONARY_2;
-            case 3 -> DICTIONARY_3;
-            default -> throw new IllegalArgumentException("Cannot find tag for quadrant %s".formatted(index));
-        };
+    private void writeUtf8(String input, int length) {
+        if (length == input.length()) {
+            ensureCapacity(length);
+            var start = position;
+            for (var index = 0; index < length; index++) {
+                var character = input.charAt(index);
+                if (character >= 0x80) {
+                    position = start;
+                    writeBytes(input.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+
+                buffer[position++] = (byte) character;
+            }
+
+            return;
+        }
+
+        writeBytes(input.getBytes(StandardCharsets.UTF_8));
     }
 
-    private void writeNode(Node input) throws IOException {
+    private void writeToken(int token) {
+        var tag = token >>> 8;
+        if (tag != 0) {
+            writeByte(tag);
+        }
+
+        writeByte(token & 255);
+    }
+
+    private void writeNode(Node input) {
         if (input.description().equals("0")) {
-            dataOutputStream.write(LIST_8.data());
-            dataOutputStream.write(LIST_EMPTY.data());
+            writeByte(LIST_8.data());
+            writeByte(LIST_EMPTY.data());
             return;
         }
 
@@ -183,36 +248,37 @@ public final class BinaryEncoder implements AutoCloseable {
         }
     }
 
-    private void writeAttributes(Node input) throws IOException {
+    private void writeAttributes(Node input) {
         for (var entry : input.attributes().toMap().entrySet()) {
             writeString(entry.getKey());
             write(entry.getValue());
         }
     }
 
-    private void writeInt(int size) throws IOException {
+    private void writeInt(int size) {
         if (size < UNSIGNED_BYTE_MAX_VALUE) {
-            dataOutputStream.write(LIST_8.data());
-            dataOutputStream.write(size);
+            writeByte(LIST_8.data());
+            writeByte(size);
             return;
         }
 
         if (size < UNSIGNED_SHORT_MAX_VALUE) {
-            dataOutputStream.write(LIST_16.data());
-            dataOutputStream.writeShort(size);
+            writeByte(LIST_16.data());
+            writeByte(size >>> 8);
+            writeByte(size);
             return;
         }
 
         throw new IllegalArgumentException("Cannot write int %s: overflow".formatted(size));
     }
 
-    private void write(Object input) throws IOException {
+    private void write(Object input) {
         switch (input) {
-            case null -> dataOutputStream.write(LIST_EMPTY.data());
+            case null -> writeByte(LIST_EMPTY.data());
             case String str -> writeString(str);
             case Boolean bool -> writeString(Boolean.toString(bool));
             case Number number -> writeString(number.toString());
-            case byte[] bytes -> writeBytes(bytes);
+            case byte[] bytes -> writeBinary(bytes);
             case Jid jid -> writeJid(jid);
             case Collection<?> collection -> writeList(collection);
             case Enum<?> serializable -> writeString(Objects.toString(serializable));
@@ -223,7 +289,7 @@ public final class BinaryEncoder implements AutoCloseable {
         }
     }
 
-    private void writeList(Collection<?> collection) throws IOException {
+    private void writeList(Collection<?> collection) {
         writeInt(collection.size());
         for (var entry : collection) {
             if (entry instanceof Node node) {
@@ -232,38 +298,53 @@ public final class BinaryEncoder implements AutoCloseable {
         }
     }
 
-    private void writeBytes(byte[] bytes) throws IOException {
+    private void writeBinary(byte[] bytes) {
         writeLong(bytes.length);
-        dataOutputStream.write(bytes);
+        writeBytes(bytes);
     }
 
-    private void writeJid(Jid jid) throws IOException {
+    private void writeJid(Jid jid) {
         if (jid.isCompanion()) {
-            dataOutputStream.write(COMPANION_JID.data());
-            dataOutputStream.write(jid.agent());
-            dataOutputStream.write(jid.device());
+            writeByte(COMPANION_JID.data());
+            writeByte(jid.agent());
+            writeByte(jid.device());
             writeString(jid.user());
             return;
         }
 
-        dataOutputStream.write(JID_PAIR.data());
+        writeByte(JID_PAIR.data());
         if (jid.user() != null) {
             writeString(jid.user());
             writeString(jid.server().address());
             return;
         }
 
-        dataOutputStream.write(LIST_EMPTY.data());
+        writeByte(LIST_EMPTY.data());
         writeString(jid.server().address());
     }
 
-    private int length(String input) {
-        return input.getBytes(StandardCharsets.UTF_8).length;
+    private void writeByte(int input) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) input;
+    }
+
+    private void writeBytes(byte[] input) {
+        ensureCapacity(input.length);
+        System.arraycopy(input, 0, buffer, position, input.length);
+        position += input.length;
+    }
+
+    private void ensureCapacity(int length) {
+        var required = position + length;
+        if (required <= buffer.length) {
+            return;
+        }
+
+        buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length << 1));
     }
 
     @Override
-    public void close() throws IOException {
+    public void close() {
         this.closed = true;
-        dataOutputStream.close();
     }
 }
@@ -0,0 +1,78 @@
+package it.auties.whatsapp.binary;
+
+import java.util.List;
+
+import static it.auties.whatsapp.binary.BinaryTag.*;
+
+/**
+ * An open-addressing string table that maps every token of a dictionary to its binary encoding.
+ * Each entry is packed as {@code (tag << 8) | index}: single byte tokens have no tag and are written as a single byte,
+ * while double byte tokens are written as their dictionary tag followed by their index in the quadrant.
+ */
+final class BinaryTokensIndex {
+    static final int MISSING = -1;
+
+    private static final BinaryTag[] DICTIONARIES = {DICTIONARY_0, DICTIONARY_1, DICTIONARY_2, DICTIONARY_3};
+    private static final BinaryTokensIndex DEFAULT = new BinaryTokensIndex(BinaryTokens.SINGLE_BYTE, BinaryTokens.DOUBLE_BYTE);
+
+    private final String[] keys;
+    private final int[] values;
+    private final int mask;
+
+    private BinaryTokensIndex(List<String> singleByteTokens, List<String> doubleByteTokens) {
+        var capacity = Integer.highestOneBit(Math.max(singleByteTokens.size() + doubleByteTokens.size(), 1) * 2) << 1;
+        this.keys = new String[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        for (var index = 0; index < singleByteTokens.size(); index++) {
+            put(singleByteTokens.get(index), index + 1);
+        }
+
+        var quadrantSize = doubleByteTokens.size() / DICTIONARIES.length;
+        for (var index = 0; quadrantSize != 0 && index < quadrantSize * DICTIONARIES.length; index++) {
+            var tag = DICTIONARIES[index / quadrantSize];
+            put(doubleByteTokens.get(index), (tag.data() << 8) | (index % quadrantSize));
+        }
+    }
+
+    static BinaryTokensIndex of(List<String> singleByteTokens, List<String> doubleByteTokens) {
+        if (singleByteTokens == BinaryTokens.SINGLE_BYTE && doubleByteTokens == BinaryTokens.DOUBLE_BYTE) {
+            return DEFAULT;
+        }
+
+        return new BinaryTokensIndex(singleByteTokens, doubleByteTokens);
+    }
+
+    private void put(String key, int value) {
+        var slot = slot(key);
+        while (keys[slot] != null) {
+            if (keys[slot].equals(key)) {
+                return;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    int get(String key) {
+        var slot = slot(key);
+        String candidate;
+        while ((candidate = keys[slot]) != null) {
+            if (candidate.equals(key)) {
+                return values[slot];
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return MISSING;
+    }
+
+    private int slot(String key) {
+        var hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
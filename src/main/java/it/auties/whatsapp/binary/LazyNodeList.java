@@ -0,0 +1,51 @@
+package it.auties.whatsapp.binary;
+
+import it.auties.whatsapp.model.node.Node;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of nodes that is decoded from its binary representation only when it's first accessed.
+ * Most inbound stanzas are routed using only their description and attributes, so their children are never decoded.
+ */
+final class LazyNodeList extends AbstractList<Node> implements RandomAccess {
+    private final int size;
+    private ByteBuffer buffer;
+    private volatile List<Node> nodes;
+
+    LazyNodeList(ByteBuffer buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    @Override
+    public Node get(int index) {
+        return nodes().get(index);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private List<Node> nodes() {
+        var result = nodes;
+        if (result != null) {
+            return result;
+        }
+
+        synchronized (this) {
+            if (nodes == null) {
+                try(var decoder = new BinaryDecoder(buffer, true)) {
+                    this.nodes = List.copyOf(decoder.decodeList(size));
+                    this.buffer = null;
+                }
+            }
+
+            return nodes;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package it.auties.whatsapp.controller;
 import it.auties.whatsapp.api.ClientType;
 import it.auties.whatsapp.model.mobile.PhoneNumber;
 import it.auties.whatsapp.util.DefaultControllerSerializer;
+import it.auties.whatsapp.util.LogControllerSerializer;
 
 import java.nio.file.Path;
 import java.util.LinkedList;
@@ -36,6 +37,27 @@ public interface ControllerSerializer {
         return DefaultControllerSerializer.of(baseDirectory);
     }
 
+    /**
+     * Returns a serializer that keeps all the sessions in a single memory-mapped, log-structured file
+     * This implementation is better suited for sessions with many chats
+     *
+     * @return a serializer
+     */
+    static ControllerSerializer toLog() {
+        return LogControllerSerializer.of();
+    }
+
+    /**
+     * Returns a serializer that keeps all the sessions in a single memory-mapped, log-structured file
+     * This implementation is better suited for sessions with many chats
+     *
+     * @param baseDirectory the directory where the file should be saved
+     * @return a serializer
+     */
+    static ControllerSerializer toLog(Path baseDirectory) {
+        return LogControllerSerializer.of(baseDirectory);
+    }
+
     /**
      * Returns all the known IDs
      *
@@ -60,6 +82,18 @@ public interface ControllerSerializer {
      */
     CompletableFuture<Void> serializeKeys(Keys keys, boolean async);
 
+    /**
+     * Persists a change to a single entry of the keys without serializing them again.
+     * Implementations that don't support incremental persistence can ignore this call:
+     * the change will be included the next time the keys are serialized.
+     *
+     * @param keys  the non-null keys that changed
+     * @param entry the non-null change
+     */
+    default void journalKeys(Keys keys, KeysJournalEntry entry) {
+
+    }
+
     /**
      * Serializes the store
      *
@@ -3,6 +3,7 @@ package it.auties.whatsapp.controller;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.crypto.TransportCipher;
 import it.auties.whatsapp.model.companion.CompanionHashState;
 import it.auties.whatsapp.model.jid.Jid;
 import it.auties.whatsapp.model.mobile.PhoneNumber;
@@ -21,10 +22,10 @@ import it.auties.whatsapp.util.BytesHelper;
 import it.auties.whatsapp.util.Clock;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
-import static java.util.Objects.requireNonNullElseGet;
-
 /**
  * This controller holds the cryptographic-related data regarding a WhatsappWeb session
  */
@@ -151,6 +152,18 @@ public final class Keys extends Controller<Keys> {
     @JsonIgnore
     private byte[] writeKey, readKey;
 
+    /**
+     * Session dependent ciphers bound to the write and read keys
+     */
+    @JsonIgnore
+    private TransportCipher writeCipher, readCipher;
+
+    /**
+     * Whether a value that isn't journaled changed since these keys were last serialized
+     */
+    @JsonIgnore
+    private volatile boolean dirty;
+
     @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
     public Keys(UUID uuid, PhoneNumber phoneNumber, ControllerSerializer serializer, ClientType clientType, Collection<String> alias, int registrationId, SignalKeyPair noiseKeyPair, SignalKeyPair ephemeralKeyPair, SignalKeyPair identityKeyPair, SignalKeyPair companionKeyPair, SignalSignedKeyPair signedKeyPair, byte[] signedKeyIndex, Long signedKeyIndexTimestamp, List<SignalPreKeyPair> preKeys, String phoneId, String deviceId, String recoveryToken, SignedDeviceIdentity companionIdentity, Map<SenderKeyName, SenderKeyRecord> senderKeys, Map<Jid, LinkedList<AppStateSyncKey>> appStateKeys, Map<SessionAddress, Session> sessions, Map<Jid, Map<PatchType, CompanionHashState>> hashStates, Map<Jid, Collection<Jid>> groupsPreKeys, boolean registered, boolean businessCertificate, boolean initialAppSync) {
         super(uuid, phoneNumber, serializer, clientType, alias);
@@ -162,21 +175,23 @@ public final class Keys extends Controller<Keys> {
         this.signedKeyPair = signedKeyPair;
         this.signedKeyIndex = signedKeyIndex;
         this.signedKeyIndexTimestamp = signedKeyIndexTimestamp;
-        this.preKeys = preKeys;
+        // Signal operations on different addresses run concurrently, but deserialized keys are backed by collections that aren't thread safe
+        this.preKeys = new CopyOnWriteArrayList<>(preKeys);
         this.phoneId = phoneId;
         this.deviceId = deviceId;
         this.recoveryToken = recoveryToken;
         this.companionIdentity = companionIdentity;
-        this.senderKeys = senderKeys;
+        this.senderKeys = new ConcurrentHashMap<>(senderKeys);
         this.appStateKeys = appStateKeys;
-        this.sessions = sessions;
+        this.sessions = new ConcurrentHashMap<>(sessions);
         this.hashStates = hashStates;
-        this.groupsPreKeys = groupsPreKeys;
+        this.groupsPreKeys = new ConcurrentHashMap<>(groupsPreKeys);
         this.registered = registered;
         this.businessCertificate = businessCertificate;
         this.initialAppSync = initialAppSync;
         this.writeCounter = new AtomicLong();
         this.readCounter = new AtomicLong();
+        this.dirty = true;
     }
 
     /**
@@ -193,6 +208,7 @@ public final class Keys extends Controller<Keys> {
      */
     public void clearReadWriteKey() {
         this.writeKey = null;
+        this.writeCipher = null;
         this.writeCounter.set(0);
         this.readCounter.set(0);
     }
@@ -213,11 +229,19 @@ public final class Keys extends Controller<Keys> {
      * @return a non-null SenderKeyRecord
      */
     public SenderKeyRecord findSenderKeyByName(SenderKeyName name) {
-        return requireNonNullElseGet(senderKeys.get(name), () -> {
-            var record = new SenderKeyRecord();
-            senderKeys.put(name, record);
-            return record;
-        });
+        return senderKeys.computeIfAbsent(name, ignored -> new SenderKeyRecord());
+    }
+
+    /**
+     * Journals the {@link SenderKeyRecord} that matches {@code name} after it was modified in place
+     *
+     * @param name the non-null name of the record
+     */
+    public void updateSenderKey(SenderKeyName name) {
+        var record = senderKeys.get(name);
+        if (record != null) {
+            journal(new KeysJournalEntry.SenderKeyEntry(name, record));
+        }
     }
 
     /**
@@ -307,9 +331,22 @@ public final class Keys extends Controller<Keys> {
      */
     public Keys putSession(SessionAddress address, Session record) {
         sessions.put(address, record);
+        journal(new KeysJournalEntry.SessionEntry(address, record));
         return this;
     }
 
+    /**
+     * Journals the {@link Session} that matches {@code address} after it was modified in place
+     *
+     * @param address the non-null address of the session
+     */
+    public void updateSession(SessionAddress address) {
+        var session = sessions.get(address);
+        if (session != null) {
+            journal(new KeysJournalEntry.SessionEntry(address, session));
+        }
+    }
+
     /**
      * Adds the provided hash state to the known ones
      *
@@ -321,6 +358,7 @@ public final class Keys extends Controller<Keys> {
         var oldData = Objects.requireNonNullElseGet(hashStates.get(device), HashMap<PatchType, CompanionHashState>::new);
         oldData.put(state.name(), state);
         hashStates.put(device, oldData);
+        journal(new KeysJournalEntry.HashStateEntry(device, state));
         return this;
     }
 
@@ -332,7 +370,9 @@ public final class Keys extends Controller<Keys> {
      * @return this
      */
     public Keys addAppKeys(Jid jid, Collection<AppStateSyncKey> keys) {
-        appStateKeys.put(jid, new LinkedList<>(keys));
+        var appKeys = new LinkedList<>(keys);
+        appStateKeys.put(jid, appKeys);
+        journal(new KeysJournalEntry.AppKeysEntry(jid, appKeys));
         return this;
     }
 
@@ -363,6 +403,7 @@ public final class Keys extends Controller<Keys> {
      */
     public Keys addPreKey(SignalPreKeyPair preKey) {
         preKeys.add(preKey);
+        journal(new KeysJournalEntry.PreKeyEntry(preKey));
         return this;
     }
 
@@ -404,6 +445,7 @@ public final class Keys extends Controller<Keys> {
      */
     public Keys companionIdentity(SignedDeviceIdentity companionIdentity) {
         this.companionIdentity = companionIdentity;
+        this.dirty = true;
         return this;
     }
 
@@ -427,26 +469,20 @@ public final class Keys extends Controller<Keys> {
     }
 
     public void addRecipientWithPreKeys(Jid group, Jid recipient) {
-        var preKeys = groupsPreKeys.get(group);
-        if (preKeys != null) {
-            preKeys.add(recipient);
-            return;
-        }
-
-        var newPreKeys = new ArrayList<Jid>();
-        newPreKeys.add(recipient);
-        groupsPreKeys.put(group, newPreKeys);
+        addRecipientsWithPreKeys(group, List.of(recipient));
     }
 
     public void addRecipientsWithPreKeys(Jid group, Collection<Jid> recipients) {
-        var preKeys = groupsPreKeys.get(group);
-        if (preKeys != null) {
-            preKeys.addAll(recipients);
-            return;
-        }
-
-        var newPreKeys = new ArrayList<>(recipients);
-        groupsPreKeys.put(group, newPreKeys);
+        var preKeys = groupsPreKeys.compute(group, (ignored, oldPreKeys) -> {
+            var result = new ArrayList<Jid>();
+            if (oldPreKeys != null) {
+                result.addAll(oldPreKeys);
+            }
+
+            result.addAll(recipients);
+            return List.copyOf(result);
+        });
+        journal(new KeysJournalEntry.GroupPreKeysEntry(group, preKeys));
     }
 
     public boolean hasGroupKeys(Jid group, Jid recipient) {
@@ -454,6 +490,70 @@ public final class Keys extends Controller<Keys> {
         return preKeys != null && preKeys.contains(recipient);
     }
 
+    /**
+     * Applies a journaled change to these keys without journaling it again
+     *
+     * @param entry the non-null change to apply
+     */
+    public void applyJournalEntry(KeysJournalEntry entry) {
+        switch (entry) {
+            case KeysJournalEntry.SessionEntry sessionEntry -> sessions.put(sessionEntry.address(), sessionEntry.session());
+            case KeysJournalEntry.SenderKeyEntry senderKeyEntry -> senderKeys.put(senderKeyEntry.name(), senderKeyEntry.record());
+            case KeysJournalEntry.PreKeyEntry preKeyEntry -> {
+                preKeys.removeIf(preKey -> preKey.id() == preKeyEntry.preKey().id());
+                preKeys.add(preKeyEntry.preKey());
+            }
+            case KeysJournalEntry.HashStateEntry hashStateEntry -> hashStates.computeIfAbsent(hashStateEntry.device(), ignored -> new HashMap<>())
+                    .put(hashStateEntry.state().name(), hashStateEntry.state());
+            case KeysJournalEntry.AppKeysEntry appKeysEntry -> appStateKeys.put(appKeysEntry.jid(), appKeysEntry.keys());
+            case KeysJournalEntry.GroupPreKeysEntry groupPreKeysEntry -> groupsPreKeys.put(groupPreKeysEntry.group(), List.copyOf(groupPreKeysEntry.recipients()));
+        }
+    }
+
+    private void journal(KeysJournalEntry entry) {
+        if (serializer != null) {
+            serializer.journalKeys(this, entry);
+        }
+    }
+
+    /**
+     * Returns whether a value that isn't journaled changed since these keys were last serialized
+     *
+     * @return a boolean
+     */
+    public boolean dirty() {
+        return dirty;
+    }
+
+    public Keys setDirty(boolean dirty) {
+        this.dirty = dirty;
+        return this;
+    }
+
+    @Override
+    public Keys setPhoneNumber(PhoneNumber phoneNumber) {
+        this.dirty = true;
+        return super.setPhoneNumber(phoneNumber);
+    }
+
+    @Override
+    public void addAlias(String entry) {
+        this.dirty = true;
+        super.addAlias(entry);
+    }
+
+    @Override
+    public void removeAlias(String entry) {
+        this.dirty = true;
+        super.removeAlias(entry);
+    }
+
+    @Override
+    public void removeAlias() {
+        this.dirty = true;
+        super.removeAlias();
+    }
+
     @Override
     public void dispose() {
         serialize(false);
@@ -556,48 +656,65 @@ public final class Keys extends Controller<Keys> {
         return Optional.ofNullable(this.readKey);
     }
 
+    public Optional<TransportCipher> writeCipher() {
+        return Optional.ofNullable(this.writeCipher);
+    }
+
+    public Optional<TransportCipher> readCipher() {
+        return Optional.ofNullable(this.readCipher);
+    }
+
     public Keys setCompanionKeyPair(SignalKeyPair companionKeyPair) {
         this.companionKeyPair = companionKeyPair;
+        this.dirty = true;
         return this;
     }
 
     public Keys setSignedKeyIndex(byte[] signedKeyIndex) {
         this.signedKeyIndex = signedKeyIndex;
+        this.dirty = true;
         return this;
     }
 
     public Keys setSignedKeyIndexTimestamp(Long signedKeyIndexTimestamp) {
         this.signedKeyIndexTimestamp = signedKeyIndexTimestamp;
+        this.dirty = true;
         return this;
     }
 
     public Keys setCompanionIdentity(SignedDeviceIdentity companionIdentity) {
         this.companionIdentity = companionIdentity;
+        this.dirty = true;
         return this;
     }
 
     public Keys setRegistered(boolean registered) {
         this.registered = registered;
+        this.dirty = true;
         return this;
     }
 
     public Keys setBusinessCertificate(boolean businessCertificate) {
         this.businessCertificate = businessCertificate;
+        this.dirty = true;
         return this;
     }
 
     public Keys setInitialAppSync(boolean initialAppSync) {
         this.initialAppSync = initialAppSync;
+        this.dirty = true;
         return this;
     }
 
     public Keys setWriteKey(byte[] writeKey) {
         this.writeKey = writeKey;
+        this.writeCipher = writeKey == null ? null : TransportCipher.ofWrite(writeKey);
         return this;
     }
 
     public Keys setReadKey(byte[] readKey) {
         this.readKey = readKey;
+        this.readCipher = readKey == null ? null : TransportCipher.ofRead(readKey);
         return this;
     }
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+package it.auties.whatsapp.controller;
+
+import it.auties.whatsapp.model.companion.CompanionHashState;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.signal.keypair.SignalPreKeyPair;
+import it.auties.whatsapp.model.signal.sender.SenderKeyName;
+import it.auties.whatsapp.model.signal.sender.SenderKeyRecord;
+import it.auties.whatsapp.model.signal.session.Session;
+import it.auties.whatsapp.model.signal.session.SessionAddress;
+import it.auties.whatsapp.model.sync.AppStateSyncKey;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * A change to a single entry of {@link Keys} that can be persisted without serializing the keys again.
+ * Each entry holds the latest value of what changed, so replaying them in order is enough to restore the keys.
+ */
+public sealed interface KeysJournalEntry permits KeysJournalEntry.SessionEntry, KeysJournalEntry.SenderKeyEntry, KeysJournalEntry.PreKeyEntry, KeysJournalEntry.HashStateEntry, KeysJournalEntry.AppKeysEntry, KeysJournalEntry.GroupPreKeysEntry {
+    record SessionEntry(SessionAddress address, Session session) implements KeysJournalEntry {
+
+    }
+
+    record SenderKeyEntry(SenderKeyName name, SenderKeyRecord record) implements KeysJournalEntry {
+
+    }
+
+    record PreKeyEntry(SignalPreKeyPair preKey) implements KeysJournalEntry {
+
+    }
+
+    record HashStateEntry(Jid device, CompanionHashState state) implements KeysJournalEntry {
+
+    }
+
+    record AppKeysEntry(Jid jid, LinkedList<AppStateSyncKey> keys) implements KeysJournalEntry {
+
+    }
+
+    record GroupPreKeysEntry(Jid group, Collection<Jid> recipients) implements KeysJournalEntry {
+
+    }
+}
@@ -4,18 +4,22 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.api.ListenerDelivery;
 import it.auties.whatsapp.api.TextPreviewSetting;
 import it.auties.whatsapp.api.WebHistoryLength;
 import it.auties.whatsapp.listener.Listener;
+import it.auties.whatsapp.listener.ListenerEvent;
 import it.auties.whatsapp.model.business.BusinessCategory;
 import it.auties.whatsapp.model.call.Call;
 import it.auties.whatsapp.model.chat.Chat;
 import it.auties.whatsapp.model.chat.ChatBuilder;
 import it.auties.whatsapp.model.chat.ChatEphemeralTimer;
+import it.auties.whatsapp.model.chat.GroupMetadata;
 import it.auties.whatsapp.model.companion.CompanionDevice;
 import it.auties.whatsapp.model.contact.Contact;
 import it.auties.whatsapp.model.info.ChatMessageInfo;
 import it.auties.whatsapp.model.info.ContextInfo;
+import it.auties.whatsapp.model.info.MessageInfo;
 import it.auties.whatsapp.model.info.MessageStatusInfo;
 import it.auties.whatsapp.model.info.NewsletterMessageInfo;
 import it.auties.whatsapp.model.jid.Jid;
@@ -39,6 +43,9 @@ import it.auties.whatsapp.socket.SocketRequest;
 import it.auties.whatsapp.util.BytesHelper;
 import it.auties.whatsapp.util.FutureReference;
 import it.auties.whatsapp.util.MetadataHelper;
+import it.auties.whatsapp.util.NameIndex;
+import it.auties.whatsapp.util.IdGenerator;
+import it.auties.whatsapp.util.OrderedIndex;
 import it.auties.whatsapp.util.ProxyAuthenticator;
 
 import java.net.URI;
@@ -184,6 +191,7 @@ public final class Store extends Controller<Store> {
     /**
      * The non-null map of newsletters
      */
+    @JsonIgnore
     private final ConcurrentHashMap<Jid, Newsletter> newsletters;
 
 
@@ -214,6 +222,48 @@ public final class Store extends Controller<Store> {
     @JsonIgnore
     private final ConcurrentHashMap<String, SocketRequest> requests;
 
+    /**
+     * The non-null map of group metadata that was queried during this session, kept up to date by group notifications
+     */
+    @JsonIgnore
+    private final ConcurrentHashMap<Jid, GroupMetadata> groupsMetadata;
+
+    /**
+     * The non-null index of contacts by their full, chosen and short names
+     */
+    @JsonIgnore
+    private final NameIndex<Contact> contactNames;
+
+    /**
+     * The non-null index of chats by their names
+     */
+    @JsonIgnore
+    private final NameIndex<Chat> chatNames;
+
+    /**
+     * The non-null index of chats sorted from newest to oldest
+     */
+    @JsonIgnore
+    private final OrderedIndex<Chat> chatsByTimestamp;
+
+    /**
+     * The non-null index of pinned chats sorted from newest to oldest pin
+     */
+    @JsonIgnore
+    private final OrderedIndex<Chat> pinnedChatsByTimestamp;
+
+    /**
+     * The non-null index of the starred messages of every chat, sorted by timestamp
+     */
+    @JsonIgnore
+    private final OrderedIndex<ChatMessageInfo> starredMessages;
+
+    /**
+     * The non-null generator of the ids sent by this session, which has its own random prefix so that sessions hosted by the same process can't be linked by their ids
+     */
+    @JsonIgnore
+    private final IdGenerator idGenerator;
+
     /**
      * The non-null list of replies waiting to be fulfilled
      */
@@ -226,6 +276,24 @@ public final class Store extends Controller<Store> {
     @JsonIgnore
     private final KeySetView<Listener, Boolean> listeners;
 
+    /**
+     * The listeners subscribed to each event, rebuilt every time a listener is added or removed
+     */
+    @JsonIgnore
+    private volatile Map<ListenerEvent, List<Listener>> listenersByEvent;
+
+    /**
+     * The strategy used to deliver events to listeners
+     */
+    @JsonIgnore
+    private ListenerDelivery listenerDelivery;
+
+    /**
+     * Whether the code that sent a request should be recorded, so that it can be included in the exception thrown if the request fails
+     */
+    @JsonIgnore
+    private boolean traceRequests;
+
     /**
      * The request tag, used to create messages
      */
@@ -264,6 +332,18 @@ public final class Store extends Controller<Store> {
      */
     private WebHistoryLength historyLength;
 
+    /**
+     * The maximum number of messages of each chat that are kept in memory, or a non-positive value if there is no limit
+     * Older messages are moved to disk when the store is serialized
+     */
+    private int chatHistoryLimit;
+
+    /**
+     * How long the messages of each chat are kept in memory, or null if there is no limit
+     * Older messages are moved to disk when the store is serialized
+     */
+    private Duration chatHistoryRetention;
+
     /**
      * Whether listeners should be automatically scanned and registered or not
      */
@@ -297,6 +377,12 @@ public final class Store extends Controller<Store> {
      */
     private boolean checkPatchMacs;
 
+    /**
+     * Whether a value saved in the store file changed since this store was last serialized
+     */
+    @JsonIgnore
+    private volatile boolean dirty;
+
     /**
      * All args constructor
      */
@@ -330,14 +416,24 @@ public final class Store extends Controller<Store> {
         this.chats = new ConcurrentHashMap<>();
         this.contacts = contacts;
         this.status = status;
-        this.newsletters = newsletters;
+        this.newsletters = Objects.requireNonNullElseGet(newsletters, ConcurrentHashMap::new);
         this.privacySettings = privacySettings;
         this.calls = calls;
         this.unarchiveChats = unarchiveChats;
         this.twentyFourHourFormat = twentyFourHourFormat;
         this.requests = new ConcurrentHashMap<>();
         this.replyHandlers = new ConcurrentHashMap<>();
+        this.groupsMetadata = new ConcurrentHashMap<>();
+        this.contactNames = new NameIndex<>();
+        this.chatNames = new NameIndex<>();
+        this.chatsByTimestamp = new OrderedIndex<>();
+        this.pinnedChatsByTimestamp = new OrderedIndex<>();
+        this.starredMessages = new OrderedIndex<>();
+        this.idGenerator = new IdGenerator();
+        contacts.values().forEach(this::indexContact);
         this.listeners = ConcurrentHashMap.newKeySet();
+        this.listenersByEvent = Map.of();
+        this.listenerDelivery = ListenerDelivery.concurrent();
         this.tag = HexFormat.of().formatHex(BytesHelper.random(1));
         this.initializationTimeStamp = initializationTimeStamp;
         this.mediaConnectionLatch = new CountDownLatch(1);
@@ -350,6 +446,7 @@ public final class Store extends Controller<Store> {
         this.device = device;
         this.companionDeviceOs = companionDeviceOs;
         this.checkPatchMacs = checkPatchMacs;
+        this.dirty = true;
     }
 
     /**
@@ -380,11 +477,42 @@ public final class Store extends Controller<Store> {
         return findContactsStream(name).findAny();
     }
 
+    // The index ignores the case of names, so candidates are matched again exactly
     private Stream<Contact> findContactsStream(String name) {
-        return name == null ? Stream.empty() : contacts().parallelStream()
+        return contactNames.find(name)
+                .stream()
                 .filter(contact -> contact.fullName().filter(name::equals).isPresent() || contact.chosenName().filter(name::equals).isPresent() || contact.shortName().filter(name::equals).isPresent());
     }
 
+    /**
+     * Queries every contact with a full, chosen or short name that starts with {@code prefix}, ignoring its case
+     *
+     * @param prefix the prefix to search
+     * @return a non-null immutable set
+     */
+    public Set<Contact> findContactsByNamePrefix(String prefix) {
+        return contactNames.findByPrefix(prefix);
+    }
+
+    private void indexContact(Contact contact) {
+        contact.setRenameListener(this::onContactRenamed);
+        reindexContact(contact);
+    }
+
+    // Contacts are only persisted with the store, so a rename must mark it as changed to be included in the next snapshot
+    private void onContactRenamed(Contact contact) {
+        reindexContact(contact);
+        this.dirty = true;
+    }
+
+    private void reindexContact(Contact contact) {
+        var names = new ArrayList<String>(3);
+        contact.fullName().ifPresent(names::add);
+        contact.chosenName().ifPresent(names::add);
+        contact.shortName().ifPresent(names::add);
+        contactNames.index(contact, names);
+    }
+
     /**
      * Returns all the contacts
      *
@@ -459,10 +587,7 @@ public final class Store extends Controller<Store> {
      * @return a non-null optional
      */
     public Optional<NewsletterMessageInfo> findMessageById(Newsletter newsletter, String id) {
-        return newsletter.messages()
-                .parallelStream()
-                .filter(entry -> Objects.equals(id, entry.id()) || Objects.equals(id, String.valueOf(entry.serverId())))
-                .findFirst();
+        return newsletter.findMessageById(id);
     }
 
 
@@ -474,11 +599,20 @@ public final class Store extends Controller<Store> {
      * @return a non-null optional
      */
     public Optional<ChatMessageInfo> findMessageById(Chat chat, String id) {
-        return chat.messages()
-                .parallelStream()
+        return chat.findMessageById(id)
+                .or(() -> findArchivedMessageById(chat, id));
+    }
+
+    private Optional<ChatMessageInfo> findArchivedMessageById(Chat chat, String id) {
+        if (!chat.hasArchivedMessage(id)) {
+            return Optional.empty();
+        }
+
+        return chat.archivedMessages()
+                .stream()
                 .map(HistorySyncMessage::messageInfo)
-                .filter(message -> Objects.equals(message.key().id(), id))
-                .findAny();
+                .filter(message -> Objects.equals(message.id(), id))
+                .findFirst();
     }
 
     /**
@@ -539,11 +673,72 @@ public final class Store extends Controller<Store> {
 
 
     private Stream<Chat> findChatsByNameStream(String name) {
-        return name == null ? Stream.empty() : chats.values()
-                .parallelStream()
+        return chatNames.find(name)
+                .stream()
                 .filter(chat -> chat.name().equalsIgnoreCase(name));
     }
 
+    /**
+     * Queries every chat whose name starts with {@code prefix}, ignoring its case
+     *
+     * @param prefix the prefix to search
+     * @return a non-null immutable set
+     */
+    public Set<Chat> findChatsByNamePrefix(String prefix) {
+        return chatNames.findByPrefix(prefix);
+    }
+
+    private void indexChat(Chat chat) {
+        chat.setIndexListener(new ChatIndexListener());
+        reindexChat(chat);
+    }
+
+    private void reindexChat(Chat chat) {
+        chatNames.index(chat, List.of(chat.name()));
+        chatsByTimestamp.index(chat, chat.timestampSeconds());
+        if (chat.isPinned()) {
+            pinnedChatsByTimestamp.index(chat, chat.pinnedTimestampSeconds());
+        } else {
+            pinnedChatsByTimestamp.remove(chat);
+        }
+    }
+
+    private void unindexChat(Chat chat) {
+        chat.setIndexListener(null);
+        chatNames.remove(chat);
+        chatsByTimestamp.remove(chat);
+        pinnedChatsByTimestamp.remove(chat);
+        unindexStarredMessages(chat);
+    }
+
+    // The chat could have been written before starred messages were indexed, so its own index isn't used to avoid loading its messages
+    private void unindexStarredMessages(Chat chat) {
+        starredMessages.values()
+                .stream()
+                .filter(message -> Objects.equals(message.chatJid(), chat.jid()))
+                .forEach(starredMessages::remove);
+    }
+
+    private void reindexStarredMessage(ChatMessageInfo info, boolean starred) {
+        if (starred) {
+            starredMessages.index(info, info.timestampSeconds().orElse(0L));
+        } else {
+            starredMessages.remove(info);
+        }
+    }
+
+    private final class ChatIndexListener implements Chat.IndexListener {
+        @Override
+        public void onIndexChange(Chat chat) {
+            reindexChat(chat);
+        }
+
+        @Override
+        public void onStarredMessageChange(Chat chat, ChatMessageInfo info, boolean starred) {
+            reindexStarredMessage(info, starred);
+        }
+    }
+
     private Stream<Newsletter> findNewslettersByNameStream(String name) {
         return name == null ? Stream.empty() : newsletters.values()
                 .parallelStream()
@@ -667,6 +862,18 @@ public final class Store extends Controller<Store> {
         return id == null ? Optional.empty() : Optional.ofNullable(requests.get(id));
     }
 
+    /**
+     * Removes a request from this store, if it's still pending
+     *
+     * @param request the non-null request to remove
+     */
+    @SuppressWarnings("ClassEscapesDefinedScope")
+    public void removeRequest(SocketRequest request) {
+        if (request.id() != null) {
+            requests.remove(request.id(), request);
+        }
+    }
+
     private SocketRequest deleteAndComplete(SocketRequest request, Node response, boolean exceptionally) {
         if (request.complete(response, exceptionally)) {
             requests.remove(request.id());
@@ -679,7 +886,7 @@ public final class Store extends Controller<Store> {
      * Clears all the data that this object holds and closes the pending requests
      */
     public void resolveAllPendingRequests() {
-        requests.values().forEach(request -> request.complete(null, false));
+        requests.values().removeIf(request -> request.complete(null, false));
     }
 
     /**
@@ -748,6 +955,7 @@ public final class Store extends Controller<Store> {
             }
             joinMessages(chat, oldChat);
         }
+        chat.setUpdate(true);
         return addChatDirect(chat);
     }
 
@@ -759,10 +967,10 @@ public final class Store extends Controller<Store> {
                 .map(message -> message.timestampSeconds().orElse(0L))
                 .orElse(0L);
         if (newChatTimestamp <= oldChatTimestamp) {
-            chat.addMessages(oldChat.messages());
+            chat.addMessages(oldChat.historySyncMessages());
             return;
         }
-        chat.addOldMessages(chat.messages());
+        chat.addOldMessages(oldChat.historySyncMessages());
     }
 
     /**
@@ -772,7 +980,14 @@ public final class Store extends Controller<Store> {
      * @return the old chat, if present
      */
     public Optional<Chat> addChatDirect(Chat chat) {
-        return Optional.ofNullable(chats.put(chat.jid(), chat));
+        var oldChat = chats.put(chat.jid(), chat);
+        if (oldChat != null && oldChat != chat) {
+            oldChat.setIndexListener(null);
+            unindexStarredMessages(oldChat);
+        }
+
+        indexChat(chat);
+        return Optional.ofNullable(oldChat);
     }
 
     /**
@@ -792,7 +1007,13 @@ public final class Store extends Controller<Store> {
      * @return the input contact
      */
     public Contact addContact(Contact contact) {
-        contacts.put(contact.jid(), contact);
+        var oldContact = contacts.put(contact.jid(), contact);
+        if (oldContact != null && oldContact != contact) {
+            oldContact.setRenameListener(null);
+        }
+
+        indexContact(contact);
+        this.dirty = true;
         return contact;
     }
 
@@ -803,9 +1024,44 @@ public final class Store extends Controller<Store> {
      * @return the old newsletter, if present
      */
     public Optional<Newsletter> addNewsletter(Newsletter newsletter) {
+        newsletter.setUpdate(true);
         return Optional.ofNullable(newsletters.put(newsletter.jid(), newsletter));
     }
 
+    /**
+     * Queries the cached metadata of a group
+     *
+     * @param groupJid the jid of the group
+     * @return a non-null optional
+     */
+    public Optional<GroupMetadata> findGroupMetadata(JidProvider groupJid) {
+        if (groupJid == null) {
+            return Optional.empty();
+        }
+
+        return Optional.ofNullable(groupsMetadata.get(groupJid.toJid()));
+    }
+
+    /**
+     * Caches the metadata of a group
+     *
+     * @param metadata the metadata to cache
+     * @return the old metadata, if present
+     */
+    public Optional<GroupMetadata> addGroupMetadata(GroupMetadata metadata) {
+        return Optional.ofNullable(groupsMetadata.put(metadata.jid(), metadata));
+    }
+
+    /**
+     * Removes the cached metadata of a group
+     *
+     * @param groupJid the jid of the group
+     * @return the metadata that was removed wrapped by an optional
+     */
+    public Optional<GroupMetadata> removeGroupMetadata(JidProvider groupJid) {
+        return Optional.ofNullable(groupsMetadata.remove(groupJid.toJid()));
+    }
+
     /**
      * Removes a chat from memory
      *
@@ -813,7 +1069,12 @@ public final class Store extends Controller<Store> {
      * @return the chat that was deleted wrapped by an optional
      */
     public Optional<Chat> removeChat(JidProvider chatJid) {
-        return Optional.ofNullable(chats.remove(chatJid.toJid()));
+        var chat = chats.remove(chatJid.toJid());
+        if (chat != null) {
+            unindexChat(chat);
+        }
+
+        return Optional.ofNullable(chat);
     }
 
     /**
@@ -833,7 +1094,40 @@ public final class Store extends Controller<Store> {
      * @return the contact that was deleted wrapped by an optional
      */
     public Optional<Contact> removeContact(JidProvider contactJid) {
-        return Optional.ofNullable(contacts.remove(contactJid.toJid()));
+        this.dirty = true;
+        var contact = contacts.remove(contactJid.toJid());
+        if (contact != null) {
+            contact.setRenameListener(null);
+            contactNames.remove(contact);
+        }
+
+        return Optional.ofNullable(contact);
+    }
+
+    /**
+     * Marks the chat, newsletter or status that holds a message as changed, so that it's written by the next serialization.
+     * Use this method after mutating a message that was already added to this store.
+     *
+     * @param info the message that changed
+     */
+    public void markUpdated(MessageInfo info) {
+        var chat = chats.get(info.parentJid());
+        if (chat != null) {
+            if (info instanceof ChatMessageInfo chatMessageInfo) {
+                chat.refreshStarredMessage(chatMessageInfo);
+            }
+
+            chat.setUpdate(true);
+            return;
+        }
+
+        var newsletter = newsletters.get(info.parentJid());
+        if (newsletter != null) {
+            newsletter.setUpdate(true);
+            return;
+        }
+
+        this.dirty = true;
     }
 
     /**
@@ -842,32 +1136,26 @@ public final class Store extends Controller<Store> {
      * @return a non-null list of chats
      */
     public List<Chat> pinnedChats() {
-        return chats.values()
-                .parallelStream()
-                .filter(Chat::isPinned)
-                .sorted(Comparator.comparingLong(Chat::pinnedTimestampSeconds).reversed())
-                .toList();
+        return pinnedChatsByTimestamp.values();
     }
 
     /**
-     * Returns all the starred messages
+     * Returns all the starred messages sorted from newest to oldest
      *
      * @return a non-null list of messages
      */
     public List<ChatMessageInfo> starredMessages() {
-        return chats().parallelStream().map(Chat::starredMessages).flatMap(Collection::stream).toList();
+        return starredMessages.values();
     }
 
+
     /**
      * Returns all the chats sorted from newest to oldest
      *
      * @return an immutable collection
      */
     public List<Chat> chats() {
-        return chats.values()
-                .stream()
-                .sorted(Comparator.comparingLong(Chat::timestampSeconds).reversed())
-                .toList();
+        return chatsByTimestamp.values();
     }
 
     /**
@@ -881,6 +1169,7 @@ public final class Store extends Controller<Store> {
 
     public void addProperties(Map<String, String> properties) {
         this.properties.putAll(properties);
+        this.dirty = true;
     }
 
     /**
@@ -941,6 +1230,7 @@ public final class Store extends Controller<Store> {
         var wrapper = Objects.requireNonNullElseGet(status.get(info.senderJid()), ConcurrentHashMap<String, ChatMessageInfo>::new);
         wrapper.put(info.id(), info);
         status.put(info.senderJid(), wrapper);
+        this.dirty = true;
         return this;
     }
 
@@ -1008,6 +1298,7 @@ public final class Store extends Controller<Store> {
      * @return the old privacy setting entry
      */
     public PrivacySettingEntry addPrivacySetting(PrivacySettingType type, PrivacySettingEntry entry) {
+        this.dirty = true;
         return privacySettings.put(type, entry);
     }
 
@@ -1039,6 +1330,7 @@ public final class Store extends Controller<Store> {
      * @return the nullable old key
      */
     public Optional<Integer> addLinkedDevice(Jid companion, int keyId) {
+        this.dirty = true;
         return Optional.ofNullable(linkedDevicesKeys.put(companion, keyId));
     }
 
@@ -1050,6 +1342,7 @@ public final class Store extends Controller<Store> {
      * @return the nullable old key
      */
     public Optional<Integer> removeLinkedCompanion(Jid companion) {
+        this.dirty = true;
         return Optional.ofNullable(linkedDevicesKeys.remove(companion));
     }
 
@@ -1058,6 +1351,7 @@ public final class Store extends Controller<Store> {
      */
     public void removeLinkedCompanions() {
         linkedDevicesKeys.clear();
+        this.dirty = true;
     }
 
     /**
@@ -1069,6 +1363,26 @@ public final class Store extends Controller<Store> {
         return Collections.unmodifiableSet(listeners);
     }
 
+    /**
+     * Returns the listeners that are subscribed to an event, that is the ones that override at least one of its callbacks
+     *
+     * @param event the non-null event
+     * @return a non-null immutable list
+     */
+    public List<Listener> listeners(ListenerEvent event) {
+        return listenersByEvent.getOrDefault(event, List.of());
+    }
+
+    /**
+     * Returns whether any listener is subscribed to an event
+     *
+     * @param event the non-null event
+     * @return a boolean
+     */
+    public boolean hasListeners(ListenerEvent event) {
+        return listenersByEvent.containsKey(event);
+    }
+
     /**
      * Registers a listener
      *
@@ -1076,7 +1390,10 @@ public final class Store extends Controller<Store> {
      * @return the same instance
      */
     public Store addListener(Listener listener) {
-        listeners.add(listener);
+        if (listeners.add(listener)) {
+            indexListeners();
+        }
+
         return this;
     }
 
@@ -1087,7 +1404,10 @@ public final class Store extends Controller<Store> {
      * @return the same instance
      */
     public Store addListeners(Collection<Listener> listeners) {
-        this.listeners.addAll(listeners);
+        if (this.listeners.addAll(listeners)) {
+            indexListeners();
+        }
+
         return this;
     }
 
@@ -1098,7 +1418,10 @@ public final class Store extends Controller<Store> {
      * @return the same instance
      */
     public Store removeListener(Listener listener) {
-        listeners.remove(listener);
+        if (listeners.remove(listener)) {
+            indexListeners();
+        }
+
         return this;
     }
 
@@ -1109,9 +1432,23 @@ public final class Store extends Controller<Store> {
      */
     public Store removeListener() {
         listeners.clear();
+        indexListeners();
         return this;
     }
 
+    // Listeners change rarely while events are dispatched constantly, so the table is rebuilt on every change instead of being computed on every event
+    private synchronized void indexListeners() {
+        var result = new EnumMap<ListenerEvent, List<Listener>>(ListenerEvent.class);
+        for (var listener : listeners) {
+            for (var event : ListenerEvent.subscriptions(listener)) {
+                result.computeIfAbsent(event, ignored -> new ArrayList<>()).add(listener);
+            }
+        }
+
+        result.replaceAll((ignored, subscribers) -> List.copyOf(subscribers));
+        this.listenersByEvent = Collections.unmodifiableMap(result);
+    }
+
     /**
      * Sets the proxy used by this session
      *
@@ -1125,6 +1462,7 @@ public final class Store extends Controller<Store> {
         }
 
         this.proxy = proxy;
+        this.dirty = true;
         return this;
     }
 
@@ -1221,6 +1559,44 @@ public final class Store extends Controller<Store> {
         serializer.serializeStore(this, async);
     }
 
+    /**
+     * Returns whether a value saved in the store file changed since this store was last serialized
+     *
+     * @return a boolean
+     */
+    public boolean dirty() {
+        return dirty;
+    }
+
+    public Store setDirty(boolean dirty) {
+        this.dirty = dirty;
+        return this;
+    }
+
+    @Override
+    public Store setPhoneNumber(PhoneNumber phoneNumber) {
+        this.dirty = true;
+        return super.setPhoneNumber(phoneNumber);
+    }
+
+    @Override
+    public void addAlias(String entry) {
+        this.dirty = true;
+        super.addAlias(entry);
+    }
+
+    @Override
+    public void removeAlias(String entry) {
+        this.dirty = true;
+        super.removeAlias(entry);
+    }
+
+    @Override
+    public void removeAlias() {
+        this.dirty = true;
+        super.removeAlias();
+    }
+
     /**
      * Adds a call to the store
      *
@@ -1228,6 +1604,7 @@ public final class Store extends Controller<Store> {
      * @return the old value associated with {@link Call#id()}
      */
     public Optional<Call> addCall(Call call) {
+        this.dirty = true;
         return Optional.ofNullable(calls.put(call.id(), call));
     }
 
@@ -1314,10 +1691,35 @@ public final class Store extends Controller<Store> {
         return this.historyLength;
     }
 
+    public int chatHistoryLimit() {
+        return this.chatHistoryLimit;
+    }
+
+    public Optional<Duration> chatHistoryRetention() {
+        return Optional.ofNullable(this.chatHistoryRetention);
+    }
+
     public boolean autodetectListeners() {
         return this.autodetectListeners;
     }
 
+    public ListenerDelivery listenerDelivery() {
+        return this.listenerDelivery;
+    }
+
+    public boolean traceRequests() {
+        return this.traceRequests;
+    }
+
+    /**
+     * Generates a random id for a message, a request or a query sent by this session
+     *
+     * @return a non-null String
+     */
+    public String randomId() {
+        return idGenerator.next();
+    }
+
     public boolean automaticPresenceUpdates() {
         return this.automaticPresenceUpdates;
     }
@@ -1336,147 +1738,198 @@ public final class Store extends Controller<Store> {
 
     public Store setOnline(boolean online) {
         this.online = online;
+        this.dirty = true;
         return this;
     }
 
     public Store setLocale(String locale) {
         this.locale = locale;
+        this.dirty = true;
         return this;
     }
 
     public Store setName(String name) {
         this.name = name;
+        this.dirty = true;
         return this;
     }
 
     public Store setBusiness(boolean business) {
         this.business = business;
+        this.dirty = true;
         return this;
     }
 
     public Store setBusinessAddress(String businessAddress) {
         this.businessAddress = businessAddress;
+        this.dirty = true;
         return this;
     }
 
     public Store setBusinessLongitude(Double businessLongitude) {
         this.businessLongitude = businessLongitude;
+        this.dirty = true;
         return this;
     }
 
     public Store setBusinessLatitude(Double businessLatitude) {
         this.businessLatitude = businessLatitude;
+        this.dirty = true;
         return this;
     }
 
     public Store setBusinessDescription(String businessDescription) {
         this.businessDescription = businessDescription;
+        this.dirty = true;
         return this;
     }
 
     public Store setBusinessWebsite(String businessWebsite) {
         this.businessWebsite = businessWebsite;
+        this.dirty = true;
         return this;
     }
 
     public Store setBusinessEmail(String businessEmail) {
         this.businessEmail = businessEmail;
+        this.dirty = true;
         return this;
     }
 
     public Store setBusinessCategory(BusinessCategory businessCategory) {
         this.businessCategory = businessCategory;
+        this.dirty = true;
         return this;
     }
 
     public Store setDeviceHash(String deviceHash) {
         this.deviceHash = deviceHash;
+        this.dirty = true;
         return this;
     }
 
     public Store setLinkedDevicesKeys(LinkedHashMap<Jid, Integer> linkedDevicesKeys) {
         this.linkedDevicesKeys = linkedDevicesKeys;
+        this.dirty = true;
         return this;
     }
 
     public Store setProfilePicture(URI profilePicture) {
         this.profilePicture = profilePicture;
+        this.dirty = true;
         return this;
     }
 
     public Store setAbout(String about) {
         this.about = about;
+        this.dirty = true;
         return this;
     }
 
     public Store setJid(Jid jid) {
         this.jid = jid;
+        this.dirty = true;
         return this;
     }
 
     public Store setLid(Jid lid) {
         this.lid = lid;
+        this.dirty = true;
         return this;
     }
 
     public Store setUnarchiveChats(boolean unarchiveChats) {
         this.unarchiveChats = unarchiveChats;
+        this.dirty = true;
         return this;
     }
 
     public Store setTwentyFourHourFormat(boolean twentyFourHourFormat) {
         this.twentyFourHourFormat = twentyFourHourFormat;
+        this.dirty = true;
         return this;
     }
 
     public Store setNewChatsEphemeralTimer(ChatEphemeralTimer newChatsEphemeralTimer) {
         this.newChatsEphemeralTimer = newChatsEphemeralTimer;
+        this.dirty = true;
         return this;
     }
 
     public Store setTextPreviewSetting(TextPreviewSetting textPreviewSetting) {
         this.textPreviewSetting = textPreviewSetting;
+        this.dirty = true;
         return this;
     }
 
     public Store setHistoryLength(WebHistoryLength historyLength) {
         this.historyLength = historyLength;
+        this.dirty = true;
+        return this;
+    }
+
+    public Store setChatHistoryLimit(int chatHistoryLimit) {
+        this.chatHistoryLimit = chatHistoryLimit;
+        this.dirty = true;
+        return this;
+    }
+
+    public Store setChatHistoryRetention(Duration chatHistoryRetention) {
+        this.chatHistoryRetention = chatHistoryRetention;
+        this.dirty = true;
+        return this;
+    }
+
+    public Store setListenerDelivery(ListenerDelivery listenerDelivery) {
+        this.listenerDelivery = Objects.requireNonNull(listenerDelivery, "Missing listener delivery");
+        return this;
+    }
+
+    public Store setTraceRequests(boolean traceRequests) {
+        this.traceRequests = traceRequests;
         return this;
     }
 
     public Store setAutodetectListeners(boolean autodetectListeners) {
         this.autodetectListeners = autodetectListeners;
+        this.dirty = true;
         return this;
     }
 
     public Store setAutomaticPresenceUpdates(boolean automaticPresenceUpdates) {
         this.automaticPresenceUpdates = automaticPresenceUpdates;
+        this.dirty = true;
         return this;
     }
 
     public Store setReleaseChannel(ReleaseChannel releaseChannel) {
         this.releaseChannel = releaseChannel;
+        this.dirty = true;
         return this;
     }
 
     public Store setDevice(CompanionDevice device) {
         this.device = device;
         this.version = new FutureReference<>(null, () -> MetadataHelper.getVersion(device.platform(), business));
+        this.dirty = true;
         return this;
     }
 
     public Store setCompanionDeviceOs(PlatformType companionDeviceOs) {
         this.companionDeviceOs = companionDeviceOs;
+        this.dirty = true;
         return this;
     }
 
     public Store setCheckPatchMacs(boolean checkPatchMacs) {
         this.checkPatchMacs = checkPatchMacs;
+        this.dirty = true;
         return this;
     }
 
     public Store setVersion(Version version) {
         this.version.setValue(version);
+        this.dirty = true;
         return this;
     }
 }
@@ -13,6 +13,7 @@ import java.io.UncheckedIOException;
 
 public final class AesGcm {
     private static final int NONCE = 128;
+    public static final int TAG_LENGTH = NONCE / 8;
 
     private AesGcm() {
         throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
@@ -11,6 +11,7 @@ public record GroupBuilder(Keys keys) {
         var record = keys.findSenderKeyByName(name);
         if (record.isEmpty()) {
             record.addState(KeyHelper.senderKeyId(), 0, KeyHelper.senderKey(), SignalKeyPair.random());
+            keys.updateSenderKey(name);
         }
         var state = record.findState();
         var message = new SignalDistributionMessage(state.id(), state.chainKey().iteration(), state.chainKey().seed(), state.signingKey().encodedPublicKey());
@@ -20,5 +21,6 @@ public record GroupBuilder(Keys keys) {
     public void createIncoming(SenderKeyName name, SignalDistributionMessage message) {
         var record = keys.findSenderKeyByName(name);
         record.addState(message.id(), message.iteration(), message.chainKey(), message.signingKey());
+        keys.updateSenderKey(name);
     }
 }
@@ -21,6 +21,7 @@ public record GroupCipher(SenderKeyName name, Keys keys) {
         var senderKeyMessage = new SenderKeyMessage(currentState.id(), messageKey.iteration(), ciphertext, currentState.signingKey().privateKey());
         var next = currentState.chainKey().next();
         currentState.setChainKey(next);
+        keys.updateSenderKey(name);
         return new CipheredMessageResult(senderKeyMessage.serialized(), Signal.SKMSG);
     }
 
@@ -31,7 +32,9 @@ public record GroupCipher(SenderKeyName name, Keys keys) {
         for (var senderKeyState : senderKeyStates) {
             try {
                 var senderKey = getSenderKey(senderKeyState, senderKeyMessage.iteration());
-                return AesCbc.decrypt(senderKey.iv(), senderKeyMessage.cipherText(), senderKey.cipherKey());
+                var result = AesCbc.decrypt(senderKey.iv(), senderKeyMessage.cipherText(), senderKey.cipherKey());
+                keys.updateSenderKey(name);
+                return result;
             } catch (Throwable ignored) {
             }
         }
@@ -42,6 +42,7 @@ public record SessionBuilder(SessionAddress address, Keys keys) {
                 .map(Session::closeCurrentState)
                 .orElseGet(this::createSession)
                 .addState(state);
+        keys.updateSession(address);
     }
 
     public SessionState createState(boolean isInitiator, SignalKeyPair ourEphemeralKey, SignalKeyPair ourSignedKey, byte[] theirIdentityPubKey, byte[] theirEphemeralPubKey, byte[] theirSignedPubKey, int registrationId, int version) {
@@ -42,6 +42,7 @@ public record SessionCipher(SessionAddress address, Keys keys) {
         var encrypted = AesCbc.encrypt(iv, data, secrets[0]);
         var encryptedMessageType = getMessageType(currentState);
         var encryptedMessage = encrypt(currentState, chain, secrets[1], encrypted);
+        saveSession();
         return new CipheredMessageResult(encryptedMessage, encryptedMessageType);
     }
 
@@ -103,7 +104,9 @@ public record SessionCipher(SessionAddress address, Keys keys) {
         builder.createIncoming(session, message);
         var state = session.findState(message.version(), message.baseKey())
                 .orElseThrow(() -> new NoSuchElementException("Missing state"));
-        return decrypt(message.signalMessage(), state);
+        var result = decrypt(message.signalMessage(), state);
+        saveSession();
+        return result;
     }
 
     private Optional<Session> createSession() {
@@ -113,12 +116,14 @@ public record SessionCipher(SessionAddress address, Keys keys) {
     }
 
     public byte[] decrypt(SignalMessage message) {
-        return loadSession().states()
+        var result = loadSession().states()
                 .stream()
                 .map(state -> tryDecrypt(message, state))
                 .flatMap(Optional::stream)
                 .findFirst()
                 .orElseThrow(() -> new NoSuchElementException("Cannot decrypt message: no suitable session found"));
+        saveSession();
+        return result;
     }
 
     private Optional<byte[]> tryDecrypt(SignalMessage message, SessionState state) {
@@ -182,6 +187,10 @@ public record SessionCipher(SessionAddress address, Keys keys) {
         state.rootKey(masterKey[0]);
     }
 
+    private void saveSession() {
+        keys.updateSession(keys.hasSession(address) ? address : new SessionAddress(address.name(), 0));
+    }
+
     private Session loadSession() {
         return loadSession(() -> keys.findSessionByAddress(new SessionAddress(address.name(), 0)));
     }
@@ -0,0 +1,79 @@
+package it.auties.whatsapp.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * An AES-GCM cipher bound to one of the keys of the Noise transport.
+ * Unlike {@link AesGcm}, the cipher, its key schedule and the iv buffer are created once and reused for every frame.
+ */
+public final class TransportCipher {
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private final byte[] iv;
+    private final boolean encrypt;
+
+    private TransportCipher(byte[] key, boolean encrypt) {
+        try {
+            this.cipher = Cipher.getInstance(ALGORITHM);
+            this.key = new SecretKeySpec(key, "AES");
+            this.iv = new byte[IV_LENGTH];
+            this.encrypt = encrypt;
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalStateException("Missing AES-GCM support", exception);
+        }
+    }
+
+    public static TransportCipher ofWrite(byte[] key) {
+        return new TransportCipher(key, true);
+    }
+
+    public static TransportCipher ofRead(byte[] key) {
+        return new TransportCipher(key, false);
+    }
+
+    /**
+     * Encrypts a portion of a buffer in place: the ciphertext, followed by the authentication tag, is written at the same offset
+     *
+     * @param counter the counter to use as iv
+     * @param buffer  the buffer, which must have {@link AesGcm#TAG_LENGTH} bytes of space after the plaintext
+     * @param offset  the offset of the plaintext
+     * @param length  the length of the plaintext
+     * @return the length of the ciphertext
+     */
+    public synchronized int encrypt(long counter, byte[] buffer, int offset, int length) {
+        try {
+            init(counter, true);
+            return cipher.doFinal(buffer, offset, length, buffer, offset);
+        } catch (GeneralSecurityException exception) {
+            throw new RuntimeException("Cannot encrypt data", exception);
+        }
+    }
+
+    public synchronized byte[] decrypt(long counter, byte[] input) {
+        try {
+            init(counter, false);
+            return cipher.doFinal(input);
+        } catch (GeneralSecurityException exception) {
+            throw new RuntimeException("Cannot decrypt data", exception);
+        }
+    }
+
+    private void init(long counter, boolean encrypt) throws GeneralSecurityException {
+        if (this.encrypt != encrypt) {
+            throw new IllegalStateException("This cipher can only be used to %s data".formatted(this.encrypt ? "encrypt" : "decrypt"));
+        }
+
+        for (var index = IV_LENGTH - 1; index >= IV_LENGTH - Long.BYTES; index--) {
+            iv[index] = (byte) counter;
+            counter >>>= 8;
+        }
+
+        cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, new GCMParameterSpec(AesGcm.TAG_LENGTH * 8, iv));
+    }
+}
@@ -0,0 +1,115 @@
+package it.auties.whatsapp.listener;
+
+import it.auties.whatsapp.api.DisconnectReason;
+import it.auties.whatsapp.api.SocketEvent;
+import it.auties.whatsapp.api.Whatsapp;
+import it.auties.whatsapp.model.action.Action;
+import it.auties.whatsapp.model.call.Call;
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.contact.Contact;
+import it.auties.whatsapp.model.contact.ContactStatus;
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+import it.auties.whatsapp.model.info.MessageIndexInfo;
+import it.auties.whatsapp.model.info.MessageInfo;
+import it.auties.whatsapp.model.info.QuotedMessageInfo;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.node.Node;
+import it.auties.whatsapp.model.privacy.PrivacySettingEntry;
+import it.auties.whatsapp.model.setting.Setting;
+
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.*;
+
+/**
+ * The events that can be delivered to a {@link Listener}.
+ * Each event corresponds to a pair of callbacks, one that takes the calling {@link Whatsapp} instance and one that doesn't.
+ * A listener is subscribed to an event only if it overrides at least one of them, so events that a listener ignores are never dispatched to it.
+ */
+public enum ListenerEvent {
+    NODE_SENT("onNodeSent", Node.class),
+    NODE_RECEIVED("onNodeReceived", Node.class),
+    LOGGED_IN("onLoggedIn"),
+    METADATA("onMetadata", Map.class),
+    DISCONNECTED("onDisconnected", DisconnectReason.class),
+    ACTION("onAction", Action.class, MessageIndexInfo.class),
+    SETTING("onSetting", Setting.class),
+    FEATURES("onFeatures", List.class),
+    CONTACTS("onContacts", Collection.class),
+    CONTACT_PRESENCE("onContactPresence", Chat.class, Jid.class, ContactStatus.class),
+    CHATS("onChats", Collection.class),
+    NEWSLETTERS("onNewsletters", Collection.class),
+    CHAT_MESSAGES_SYNC("onChatMessagesSync", Chat.class, boolean.class),
+    HISTORY_SYNC_PROGRESS("onHistorySyncProgress", int.class, boolean.class),
+    NEW_MESSAGE("onNewMessage", MessageInfo.class),
+    MESSAGE_DELETED("onMessageDeleted", ChatMessageInfo.class, boolean.class),
+    MESSAGE_STATUS("onMessageStatus", MessageInfo.class),
+    STATUS("onStatus", Collection.class),
+    NEW_STATUS("onNewStatus", ChatMessageInfo.class),
+    SOCKET_EVENT("onSocketEvent", SocketEvent.class),
+    MESSAGE_REPLY("onMessageReply", ChatMessageInfo.class, QuotedMessageInfo.class),
+    CONTACT_PICTURE_CHANGED("onProfilePictureChanged", Contact.class),
+    GROUP_PICTURE_CHANGED("onGroupPictureChanged", Chat.class),
+    NAME_CHANGED("onNameChanged", String.class, String.class),
+    ABOUT_CHANGED("onAboutChanged", String.class, String.class),
+    PROFILE_PICTURE_CHANGED("onProfilePictureChanged", URI.class, URI.class),
+    LOCALE_CHANGED("onLocaleChanged", String.class, String.class),
+    CONTACT_BLOCKED("onContactBlocked", Contact.class),
+    NEW_CONTACT("onNewContact", Contact.class),
+    PRIVACY_SETTING_CHANGED("onPrivacySettingChanged", PrivacySettingEntry.class, PrivacySettingEntry.class),
+    LINKED_DEVICES("onLinkedDevices", Collection.class),
+    REGISTRATION_CODE("onRegistrationCode", long.class),
+    CALL("onCall", Call.class);
+
+    // Computed once per listener class, so that registering many instances of the same class doesn't repeat the reflective lookups
+    private static final ClassValue<Set<ListenerEvent>> SUBSCRIPTIONS = new ClassValue<>() {
+        @Override
+        protected Set<ListenerEvent> computeValue(Class<?> type) {
+            var result = EnumSet.noneOf(ListenerEvent.class);
+            for (var event : values()) {
+                if (event.isOverriddenBy(type)) {
+                    result.add(event);
+                }
+            }
+
+            return Collections.unmodifiableSet(result);
+        }
+    };
+
+    private final List<Method> callbacks;
+
+    ListenerEvent(String name, Class<?>... parameters) {
+        try {
+            var withWhatsapp = new Class<?>[parameters.length + 1];
+            withWhatsapp[0] = Whatsapp.class;
+            System.arraycopy(parameters, 0, withWhatsapp, 1, parameters.length);
+            this.callbacks = List.of(Listener.class.getMethod(name, withWhatsapp), Listener.class.getMethod(name, parameters));
+        } catch (NoSuchMethodException exception) {
+            throw new ExceptionInInitializerError(exception);
+        }
+    }
+
+    /**
+     * Returns the events that a listener is subscribed to
+     *
+     * @param listener the non-null listener
+     * @return a non-null immutable set
+     */
+    public static Set<ListenerEvent> subscriptions(Listener listener) {
+        return SUBSCRIPTIONS.get(listener.getClass());
+    }
+
+    private boolean isOverriddenBy(Class<?> type) {
+        for (var callback : callbacks) {
+            try {
+                if (type.getMethod(callback.getName(), callback.getParameterTypes()).getDeclaringClass() != Listener.class) {
+                    return true;
+                }
+            } catch (NoSuchMethodException exception) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -1,6 +1,8 @@
 package it.auties.whatsapp.model.chat;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import it.auties.protobuf.annotation.ProtobufEnumIndex;
 import it.auties.protobuf.annotation.ProtobufMessageName;
 import it.auties.protobuf.annotation.ProtobufProperty;
@@ -19,12 +21,16 @@ import it.auties.whatsapp.model.sync.HistorySyncMessage;
 import it.auties.whatsapp.util.Clock;
 import it.auties.whatsapp.util.Messages;
 
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * A model class that represents a Chat. A chat can be of two types: a conversation with a contact
@@ -37,7 +43,8 @@ public final class Chat implements ProtobufMessage, JidProvider {
     private final Jid jid;
 
     @ProtobufProperty(index = 2, type = ProtobufType.OBJECT, repeated = true)
-    private final Messages<HistorySyncMessage> historySyncMessages;
+    @JsonIgnore
+    private volatile Messages<HistorySyncMessage> historySyncMessages;
 
     @ProtobufProperty(index = 3, type = ProtobufType.STRING)
     private final Jid newJid;
@@ -145,7 +152,61 @@ public final class Chat implements ProtobufMessage, JidProvider {
     @ProtobufProperty(index = 42, type = ProtobufType.STRING)
     private Jid lidJid;
 
-    private boolean update;
+    private volatile boolean update;
+
+    /**
+     * Loads the messages of this chat from where they were serialized, if they aren't kept in memory
+     */
+    @JsonIgnore
+    private volatile Supplier<? extends Collection<HistorySyncMessage>> historyLoader;
+
+    /**
+     * The messages of this chat after they were released, until they are collected
+     */
+    @JsonIgnore
+    private volatile SoftReference<Messages<HistorySyncMessage>> releasedHistory;
+
+    /**
+     * Whether the messages of this chat were accessed since they were last considered for release
+     */
+    @JsonIgnore
+    private volatile boolean historyAccessed;
+
+    /**
+     * Whether the messages of this chat couldn't be read from where they were serialized, in which case they must never be written back over them
+     */
+    @JsonIgnore
+    private volatile boolean historyLoadFailed;
+
+    /**
+     * The nullable listener that is notified when the name, the timestamp, the pin or the starred messages of this chat change
+     */
+    @JsonIgnore
+    private volatile IndexListener indexListener;
+
+    /**
+     * Loads the messages of this chat that were moved out of memory by the retention policy of the store
+     */
+    @JsonIgnore
+    private volatile Supplier<List<HistorySyncMessage>> archiveLoader;
+
+    /**
+     * The messages of this chat that were moved out of memory, after they were first read, until they are collected
+     */
+    @JsonIgnore
+    private volatile SoftReference<List<HistorySyncMessage>> archive;
+
+    /**
+     * The ids of the messages of this chat that were moved out of memory, or null if they weren't read yet
+     */
+    @JsonIgnore
+    private volatile Set<String> archivedIds;
+
+    /**
+     * The starred messages of this chat mapped by id, including the ones that aren't held in memory
+     * This index is written with the chat, so that starred messages can be listed without loading any message, and is only null if the chat was written before it existed, until its messages are loaded
+     */
+    private volatile ConcurrentHashMap<String, ChatMessageInfo> starredMessages;
 
     private final ConcurrentHashMap<Jid, ContactStatus> presences;
 
@@ -154,9 +215,9 @@ public final class Chat implements ProtobufMessage, JidProvider {
     private final Set<GroupPastParticipant> pastParticipants;
 
     @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
-    public Chat(Jid jid, Messages<HistorySyncMessage> historySyncMessages, Jid newJid, Jid oldJid, int unreadMessagesCount, boolean readOnly, boolean endOfHistoryTransfer, ChatEphemeralTimer ephemeralMessageDuration, long ephemeralMessagesToggleTimeSeconds, EndOfHistoryTransferType endOfHistoryTransferType, long timestampSeconds, String name, boolean notSpam, boolean archived, ChatDisappear disappearInitiator, boolean markedAsUnread, List<GroupParticipant> participants, byte[] token, long tokenTimestampSeconds, byte[] identityKey, int pinnedTimestampSeconds, ChatMute mute, ChatWallpaper wallpaper, MediaVisibility mediaVisibility, long tokenSenderTimestampSeconds, boolean suspended, boolean terminated, long foundationTimestampSeconds, Jid founder, String description, boolean support, boolean parentGroup, boolean defaultSubGroup, Jid parentGroupJid, String displayName, Jid phoneJid, boolean shareOwnPhoneNumber, boolean pnhDuplicateLidThread, Jid lidJid, ConcurrentHashMap<Jid, ContactStatus> presences, Set<Jid> participantsPreKeys, Set<GroupPastParticipant> pastParticipants) {
+    public Chat(Jid jid, @JsonProperty("historySyncMessages") Messages<HistorySyncMessage> historySyncMessages, Jid newJid, Jid oldJid, int unreadMessagesCount, boolean readOnly, boolean endOfHistoryTransfer, ChatEphemeralTimer ephemeralMessageDuration, long ephemeralMessagesToggleTimeSeconds, EndOfHistoryTransferType endOfHistoryTransferType, long timestampSeconds, String name, boolean notSpam, boolean archived, ChatDisappear disappearInitiator, boolean markedAsUnread, List<GroupParticipant> participants, byte[] token, long tokenTimestampSeconds, byte[] identityKey, int pinnedTimestampSeconds, ChatMute mute, ChatWallpaper wallpaper, MediaVisibility mediaVisibility, long tokenSenderTimestampSeconds, boolean suspended, boolean terminated, long foundationTimestampSeconds, Jid founder, String description, boolean support, boolean parentGroup, boolean defaultSubGroup, Jid parentGroupJid, String displayName, Jid phoneJid, boolean shareOwnPhoneNumber, boolean pnhDuplicateLidThread, Jid lidJid, ConcurrentHashMap<Jid, ContactStatus> presences, Set<Jid> participantsPreKeys, Set<GroupPastParticipant> pastParticipants) {
         this.jid = jid;
-        this.historySyncMessages = historySyncMessages;
+        this.historySyncMessages = historySyncMessages == null ? null : newHistory(historySyncMessages);
         this.newJid = newJid;
         this.oldJid = oldJid;
         this.unreadMessagesCount = unreadMessagesCount;
@@ -197,11 +258,12 @@ public final class Chat implements ProtobufMessage, JidProvider {
         this.presences = presences;
         this.participantsPreKeys = participantsPreKeys;
         this.pastParticipants = pastParticipants;
+        this.starredMessages = this.historySyncMessages == null ? null : indexStarredMessages(this.historySyncMessages);
     }
 
     public Chat(Jid jid, Messages<HistorySyncMessage> historySyncMessages, Jid newJid, Jid oldJid, int unreadMessagesCount, boolean readOnly, boolean endOfHistoryTransfer, ChatEphemeralTimer ephemeralMessageDuration, long ephemeralMessagesToggleTimeSeconds, EndOfHistoryTransferType endOfHistoryTransferType, long timestampSeconds, String name, boolean notSpam, boolean archived, ChatDisappear disappearInitiator, boolean markedAsUnread, List<GroupParticipant> participants, byte[] token, long tokenTimestampSeconds, byte[] identityKey, int pinnedTimestampSeconds, ChatMute mute, ChatWallpaper wallpaper, MediaVisibility mediaVisibility, long tokenSenderTimestampSeconds, boolean suspended, boolean terminated, long foundationTimestampSeconds, Jid founder, String description, boolean support, boolean parentGroup, boolean defaultSubGroup, Jid parentGroupJid, String displayName, Jid phoneJid, boolean shareOwnPhoneNumber, boolean pnhDuplicateLidThread, Jid lidJid) {
         this.jid = jid;
-        this.historySyncMessages = historySyncMessages;
+        this.historySyncMessages = historySyncMessages == null ? null : newHistory(historySyncMessages);
         this.newJid = newJid;
         this.oldJid = oldJid;
         this.unreadMessagesCount = unreadMessagesCount;
@@ -242,6 +304,7 @@ public final class Chat implements ProtobufMessage, JidProvider {
         this.presences = new ConcurrentHashMap<>();
         this.participantsPreKeys = ConcurrentHashMap.newKeySet();
         this.pastParticipants = ConcurrentHashMap.newKeySet();
+        this.starredMessages = this.historySyncMessages == null ? new ConcurrentHashMap<>() : indexStarredMessages(this.historySyncMessages);
     }
 
     /**
@@ -298,7 +361,7 @@ public final class Chat implements ProtobufMessage, JidProvider {
             return List.of();
         }
 
-        return historySyncMessages.stream()
+        return history().stream()
                 .limit(unreadMessagesCount())
                 .map(HistorySyncMessage::messageInfo)
                 .toList();
@@ -348,7 +411,7 @@ public final class Chat implements ProtobufMessage, JidProvider {
      * @return an optional
      */
     public Optional<ChatMessageInfo> newestMessage() {
-        return Optional.ofNullable(historySyncMessages.peekLast())
+        return Optional.ofNullable(history().peekLast())
                 .map(HistorySyncMessage::messageInfo);
     }
 
@@ -358,7 +421,7 @@ public final class Chat implements ProtobufMessage, JidProvider {
      * @return an optional
      */
     public Optional<ChatMessageInfo> oldestMessage() {
-        return Optional.ofNullable(historySyncMessages.peekFirst())
+        return Optional.ofNullable(history().peekFirst())
                 .map(HistorySyncMessage::messageInfo);
     }
 
@@ -435,7 +498,7 @@ public final class Chat implements ProtobufMessage, JidProvider {
     }
 
     private Optional<ChatMessageInfo> findMessageBy(Function<ChatMessageInfo, Boolean> filter, boolean newest) {
-        var descendingIterator = newest ? historySyncMessages.descendingIterator() : historySyncMessages.iterator();
+        var descendingIterator = newest ? history().descendingIterator() : history().iterator();
         while (descendingIterator.hasNext()) {
             var info = descendingIterator.next().messageInfo();
             if (filter.apply(info)) {
@@ -448,15 +511,78 @@ public final class Chat implements ProtobufMessage, JidProvider {
 
 
     /**
-     * Returns all the starred messages in this chat
+     * Returns all the starred messages in this chat, including the ones that aren't held in memory
+     * The messages of this chat are only loaded if it was written before starred messages were indexed
      *
      * @return a non-null list of messages
      */
     public Collection<ChatMessageInfo> starredMessages() {
-        return historySyncMessages.stream()
-                .map(HistorySyncMessage::messageInfo)
-                .filter(ChatMessageInfo::starred)
-                .toList();
+        var index = starredMessages;
+        if (index == null) {
+            history();
+            index = starredMessages;
+        }
+
+        return List.copyOf(index.values());
+    }
+
+    /**
+     * Updates the index of starred messages after the starred flag of a message of this chat changed
+     *
+     * @param info the message that changed
+     */
+    public void refreshStarredMessage(ChatMessageInfo info) {
+        var index = starredMessages;
+        if (index == null || info.id() == null) {
+            return;
+        }
+
+        if (info.starred()) {
+            index.put(info.id(), info);
+            onStarredMessageChange(info, true);
+        } else {
+            var removed = index.remove(info.id());
+            if (removed != null) {
+                onStarredMessageChange(removed, false);
+            }
+        }
+    }
+
+    private static ConcurrentHashMap<String, ChatMessageInfo> indexStarredMessages(Collection<HistorySyncMessage> messages) {
+        var results = new ConcurrentHashMap<String, ChatMessageInfo>();
+        for (var message : messages) {
+            var info = message.messageInfo();
+            if (info != null && info.starred() && info.id() != null) {
+                results.put(info.id(), info);
+            }
+        }
+
+        return results;
+    }
+
+    // The index is up to date even if the flags of the loaded messages aren't, as a message can be starred or unstarred while they are released
+    private void reconcileStarredMessages(Messages<HistorySyncMessage> messages) {
+        var index = starredMessages;
+        if (index == null) {
+            var result = indexStarredMessages(messages);
+            this.starredMessages = result;
+            result.values().forEach(info -> onStarredMessageChange(info, true));
+            return;
+        }
+
+        for (var message : messages) {
+            var info = message.messageInfo();
+            if (info == null || info.id() == null) {
+                continue;
+            }
+
+            var starred = index.containsKey(info.id());
+            info.setStarred(starred);
+            if (starred) {
+                index.put(info.id(), info);
+                onStarredMessageChange(info, true);
+            }
+        }
     }
 
     /**
@@ -491,8 +617,14 @@ public final class Chat implements ProtobufMessage, JidProvider {
      *
      * @param newMessages the non-null messages to add
      */
-    public void addMessages(Collection<HistorySyncMessage> newMessages) {
-        historySyncMessages.addAll(newMessages);
+    public synchronized void addMessages(Collection<HistorySyncMessage> newMessages) {
+        var history = history();
+        for (var message : newMessages) {
+            if (!isArchived(message) && history.add(message)) {
+                refreshStarredMessage(message.messageInfo());
+            }
+        }
+
         this.update = true;
     }
 
@@ -501,8 +633,8 @@ public final class Chat implements ProtobufMessage, JidProvider {
      *
      * @param oldMessages the non-null messages to add
      */
-    public void addOldMessages(Collection<HistorySyncMessage> oldMessages) {
-        oldMessages.forEach(historySyncMessages::addFirst);
+    public synchronized void addOldMessages(Collection<HistorySyncMessage> oldMessages) {
+        oldMessages.forEach(this::addOldMessage);
         this.update = true;
     }
 
@@ -513,12 +645,15 @@ public final class Chat implements ProtobufMessage, JidProvider {
      * @return whether the message was added
      */
     public boolean addNewMessage(ChatMessageInfo info) {
-        var sync = new HistorySyncMessage(info, historySyncMessages.size());
-        if (historySyncMessages.contains(sync)) {
-            return false;
+        synchronized (this) {
+            var history = history();
+            var sync = new HistorySyncMessage(info, history.size());
+            if (!history.add(sync)) {
+                return false;
+            }
+            refreshStarredMessage(info);
+            this.update = true;
         }
-        historySyncMessages.add(sync);
-        this.update = true;
         updateChatTimestamp(info);
         return true;
     }
@@ -529,12 +664,20 @@ public final class Chat implements ProtobufMessage, JidProvider {
      * @param info the message to add to the chat
      * @return whether the message was added
      */
-    public boolean addOldMessage(HistorySyncMessage info) {
-        historySyncMessages.addFirst(info);
+    public synchronized boolean addOldMessage(HistorySyncMessage info) {
+        if (!isArchived(info) && history().offerFirst(info)) {
+            refreshStarredMessage(info.messageInfo());
+        }
+
         this.update = true;
         return true;
     }
 
+    // History syncs can send again messages that were already archived, which would be archived a second time by the next trim
+    private boolean isArchived(HistorySyncMessage message) {
+        return archiveLoader != null && message.messageInfo() != null && hasArchivedMessage(message.messageInfo().id());
+    }
+
     /**
      * Remove a message from the chat
      *
@@ -542,15 +685,33 @@ public final class Chat implements ProtobufMessage, JidProvider {
      * @return whether the message was removed
      */
     public boolean removeMessage(ChatMessageInfo info) {
-        var result = historySyncMessages.removeIf(entry -> Objects.equals(entry.messageInfo().id(), info.id()));
-        if (result) {
-            this.update = true;
+        boolean result;
+        synchronized (this) {
+            var history = history();
+            result = history.findById(info.id())
+                    .map(history::remove)
+                    .orElse(false);
+            if (result) {
+                unindexStarredMessage(info.id());
+                this.update = true;
+            }
         }
 
         refreshChatTimestamp();
         return result;
     }
 
+    /**
+     * Queries the message with the provided id among the ones held in memory
+     *
+     * @param id the id to search
+     * @return a non-null optional
+     */
+    public Optional<ChatMessageInfo> findMessageById(String id) {
+        return history().findById(id)
+                .map(HistorySyncMessage::messageInfo);
+    }
+
     /**
      * Remove a message from the chat
      *
@@ -558,11 +719,37 @@ public final class Chat implements ProtobufMessage, JidProvider {
      * @return whether the message was removed
      */
     public boolean removeMessage(Predicate<? super ChatMessageInfo> predicate) {
-        var result = historySyncMessages.removeIf(entry -> predicate.test(entry.messageInfo()));
+        boolean result;
+        synchronized (this) {
+            result = history().removeIf(entry -> {
+                if (!predicate.test(entry.messageInfo())) {
+                    return false;
+                }
+
+                unindexStarredMessage(entry.messageInfo().id());
+                return true;
+            });
+            if (result) {
+                this.update = true;
+            }
+        }
+
         refreshChatTimestamp();
         return result;
     }
 
+    private void unindexStarredMessage(String id) {
+        var index = starredMessages;
+        if (index == null || id == null) {
+            return;
+        }
+
+        var removed = index.remove(id);
+        if (removed != null) {
+            onStarredMessageChange(removed, false);
+        }
+    }
+
     private void refreshChatTimestamp() {
         var message = newestMessage();
         if (message.isEmpty()) {
@@ -588,24 +775,178 @@ public final class Chat implements ProtobufMessage, JidProvider {
 
         this.timestampSeconds = newTimestamp;
         this.update = true;
+        onIndexChange();
     }
 
     /**
      * Removes all messages from the chat
      */
-    public void removeMessages() {
-        historySyncMessages.clear();
+    public synchronized void removeMessages() {
+        history().clear();
+        var index = starredMessages;
+        if (index != null) {
+            index.values().forEach(info -> onStarredMessageChange(info, false));
+            index.clear();
+        }
+
         this.update = true;
     }
 
     /**
-     * Returns an immutable list of messages wrapped in history syncs
+     * Returns an immutable list of messages wrapped in history syncs, including the ones that were archived
      * This is useful for the proto
      *
      * @return a non-null collection
      */
     public Collection<HistorySyncMessage> messages() {
-        return Collections.unmodifiableCollection(historySyncMessages);
+        var archived = archivedMessages();
+        if (archived.isEmpty()) {
+            return Collections.unmodifiableCollection(history());
+        }
+
+        // A message can be in both if the process stopped after it was archived but before the history was written again
+        var history = history();
+        var result = new ArrayList<HistorySyncMessage>(archived.size() + history.size());
+        for (var message : archived) {
+            if (message.messageInfo() == null || history.findById(message.messageInfo().id()).isEmpty()) {
+                result.add(message);
+            }
+        }
+        result.addAll(history);
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the messages of this chat that were moved out of memory by the retention policy of the store, oldest first
+     * These messages are read once and kept as long as there is enough memory
+     *
+     * @return a non-null list
+     */
+    public List<HistorySyncMessage> archivedMessages() {
+        var cached = archive == null ? null : archive.get();
+        if (cached != null) {
+            return cached;
+        }
+
+        synchronized (this) {
+            cached = archive == null ? null : archive.get();
+            if (cached != null) {
+                return cached;
+            }
+
+            var loader = archiveLoader;
+            if (loader == null) {
+                return List.of();
+            }
+
+            var result = List.copyOf(loader.get());
+            var ids = ConcurrentHashMap.<String>newKeySet();
+            result.stream()
+                    .map(message -> message.messageInfo().id())
+                    .filter(Objects::nonNull)
+                    .forEach(ids::add);
+            this.archivedIds = ids;
+            this.archive = new SoftReference<>(result);
+            return result;
+        }
+    }
+
+    /**
+     * Returns whether a message of this chat was moved out of memory by the retention policy of the store
+     * Only the ids of these messages are kept once they are read, so this method doesn't read them again
+     *
+     * @param id the id of the message
+     * @return a boolean
+     */
+    public boolean hasArchivedMessage(String id) {
+        var ids = archivedIds;
+        if (ids == null) {
+            archivedMessages();
+            ids = archivedIds;
+        }
+
+        return ids != null && id != null && ids.contains(id);
+    }
+
+    /**
+     * Sets how the messages of this chat that were moved out of memory can be read
+     * The messages that were already read are kept, as they are updated by {@link #releaseArchived(List)}
+     *
+     * @param archiveLoader the non-null loader
+     */
+    public void setArchiveLoader(Supplier<List<HistorySyncMessage>> archiveLoader) {
+        this.archiveLoader = archiveLoader;
+    }
+
+    /**
+     * Returns the oldest messages of this chat that exceed a limit or that were sent before a timestamp.
+     * The messages are kept in memory until they are archived and released using {@link #releaseArchived(List)}.
+     * Messages that aren't loaded are left untouched.
+     *
+     * @param limit     the maximum number of messages to keep, or a non-positive value if there is no limit
+     * @param retention how long messages are kept, or null if there is no limit
+     * @return the messages to archive, oldest first
+     */
+    public List<HistorySyncMessage> trimHistory(int limit, Duration retention) {
+        var history = historySyncMessages;
+        if (history == null || (limit <= 0 && retention == null)) {
+            return List.of();
+        }
+
+        var minTimestampSeconds = retention == null ? 0 : Instant.now().minus(retention).getEpochSecond();
+        var remaining = history.size();
+        var results = new ArrayList<HistorySyncMessage>();
+        for (var oldest : history) {
+            var overLimit = limit > 0 && remaining > limit;
+            var expired = oldest.messageInfo().timestampSeconds().orElse(Long.MAX_VALUE) < minTimestampSeconds;
+            if (!overLimit && !expired) {
+                break;
+            }
+
+            remaining--;
+            results.add(oldest);
+        }
+
+        if (!results.isEmpty()) {
+            this.update = true;
+        }
+
+        return results;
+    }
+
+    /**
+     * Removes from memory messages that were returned by {@link #trimHistory(int, Duration)} once they were archived
+     *
+     * @param messages the non-null messages that were archived
+     */
+    public synchronized void releaseArchived(List<HistorySyncMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        var history = historySyncMessages;
+        if (history != null) {
+            history.removeAll(messages);
+        }
+
+        var ids = archivedIds;
+        if (ids == null) {
+            return;
+        }
+
+        var added = messages.stream()
+                .filter(message -> message.messageInfo().id() != null && ids.add(message.messageInfo().id()))
+                .toList();
+        var cached = archive == null ? null : archive.get();
+        if (cached == null) {
+            return;
+        }
+
+        var result = new ArrayList<HistorySyncMessage>(cached.size() + added.size());
+        result.addAll(cached);
+        result.addAll(added);
+        result.sort(Comparator.comparingLong(entry -> entry.messageInfo().timestampSeconds().orElse(0L)));
+        this.archive = new SoftReference<>(Collections.unmodifiableList(result));
     }
 
     /**
@@ -786,7 +1127,104 @@ public final class Chat implements ProtobufMessage, JidProvider {
     }
 
     public Collection<HistorySyncMessage> historySyncMessages() {
-        return historySyncMessages;
+        return history();
+    }
+
+    // Deserializers don't know how messages are identified, so they are copied into a collection that indexes them by id
+    private static Messages<HistorySyncMessage> newHistory(Collection<HistorySyncMessage> messages) {
+        return new Messages<>(message -> message.messageInfo() == null ? null : message.messageInfo().id(), messages);
+    }
+
+    private Messages<HistorySyncMessage> history() {
+        historyAccessed = true;
+        var result = historySyncMessages;
+        if (result != null) {
+            return result;
+        }
+
+        synchronized (this) {
+            if (historySyncMessages != null) {
+                return historySyncMessages;
+            }
+
+            var released = releasedHistory == null ? null : releasedHistory.get();
+            if (released != null) {
+                this.historySyncMessages = released;
+            } else {
+                var loaded = newHistory(loadHistory());
+                reconcileStarredMessages(loaded);
+                this.historySyncMessages = loaded;
+            }
+
+            this.releasedHistory = null;
+            return historySyncMessages;
+        }
+    }
+
+    // A history that can't be read is replaced by an empty one, so that the chat keeps working, but it's flagged so that it doesn't overwrite the serialized one
+    private Collection<HistorySyncMessage> loadHistory() {
+        var loader = historyLoader;
+        if (loader == null) {
+            return List.of();
+        }
+
+        try {
+            return loader.get();
+        } catch (UncheckedIOException exception) {
+            this.historyLoadFailed = true;
+            return List.of();
+        }
+    }
+
+    /**
+     * Returns whether the messages of this chat couldn't be read from where they were serialized
+     * If this is the case, the messages held in memory are incomplete and must not be written over the serialized ones
+     *
+     * @return a boolean
+     */
+    public boolean hasHistoryLoadFailed() {
+        return historyLoadFailed;
+    }
+
+    /**
+     * Sets how the messages of this chat can be loaded after they were released from memory.
+     * If the messages weren't deserialized with this chat, they will be loaded on first access.
+     *
+     * @param historyLoader the non-null loader
+     */
+    public void setHistoryLoader(Supplier<? extends Collection<HistorySyncMessage>> historyLoader) {
+        this.historyLoader = historyLoader;
+    }
+
+    /**
+     * Returns whether the messages of this chat are currently held in memory
+     *
+     * @return a boolean
+     */
+    public boolean hasLoadedHistory() {
+        return historySyncMessages != null;
+    }
+
+    /**
+     * Releases the messages of this chat if they weren't accessed since the last call to this method and have no pending changes.
+     * Released messages are kept as long as there is enough memory and loaded again if they are collected.
+     * Messages are only changed while holding the monitor of this chat, so they can't be released while a change is in progress.
+     *
+     * @return whether the messages were released
+     */
+    public synchronized boolean releaseHistory() {
+        if (historyLoader == null || historySyncMessages == null || update || historyLoadFailed) {
+            return false;
+        }
+
+        if (historyAccessed) {
+            this.historyAccessed = false;
+            return false;
+        }
+
+        this.releasedHistory = new SoftReference<>(historySyncMessages);
+        this.historySyncMessages = null;
+        return true;
     }
 
     public Optional<Jid> newJid() {
@@ -984,15 +1422,69 @@ public final class Chat implements ProtobufMessage, JidProvider {
     public Chat setTimestampSeconds(long timestampSeconds) {
         this.timestampSeconds = timestampSeconds;
         this.update = true;
+        onIndexChange();
         return this;
     }
 
     public Chat setName(String name) {
         this.name = name;
         this.update = true;
+        onIndexChange();
+        return this;
+    }
+
+    /**
+     * Sets the listener that is notified when the name, the timestamp, the pin or the starred messages of this chat change
+     * The listener is notified right away of the starred messages that are already indexed
+     *
+     * @param indexListener the nullable listener
+     * @return the same instance
+     */
+    public Chat setIndexListener(IndexListener indexListener) {
+        this.indexListener = indexListener;
+        var index = starredMessages;
+        if (indexListener != null && index != null) {
+            index.values().forEach(info -> indexListener.onStarredMessageChange(this, info, true));
+        }
+
         return this;
     }
 
+    private void onIndexChange() {
+        var listener = indexListener;
+        if (listener != null) {
+            listener.onIndexChange(this);
+        }
+    }
+
+    private void onStarredMessageChange(ChatMessageInfo info, boolean starred) {
+        var listener = indexListener;
+        if (listener != null) {
+            listener.onStarredMessageChange(this, info, starred);
+        }
+    }
+
+    /**
+     * A listener that keeps an index of chats up to date
+     */
+    public interface IndexListener {
+        /**
+         * Called when the name, the timestamp or the pin of a chat changes
+         *
+         * @param chat the chat that changed
+         */
+        void onIndexChange(Chat chat);
+
+        /**
+         * Called when a message of a chat is starred, unstarred or removed
+         *
+         * @param chat    the chat of the message
+         * @param info    the message that changed
+         * @param starred whether the message is starred
+         */
+        void onStarredMessageChange(Chat chat, ChatMessageInfo info, boolean starred);
+    }
+
     public Chat setNotSpam(boolean notSpam) {
         this.notSpam = notSpam;
         this.update = true;
@@ -1038,6 +1530,7 @@ public final class Chat implements ProtobufMessage, JidProvider {
     public Chat setPinnedTimestampSeconds(int pinnedTimestampSeconds) {
         this.pinnedTimestampSeconds = pinnedTimestampSeconds;
         this.update = true;
+        onIndexChange();
         return this;
     }
 
@@ -1116,6 +1609,7 @@ public final class Chat implements ProtobufMessage, JidProvider {
     public Chat setDisplayName(String displayName) {
         this.displayName = displayName;
         this.update = true;
+        onIndexChange();
         return this;
     }
 
@@ -1147,6 +1641,11 @@ public final class Chat implements ProtobufMessage, JidProvider {
         return update;
     }
 
+    public Chat setUpdate(boolean update) {
+        this.update = update;
+        return this;
+    }
+
     /**
      * The constants of this enumerated type describe the various types of transfers that can regard a
      * chat history sync
@@ -2,6 +2,7 @@ package it.auties.whatsapp.model.contact;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import it.auties.whatsapp.api.Whatsapp;
 import it.auties.whatsapp.model.chat.Chat;
 import it.auties.whatsapp.model.jid.Jid;
@@ -11,6 +12,7 @@ import it.auties.whatsapp.util.Clock;
 import java.time.ZonedDateTime;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 /**
  * A model class that represents a Contact. This class is only a model, this means that changing its
@@ -61,6 +63,12 @@ public final class Contact implements JidProvider {
      */
     private boolean blocked;
 
+    /**
+     * The nullable listener that is notified when one of the names of this contact changes
+     */
+    @JsonIgnore
+    private volatile Consumer<Contact> renameListener;
+
     public Contact(Jid jid) {
         this.jid = jid;
         this.lastKnownPresence = ContactStatus.UNAVAILABLE;
@@ -123,19 +131,40 @@ public final class Contact implements JidProvider {
 
     public Contact setChosenName(String chosenName) {
         this.chosenName = chosenName;
+        onRename();
         return this;
     }
 
     public Contact setFullName(String fullName) {
         this.fullName = fullName;
+        onRename();
         return this;
     }
 
     public Contact setShortName(String shortName) {
         this.shortName = shortName;
+        onRename();
         return this;
     }
 
+    /**
+     * Sets the listener that is notified when one of the names of this contact changes
+     *
+     * @param renameListener the nullable listener
+     * @return the same instance
+     */
+    public Contact setRenameListener(Consumer<Contact> renameListener) {
+        this.renameListener = renameListener;
+        return this;
+    }
+
+    private void onRename() {
+        var listener = renameListener;
+        if (listener != null) {
+            listener.accept(this);
+        }
+    }
+
     public Contact setLastKnownPresence(ContactStatus lastKnownPresence) {
         this.lastKnownPresence = lastKnownPresence;
         return this;
@@ -5,13 +5,30 @@ import com.fasterxml.jackson.annotation.JsonValue;
 import it.auties.protobuf.annotation.ProtobufConverter;
 import it.auties.whatsapp.model.signal.session.SessionAddress;
 
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A model class that represents a jid. This class is only a model, this means that changing its
  * values will have no real effect on WhatsappWeb's servers.
  */
-public record Jid(String user, JidServer server, int device, int agent) implements JidProvider {
+public final class Jid implements JidProvider {
+    /**
+     * The maximum number of jids that are interned for each server before the cache is reset
+     */
+    private static final int INTERNED_MAX_SIZE = 8192;
+
+    private static final Map<JidServer, ConcurrentHashMap<String, Jid>> INTERNED = createInternedCache();
+
+    private final String user;
+    private final JidServer server;
+    private final int device;
+    private final int agent;
+    private final int hashCode;
+    private String string;
+
     /**
      * Default constructor
      */
@@ -20,6 +37,52 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         this.server = server;
         this.device = device;
         this.agent = agent;
+        this.hashCode = 31 * (31 * (31 * Objects.hashCode(this.user) + Objects.hashCode(server)) + device) + agent;
+    }
+
+    private static Map<JidServer, ConcurrentHashMap<String, Jid>> createInternedCache() {
+        var cache = new EnumMap<JidServer, ConcurrentHashMap<String, Jid>>(JidServer.class);
+        for (var server : JidServer.values()) {
+            cache.put(server, new ConcurrentHashMap<>());
+        }
+
+        return cache;
+    }
+
+    /**
+     * Returns the user of this jid
+     *
+     * @return a nullable string
+     */
+    public String user() {
+        return user;
+    }
+
+    /**
+     * Returns the server of this jid
+     *
+     * @return a non-null server
+     */
+    public JidServer server() {
+        return server;
+    }
+
+    /**
+     * Returns the device of this jid
+     *
+     * @return an unsigned int
+     */
+    public int device() {
+        return device;
+    }
+
+    /**
+     * Returns the agent of this jid
+     *
+     * @return an unsigned int
+     */
+    public int agent() {
+        return agent;
     }
 
     /**
@@ -68,6 +131,34 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         return new Jid(simpleUserAgent[0], server, 0, agent);
     }
 
+    /**
+     * Constructs a new ContactId for a user from a jid and a custom server, reusing a previous instance if possible.
+     * This method should be preferred over {@link #of(String, JidServer)} when the same jids are parsed over and over.
+     *
+     * @param jid    the nullable jid of the user
+     * @param server the non-null custom server
+     * @return a non-null contact jid
+     */
+    public static Jid ofInterned(String jid, JidServer server) {
+        if (jid == null) {
+            return of(null, server);
+        }
+
+        var cache = INTERNED.get(server);
+        var cached = cache.get(jid);
+        if (cached != null) {
+            return cached;
+        }
+
+        var result = of(jid, server);
+        if (cache.size() >= INTERNED_MAX_SIZE) {
+            cache.clear();
+        }
+
+        cache.put(jid, result);
+        return result;
+    }
+
     /**
      * Parses a nullable jid to the Whatsapp Jid Format
      *
@@ -78,6 +169,17 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         if (jid == null) {
             return null;
         }
+        var separator = jid.indexOf('@');
+        if (separator == -1) {
+            return jid;
+        }
+        if (separator == jid.lastIndexOf('@')) {
+            for (var server : JidServer.values()) {
+                if (jid.startsWith(server.address(), separator + 1) && jid.length() == separator + 1 + server.address().length()) {
+                    return jid.substring(0, separator);
+                }
+            }
+        }
         for (var server : JidServer.values()) {
             jid = jid.replace("@%s".formatted(server), "");
         }
@@ -209,6 +311,10 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
      * @return a non-null jid
      */
     public Jid withoutDevice() {
+        if (device == 0 && agent == 0) {
+            return this;
+        }
+
         return of(user(), server());
     }
 
@@ -229,11 +335,30 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
     @JsonValue
     @Override
     public String toString() {
-        var user = Objects.requireNonNullElse(user(), "");
-        var agent = agent() != 0 ? "_%s".formatted(agent()) : "";
-        var device = device() != 0 ? ":%s".formatted(device()) : "";
-        var leading = "%s%s%s".formatted(user, agent, device);
-        return leading.isEmpty() ? server().toString() : "%s@%s".formatted(leading, server());
+        var result = string;
+        if (result == null) {
+            this.string = result = createString();
+        }
+
+        return result;
+    }
+
+    private String createString() {
+        var builder = new StringBuilder();
+        if (user != null) {
+            builder.append(user);
+        }
+        if (agent != 0) {
+            builder.append('_').append(agent);
+        }
+        if (device != 0) {
+            builder.append(':').append(device);
+        }
+        if (builder.isEmpty()) {
+            return server.toString();
+        }
+
+        return builder.append('@').append(server).toString();
     }
 
     /**
@@ -273,8 +398,18 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         return agent != 0;
     }
 
+    @Override
+    public boolean equals(Object other) {
+        return this == other || other instanceof Jid that
+                && hashCode == that.hashCode
+                && device == that.device
+                && agent == that.agent
+                && server == that.server
+                && Objects.equals(user, that.user);
+    }
+
     @Override
     public int hashCode() {
-        return Objects.hashCode(toString());
+        return hashCode;
     }
 }
\ No newline at end of file
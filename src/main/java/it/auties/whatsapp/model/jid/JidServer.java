@@ -3,8 +3,6 @@ package it.auties.whatsapp.model.jid;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
 
-import java.util.Arrays;
-
 /**
  * The constants of this enumerated type describe the various servers that a jid might be linked
  * to
@@ -45,12 +43,21 @@ public enum JidServer {
         this.address = address;
     }
 
+    private static final JidServer[] VALUES = values();
+
     @JsonCreator
     public static JidServer of(String address) {
-        return Arrays.stream(values())
-                .filter(entry -> address != null && address.endsWith(entry.address()))
-                .findFirst()
-                .orElse(WHATSAPP);
+        if (address == null) {
+            return WHATSAPP;
+        }
+
+        for (var entry : VALUES) {
+            if (address.endsWith(entry.address())) {
+                return entry;
+            }
+        }
+
+        return WHATSAPP;
     }
 
     public String address() {
@@ -7,10 +7,8 @@ import it.auties.protobuf.model.ProtobufMessage;
 import it.auties.protobuf.model.ProtobufType;
 import it.auties.whatsapp.model.info.ChatMessageInfo;
 import it.auties.whatsapp.model.jid.Jid;
-import it.auties.whatsapp.util.BytesHelper;
+import it.auties.whatsapp.util.IdGenerator;
 
-import java.util.HexFormat;
-import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -20,6 +18,8 @@ import java.util.Optional;
  */
 @ProtobufMessageName("MessageKey")
 public final class ChatMessageKey implements ProtobufMessage {
+    private static final IdGenerator ID_GENERATOR = new IdGenerator();
+
     @ProtobufProperty(index = 1, type = ProtobufType.STRING)
     private Jid chatJid;
 
@@ -50,13 +50,13 @@ public final class ChatMessageKey implements ProtobufMessage {
 
     /**
      * Generates a random message id
+     * Ids share a random prefix and are distinguished by a counter, so that generating one is cheap when many threads send at once
+     * The prefix is shared by every session in this process, so {@link it.auties.whatsapp.controller.Store#randomId()} should be used instead when a session is available
      *
      * @return a non-null String
      */
     public static String randomId() {
-        return HexFormat.of()
-                .formatHex(BytesHelper.random(8))
-                .toUpperCase(Locale.ROOT);
+        return ID_GENERATOR.next();
     }
 
     public Jid chatJid() {
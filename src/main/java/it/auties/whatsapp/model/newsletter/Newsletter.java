@@ -1,6 +1,7 @@
 package it.auties.whatsapp.model.newsletter;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import it.auties.whatsapp.model.info.NewsletterMessageInfo;
 import it.auties.whatsapp.model.jid.Jid;
@@ -9,8 +10,11 @@ import it.auties.whatsapp.util.Messages;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class Newsletter implements JidProvider {
     private final Jid jid;
@@ -18,6 +22,10 @@ public final class Newsletter implements JidProvider {
     private NewsletterMetadata metadata;
     private final NewsletterViewerMetadata viewerMetadata;
     private final Messages<NewsletterMessageInfo> messages;
+    @JsonIgnore
+    private final Map<Integer, NewsletterMessageInfo> messagesByServerId;
+    @JsonIgnore
+    private volatile boolean update;
 
     @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
     Newsletter(
@@ -30,13 +38,15 @@ public final class Newsletter implements JidProvider {
             @JsonProperty("viewer_metadata")
             NewsletterViewerMetadata viewerMetadata,
             @JsonProperty("messages")
-            Messages<NewsletterMessageInfo> messages
+            Collection<NewsletterMessageInfo> messages
     ) {
         this.jid = jid;
         this.state = state;
         this.metadata = metadata;
         this.viewerMetadata = viewerMetadata;
-        this.messages = Objects.requireNonNullElseGet(messages, Messages::new);
+        this.messages = new Messages<>(NewsletterMessageInfo::id, Objects.requireNonNullElseGet(messages, List::of));
+        this.messagesByServerId = new ConcurrentHashMap<>();
+        this.messages.forEach(message -> messagesByServerId.put(message.serverId(), message));
     }
 
     public Newsletter(Jid jid, NewsletterState state, NewsletterMetadata metadata, NewsletterViewerMetadata viewerMetadata) {
@@ -44,19 +54,48 @@ public final class Newsletter implements JidProvider {
         this.state = state;
         this.metadata = metadata;
         this.viewerMetadata = viewerMetadata;
-        this.messages = new Messages<>();
+        this.messages = new Messages<>(NewsletterMessageInfo::id);
+        this.messagesByServerId = new ConcurrentHashMap<>();
     }
 
     public void addMessage(NewsletterMessageInfo message) {
-        this.messages.add(message);
+        if (this.messages.add(message)) {
+            messagesByServerId.put(message.serverId(), message);
+        }
+        this.update = true;
     }
 
     public boolean removeMessage(NewsletterMessageInfo message) {
-        return this.messages.remove(message);
+        var result = this.messages.remove(message);
+        if (result) {
+            messagesByServerId.remove(message.serverId(), message);
+            this.update = true;
+        }
+
+        return result;
     }
 
     public void addMessages(Collection<NewsletterMessageInfo> messages) {
-        this.messages.addAll(messages);
+        messages.forEach(this::addMessage);
+    }
+
+    /**
+     * Queries the message whose id, or server id, matches the one provided
+     *
+     * @param id the id to search
+     * @return a non-null optional
+     */
+    public Optional<NewsletterMessageInfo> findMessageById(String id) {
+        return messages.findById(id)
+                .or(() -> findMessageByServerId(id));
+    }
+
+    private Optional<NewsletterMessageInfo> findMessageByServerId(String id) {
+        try {
+            return id == null ? Optional.empty() : Optional.ofNullable(messagesByServerId.get(Integer.parseInt(id)));
+        } catch (NumberFormatException exception) {
+            return Optional.empty();
+        }
     }
 
     public Collection<NewsletterMessageInfo> messages() {
@@ -86,11 +125,13 @@ public final class Newsletter implements JidProvider {
 
     public Newsletter setState(NewsletterState state) {
         this.state = state;
+        this.update = true;
         return this;
     }
 
     public Newsletter setMetadata(NewsletterMetadata metadata) {
         this.metadata = metadata;
+        this.update = true;
         return this;
     }
 
@@ -102,6 +143,15 @@ public final class Newsletter implements JidProvider {
         return Optional.ofNullable(viewerMetadata);
     }
 
+    public boolean hasUpdate() {
+        return update;
+    }
+
+    public Newsletter setUpdate(boolean update) {
+        this.update = update;
+        return this;
+    }
+
     @Override
     public boolean equals(Object obj) {
         return obj instanceof Newsletter that && Objects.equals(this.jid(), that.jid());
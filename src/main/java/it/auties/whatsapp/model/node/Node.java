@@ -335,11 +335,34 @@ public record Node(String description, Attributes attributes, Object content) {
      * @throws NullPointerException if no valid jid can be found
      */
     public SocketRequest toRequest(Function<Node, Boolean> filter, boolean response) {
+        return toRequest(filter, response, false);
+    }
+
+    /**
+     * Constructs a new request from this node
+     *
+     * @param trace whether the code that sent the request should be recorded
+     * @return a non null request
+     * @throws NullPointerException if no valid jid can be found
+     */
+    public SocketRequest toRequest(Function<Node, Boolean> filter, boolean response, boolean trace) {
+        return toRequest(filter, response, trace, ChatMessageKey::randomId);
+    }
+
+    /**
+     * Constructs a new request from this node
+     *
+     * @param trace       whether the code that sent the request should be recorded
+     * @param idGenerator the non-null generator of the id of the request, if it doesn't have one
+     * @return a non null request
+     * @throws NullPointerException if no valid jid can be found
+     */
+    public SocketRequest toRequest(Function<Node, Boolean> filter, boolean response, boolean trace, Supplier<String> idGenerator) {
         if (response && id() == null) {
-            attributes.put("id", ChatMessageKey.randomId());
+            attributes.put("id", idGenerator.get());
         }
 
-        return SocketRequest.of(this, filter);
+        return SocketRequest.of(this, filter, trace);
     }
 
     /**
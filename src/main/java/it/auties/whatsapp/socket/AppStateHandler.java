@@ -27,9 +27,8 @@ import it.auties.whatsapp.util.Validate;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -43,19 +42,22 @@ class AppStateHandler {
 
     private final SocketHandler socketHandler;
     private final Map<PatchType, Integer> attempts;
-    private ExecutorService executor;
+    private CompletableFuture<?> tasks;
+    private volatile int generation;
 
     protected AppStateHandler(SocketHandler socketHandler) {
         this.socketHandler = socketHandler;
         this.attempts = new HashMap<>();
+        this.tasks = CompletableFuture.completedFuture(null);
     }
 
-    private ExecutorService getOrCreateAppService() {
-        if (executor == null || executor.isShutdown()) {
-            executor = Executors.newSingleThreadExecutor();
-        }
-
-        return executor;
+    // Tasks are chained on the previous one instead of being run on a dedicated thread, so that they still run one at a time without blocking
+    private synchronized <T> CompletableFuture<T> enqueue(Supplier<CompletableFuture<T>> task) {
+        var taskGeneration = generation;
+        var result = tasks.handle((ignored, throwable) -> null)
+                .thenCompose(ignored -> taskGeneration == generation ? task.get() : CompletableFuture.<T>failedFuture(new CancellationException("App state handler was disposed")));
+        this.tasks = result;
+        return result;
     }
 
     protected CompletableFuture<Void> push(Jid jid, List<PatchRequest> patches) {
@@ -78,17 +80,7 @@ class AppStateHandler {
     }
 
     private CompletableFuture<Void> runPushTask(Supplier<CompletableFuture<?>> task) {
-        var executor = getOrCreateAppService();
-        var future = new CompletableFuture<Void>();
-        executor.execute(() -> {
-            try {
-                task.get().join();
-                future.complete(null);
-            } catch (Throwable throwable) {
-                future.completeExceptionally(throwable);
-            }
-        });
-        return future;
+        return enqueue(() -> task.get().thenRun(() -> {}));
     }
 
     private CompletableFuture<Void> sendPush(Jid jid, List<PatchRequest> patches, boolean readPatches) {
@@ -214,9 +206,12 @@ class AppStateHandler {
             return;
         }
 
-        getOrCreateAppService().execute(() -> pullUninterruptedly(jid.get(), Set.of(patchTypes))
-                .thenAcceptAsync(success -> onPull(false, success))
-                .exceptionallyAsync(exception -> onPullError(false, exception)));
+        enqueue(() -> {
+            pullUninterruptedly(jid.get(), Set.of(patchTypes))
+                    .thenAcceptAsync(success -> onPull(false, success))
+                    .exceptionallyAsync(exception -> onPullError(false, exception));
+            return CompletableFuture.completedFuture(null);
+        });
     }
 
     protected CompletableFuture<Void> pullInitial() {
@@ -460,6 +455,7 @@ class AppStateHandler {
             case StarAction starAction -> targetChatMessage.ifPresent(message -> {
                 var starred = starAction.starred();
                 message.setStarred(starred);
+                socketHandler.store().markUpdated(message);
             });
             case ArchiveChatAction archiveChatAction -> targetChat.ifPresent(chat -> {
                 var archived = archiveChatAction.archived();
@@ -642,8 +638,9 @@ class AppStateHandler {
 
     protected void dispose() {
         attempts.clear();
-        if (executor != null && !executor.isShutdown()) {
-            executor.shutdownNow();
+        synchronized (this) {
+            this.generation++;
+            this.tasks = CompletableFuture.completedFuture(null);
         }
     }
 
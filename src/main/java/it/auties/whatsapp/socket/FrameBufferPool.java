@@ -0,0 +1,36 @@
+package it.auties.whatsapp.socket;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A small pool of buffers used to build outgoing frames.
+ * Buffers are borrowed while a frame is encoded, encrypted and sent, and returned once the socket has consumed them.
+ */
+final class FrameBufferPool {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private final ArrayBlockingQueue<byte[]> buffers;
+
+    FrameBufferPool() {
+        this.buffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    }
+
+    byte[] acquire(int length) {
+        var buffer = buffers.poll();
+        if (buffer != null && buffer.length >= length) {
+            return buffer;
+        }
+
+        return new byte[Math.max(length, DEFAULT_BUFFER_SIZE)];
+    }
+
+    void release(byte[] buffer) {
+        if (buffer.length > MAX_POOLED_BUFFER_SIZE) {
+            return;
+        }
+
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,248 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.api.ListenerDelivery;
+import it.auties.whatsapp.api.ListenerDelivery.OverflowPolicy;
+import it.auties.whatsapp.api.ListenerQueueMetrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of events for a single listener, which are delivered on an executor one at a time and in the order they were offered.
+ * The queue doesn't hold a thread while it's empty: a drain task is submitted when the first event arrives, and it returns once the queue is empty.
+ * Events whose sender waits for them to be delivered are never discarded: they are run on the thread that finds the executor shut down instead.
+ */
+final class ListenerQueue {
+    // The drain task yields its thread after this many events, so that a busy listener doesn't starve the others when the executor is bounded
+    private static final int DRAIN_BATCH = 64;
+
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final ArrayDeque<Entry> entries;
+    private final Map<Object, Entry> coalescable;
+    private final ReentrantLock lock;
+    private final Condition notFull;
+    private boolean draining;
+    private volatile Thread drainer;
+    private int peakDepth;
+    private long delivered;
+    private long dropped;
+    private long coalesced;
+
+    ListenerQueue(Executor executor, ListenerDelivery delivery) {
+        this.executor = executor;
+        this.capacity = delivery.capacity();
+        this.overflowPolicy = delivery.overflowPolicy();
+        this.entries = new ArrayDeque<>();
+        this.coalescable = new HashMap<>();
+        this.lock = new ReentrantLock();
+        this.notFull = lock.newCondition();
+    }
+
+    /**
+     * Queues an event
+     *
+     * @param key  the key used to coalesce the event with the one that is still queued with the same key, or null if it can't be coalesced
+     * @param task the non-null task that delivers the event
+     */
+    void offer(Object key, Runnable task) {
+        enqueue(key, task, false);
+    }
+
+    /**
+     * Queues an event whose sender waits for it to be delivered
+     * The event is never discarded to make room for others, and it's run on the calling thread if the executor was shut down
+     *
+     * @param task the non-null task that delivers the event
+     */
+    void offerSync(Runnable task) {
+        enqueue(null, task, true);
+    }
+
+    private void enqueue(Object key, Runnable task, boolean sync) {
+        List<Runnable> rejected;
+        lock.lock();
+        try {
+            if (key != null && overflowPolicy == OverflowPolicy.COALESCE_PRESENCE) {
+                var pending = coalescable.get(key);
+                if (pending != null) {
+                    pending.task = task;
+                    coalesced++;
+                    return;
+                }
+            }
+
+            awaitCapacity();
+            var entry = new Entry(key, task, sync);
+            entries.add(entry);
+            if (key != null && overflowPolicy == OverflowPolicy.COALESCE_PRESENCE) {
+                coalescable.put(key, entry);
+            }
+
+            peakDepth = Math.max(peakDepth, entries.size());
+            if (draining) {
+                return;
+            }
+
+            this.draining = true;
+            rejected = scheduleDrain();
+        } finally {
+            lock.unlock();
+        }
+
+        rejected.forEach(Runnable::run);
+    }
+
+    // A listener that fires an event while handling one would wait for itself, so its own thread is allowed to go past the capacity
+    private void awaitCapacity() {
+        if (entries.size() < capacity || Thread.currentThread() == drainer) {
+            return;
+        }
+
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            // Events whose sender is waiting are skipped, and if every queued event is one of them the queue goes past its capacity
+            var iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                var oldest = iterator.next();
+                if (oldest.sync) {
+                    continue;
+                }
+
+                iterator.remove();
+                if (oldest.key != null) {
+                    coalescable.remove(oldest.key, oldest);
+                }
+
+                dropped++;
+                return;
+            }
+
+            return;
+        }
+
+        try {
+            while (entries.size() >= capacity) {
+                notFull.await();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns the events whose sender is waiting for them, which should be run once the lock is released if the executor was shut down
+    private List<Runnable> scheduleDrain() {
+        try {
+            executor.execute(this::drain);
+            return List.of();
+        } catch (RejectedExecutionException exception) {
+            // The executor was shut down, so the queued events can't be delivered anymore
+            var results = new ArrayList<Runnable>();
+            for (var entry : entries) {
+                if (entry.sync) {
+                    results.add(entry.task);
+                }
+            }
+
+            entries.clear();
+            coalescable.clear();
+            this.draining = false;
+            notFull.signalAll();
+            return results;
+        }
+    }
+
+    private void drain() {
+        this.drainer = Thread.currentThread();
+        try {
+            for (var index = 0; index < DRAIN_BATCH; index++) {
+                var entry = poll();
+                if (entry == null) {
+                    return;
+                }
+
+                entry.task.run();
+            }
+        } finally {
+            this.drainer = null;
+        }
+
+        List<Runnable> rejected;
+        lock.lock();
+        try {
+            if (entries.isEmpty()) {
+                this.draining = false;
+                return;
+            }
+
+            rejected = scheduleDrain();
+        } finally {
+            lock.unlock();
+        }
+
+        rejected.forEach(Runnable::run);
+    }
+
+    private Entry poll() {
+        lock.lock();
+        try {
+            var entry = entries.poll();
+            if (entry == null) {
+                this.draining = false;
+                return null;
+            }
+
+            if (entry.key != null) {
+                coalescable.remove(entry.key, entry);
+            }
+
+            delivered++;
+            notFull.signal();
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the calling thread is the one delivering the events of this queue
+     *
+     * @return a boolean
+     */
+    boolean isDraining() {
+        return Thread.currentThread() == drainer;
+    }
+
+    /**
+     * Returns a snapshot of the metrics of this queue
+     *
+     * @return a non-null snapshot
+     */
+    ListenerQueueMetrics metrics() {
+        lock.lock();
+        try {
+            return new ListenerQueueMetrics(entries.size(), peakDepth, capacity, delivered, dropped, coalesced);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        private final Object key;
+        private final boolean sync;
+        private Runnable task;
+
+        private Entry(Object key, Runnable task, boolean sync) {
+            this.key = key;
+            this.task = task;
+            this.sync = sync;
+        }
+    }
+}
@@ -52,8 +52,10 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -62,14 +64,23 @@ import static it.auties.whatsapp.util.Specification.Signal.*;
 
 class MessageHandler {
     private static final int HISTORY_SYNC_TIMEOUT = 25;
+    private static final int SIGNAL_LOCK_STRIPES = 64;
+    private static final long DEVICES_CACHE_TTL = TimeUnit.HOURS.toMillis(1);
+    private static final int SESSIONS_BATCH_SIZE = 200;
+    private static final int MAX_SESSION_QUERIES = 4;
 
     private final SocketHandler socketHandler;
     private final Map<Jid, List<GroupPastParticipant>> pastParticipantsQueue;
     private final Set<Jid> historyCache;
     private final Logger logger;
     private final EnumSet<Type> historySyncTypes;
-    private final ReentrantLock lock;
-    private CompletableFuture<?> historySyncTask;
+    private final StripedLock signalLocks;
+    private final Map<Jid, CompletableFuture<Void>> decodeQueues;
+    private final Map<Jid, CachedDevices> devicesCache;
+    private final Map<Jid, CompletableFuture<Void>> sessionQueries;
+    private final Queue<Jid> pendingSessionQueries;
+    private final AtomicInteger runningSessionQueries;
+    private HashedWheelTimer.Timeout historySyncTask;
 
     protected MessageHandler(SocketHandler socketHandler) {
         this.socketHandler = socketHandler;
@@ -77,7 +88,12 @@ class MessageHandler {
         this.historyCache = ConcurrentHashMap.newKeySet();
         this.logger = System.getLogger("MessageHandler");
         this.historySyncTypes = EnumSet.noneOf(Type.class);
-        this.lock = new ReentrantLock(true);
+        this.signalLocks = new StripedLock(SIGNAL_LOCK_STRIPES);
+        this.decodeQueues = new ConcurrentHashMap<>();
+        this.devicesCache = new ConcurrentHashMap<>();
+        this.sessionQueries = new ConcurrentHashMap<>();
+        this.pendingSessionQueries = new ConcurrentLinkedQueue<>();
+        this.runningSessionQueries = new AtomicInteger();
     }
 
     protected CompletableFuture<Void> encode(MessageSendRequest request) {
@@ -89,14 +105,7 @@ class MessageHandler {
 
     private CompletableFuture<Void> encodeChatMessage(MessageSendRequest.Chat request) {
         return prepareOutgoingChatMessage(request.info())
-                .thenComposeAsync(ignored -> {
-                    try {
-                        lock.lock();
-                        return request.peer() || isConversation(request.info()) ? encodeConversation(request) : encodeGroup(request);
-                    } finally {
-                        lock.unlock();
-                    }
-                })
+                .thenComposeAsync(ignored -> request.peer() || isConversation(request.info()) ? encodeConversation(request) : encodeGroup(request))
                 .thenRunAsync(() -> {
                     if (request.peer()) {
                         return;
@@ -382,9 +391,9 @@ class MessageHandler {
 
         var senderName = new SenderKeyName(request.info().chatJid().toString(), sender.toSignalAddress());
         var groupBuilder = new GroupBuilder(socketHandler.keys());
-        var signalMessage = groupBuilder.createOutgoing(senderName);
+        var signalMessage = signalLocks.supply(senderName, () -> groupBuilder.createOutgoing(senderName));
         var groupCipher = new GroupCipher(senderName, socketHandler.keys());
-        var groupMessage = groupCipher.encrypt(encodedMessage);
+        var groupMessage = signalLocks.supply(senderName, () -> groupCipher.encrypt(encodedMessage));
         var messageNode = createMessageNode(request, groupMessage);
         if (request.hasRecipientOverride()) {
             return getDevices(request.recipients(), false)
@@ -401,7 +410,7 @@ class MessageHandler {
                     .thenComposeAsync(socketHandler::send);
         }
 
-        return socketHandler.queryGroupMetadata(request.info().chatJid())
+        return getGroupMetadata(request.info().chatJid())
                 .thenComposeAsync(this::getGroupDevices)
                 .thenComposeAsync(allDevices -> createGroupNodes(request, signalMessage, allDevices, false))
                 .thenApplyAsync(preKeys -> createEncodedMessageNode(request, preKeys, messageNode))
@@ -507,11 +516,8 @@ class MessageHandler {
 
         var partitioned = contacts.stream()
                 .collect(Collectors.partitioningBy(contact -> Objects.equals(contact.user(), jid.user())));
-        var companions = querySessions(partitioned.get(true), request.force())
-                .thenApplyAsync(ignored -> createMessageNodes(request, partitioned.get(true), deviceMessage));
-        var others = querySessions(partitioned.get(false), request.force())
-                .thenApplyAsync(ignored -> createMessageNodes(request, partitioned.get(false), message));
-        return companions.thenCombineAsync(others, (first, second) -> toSingleList(first, second));
+        return querySessions(contacts, request.force())
+                .thenApplyAsync(ignored -> toSingleList(createMessageNodes(request, partitioned.get(true), deviceMessage), createMessageNodes(request, partitioned.get(false), message)));
     }
 
     private CompletableFuture<List<Node>> createGroupNodes(MessageSendRequest.Chat request, byte[] distributionMessage, List<Jid> participants, boolean force) {
@@ -534,14 +540,114 @@ class MessageHandler {
     protected CompletableFuture<Void> querySessions(List<Jid> contacts, boolean force) {
         var missingSessions = contacts.stream()
                 .filter(contact -> force || !socketHandler.keys().hasSession(contact.toSignalAddress()))
-                .map(contact -> Node.of("user", Map.of("jid", contact)))
-                .toList();
-        return missingSessions.isEmpty() ? CompletableFuture.completedFuture(null) : querySession(missingSessions);
+                .map(this::enqueueSessionQuery)
+                .toArray(CompletableFuture[]::new);
+        if (missingSessions.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        flushSessionQueries();
+        return CompletableFuture.allOf(missingSessions);
+    }
+
+    private CompletableFuture<Void> enqueueSessionQuery(Jid contact) {
+        return sessionQueries.computeIfAbsent(contact, key -> {
+            pendingSessionQueries.add(key);
+            return new CompletableFuture<>();
+        });
+    }
+
+    // A few key queries can be in flight at the same time, so that a slow one doesn't stall every send: contacts enqueued in the meanwhile by concurrent sends are merged in the next one
+    private void flushSessionQueries() {
+        while (!pendingSessionQueries.isEmpty()) {
+            var running = runningSessionQueries.get();
+            if (running >= MAX_SESSION_QUERIES) {
+                return;
+            }
+
+            if (!runningSessionQueries.compareAndSet(running, running + 1)) {
+                continue;
+            }
+
+            var contacts = new ArrayList<Jid>();
+            Jid contact;
+            while (contacts.size() < SESSIONS_BATCH_SIZE && (contact = pendingSessionQueries.poll()) != null) {
+                contacts.add(contact);
+            }
+
+            if (contacts.isEmpty()) {
+                runningSessionQueries.decrementAndGet();
+                continue;
+            }
+
+            sendSessionQuery(contacts);
+        }
+    }
+
+    private void sendSessionQuery(List<Jid> contacts) {
+        CompletableFuture<Node> response;
+        try {
+            var children = contacts.stream()
+                    .map(entry -> Node.of("user", Map.of("jid", entry)))
+                    .toList();
+            response = socketHandler.sendQuery("get", "encrypt", Node.of("key", children));
+        } catch (Throwable throwable) {
+            response = CompletableFuture.failedFuture(throwable);
+        }
+
+        response.whenCompleteAsync((result, throwable) -> {
+            try {
+                completeSessionQueries(contacts, result, throwable);
+            } finally {
+                runningSessionQueries.decrementAndGet();
+                flushSessionQueries();
+            }
+        });
     }
 
-    private CompletableFuture<Void> querySession(List<Node> children) {
-        return socketHandler.sendQuery("get", "encrypt", Node.of("key", children))
-                .thenAcceptAsync(this::parseSessions);
+    private void completeSessionQueries(List<Jid> contacts, Node result, Throwable throwable) {
+        if (throwable != null) {
+            contacts.forEach(contact -> completeSessionQuery(contact, throwable));
+            return;
+        }
+
+        try {
+            result.findNode("list")
+                    .orElseThrow(() -> new IllegalArgumentException("Cannot parse sessions: " + result))
+                    .findNodes("user")
+                    .forEach(this::parseBatchedSession);
+            contacts.forEach(contact -> completeSessionQuery(contact, null));
+        } catch (Throwable exception) {
+            contacts.forEach(contact -> completeSessionQuery(contact, exception));
+        }
+    }
+
+    private void parseBatchedSession(Node node) {
+        var jid = node.attributes()
+                .getJid("jid")
+                .orElse(null);
+        try {
+            parseSession(node);
+        } catch (Throwable throwable) {
+            if (jid == null) {
+                throw throwable;
+            }
+
+            completeSessionQuery(jid, throwable);
+        }
+    }
+
+    private void completeSessionQuery(Jid contact, Throwable throwable) {
+        var future = sessionQueries.remove(contact);
+        if (future == null) {
+            return;
+        }
+
+        if (throwable != null) {
+            future.completeExceptionally(throwable);
+        } else {
+            future.complete(null);
+        }
     }
 
     private List<Node> createMessageNodes(MessageSendRequest.Chat request, List<Jid> contacts, byte[] message) {
@@ -551,12 +657,20 @@ class MessageHandler {
     }
 
     private Node createMessageNode(MessageSendRequest.Chat request, Jid contact, byte[] message, boolean peer) {
-        var cipher = new SessionCipher(contact.toSignalAddress(), socketHandler.keys());
-        var encrypted = cipher.encrypt(message);
+        var address = contact.toSignalAddress();
+        var cipher = new SessionCipher(address, socketHandler.keys());
+        var encrypted = signalLocks.supply(address, () -> cipher.encrypt(message));
         var messageNode = createMessageNode(request, encrypted);
         return peer ? messageNode : Node.of("to", Map.of("jid", contact), messageNode);
     }
 
+    private CompletableFuture<GroupMetadata> getGroupMetadata(Jid groupJid) {
+        return socketHandler.store()
+                .findGroupMetadata(groupJid)
+                .map(CompletableFuture::completedFuture)
+                .orElseGet(() -> socketHandler.queryGroupMetadata(groupJid));
+    }
+
     private CompletableFuture<List<Jid>> getGroupDevices(GroupMetadata metadata) {
         var jids = metadata.participants()
                 .stream()
@@ -566,29 +680,47 @@ class MessageHandler {
     }
 
     protected CompletableFuture<List<Jid>> getDevices(List<Jid> contacts, boolean excludeSelf) {
-        return queryDevices(contacts, excludeSelf)
-                .thenApplyAsync(missingDevices -> excludeSelf ? toSingleList(contacts, missingDevices) : missingDevices);
+        var cachedDevices = new ArrayList<Jid>();
+        var missingContacts = new ArrayList<Jid>();
+        for (var contact : contacts) {
+            var cached = devicesCache.get(contact.withoutDevice());
+            if (cached == null || cached.isExpired()) {
+                missingContacts.add(contact);
+            } else {
+                cachedDevices.addAll(toDevices(contact, cached.ids(), excludeSelf));
+            }
+        }
+
+        if (missingContacts.isEmpty()) {
+            return CompletableFuture.completedFuture(excludeSelf ? toSingleList(contacts, cachedDevices) : cachedDevices);
+        }
+
+        return queryDevices(missingContacts, excludeSelf)
+                .thenApplyAsync(missingDevices -> excludeSelf ? toSingleList(contacts, cachedDevices, missingDevices) : toSingleList(cachedDevices, missingDevices));
+    }
+
+    protected void invalidateDevices(Jid contact) {
+        devicesCache.remove(contact.withoutDevice());
+    }
+
+    // A message from a device that isn't cached means that the contact linked it after its devices were queried
+    private void invalidateUnknownDevice(Jid sender) {
+        var contact = sender.withoutDevice();
+        var cached = devicesCache.get(contact);
+        if (cached != null && !cached.ids().contains(sender.device())) {
+            devicesCache.remove(contact, cached);
+        }
     }
 
     private CompletableFuture<List<Jid>> queryDevices(List<Jid> contacts, boolean excludeSelf) {
         var contactNodes = contacts.stream()
-                .map(contact -> Node.of("user", Map.of("jid", contact)))
-                .toList();
-        var body = Node.of("usync",
-                Map.of("sid", ChatMessageKey.randomId(), "mode", "query", "last", "true", "index", "0", "context", "message"),
-                Node.of("query", Node.of("devices", Map.of("version", "2"))),
-                Node.of("list", contactNodes));
-        return socketHandler.sendQuery("get", "usync", body)
+                .collect(Collectors.toMap(Function.identity(), contact -> Node.of("user", Map.of("jid", contact)), (first, second) -> first, LinkedHashMap::new));
+        return socketHandler.sendUsyncQuery("message", Node.of("devices", Map.of("version", "2")), contactNodes)
                 .thenApplyAsync(result -> parseDevices(result, excludeSelf));
     }
 
-    private List<Jid> parseDevices(Node node, boolean excludeSelf) {
-        return node.children()
-                .stream()
-                .map(child -> child.findNode("list"))
-                .flatMap(Optional::stream)
-                .map(Node::children)
-                .flatMap(Collection::stream)
+    private List<Jid> parseDevices(List<Node> users, boolean excludeSelf) {
+        return users.stream()
                 .map(entry -> parseDevice(entry, excludeSelf))
                 .flatMap(Collection::stream)
                 .toList();
@@ -598,31 +730,38 @@ class MessageHandler {
         var jid = wrapper.attributes()
                 .getJid("jid")
                 .orElseThrow(() -> new NoSuchElementException("Missing jid for sync device"));
-        return wrapper.findNode("devices")
+        var ids = wrapper.findNode("devices")
                 .orElseThrow(() -> new NoSuchElementException("Missing devices"))
                 .findNode("device-list")
                 .orElseThrow(() -> new NoSuchElementException("Missing device list"))
                 .children()
                 .stream()
-                .map(child -> parseDeviceId(child, jid, excludeSelf))
+                .map(this::parseDeviceId)
                 .flatMap(Optional::stream)
-                .map(id -> Jid.ofDevice(jid.user(), id))
                 .toList();
+        devicesCache.put(jid.withoutDevice(), new CachedDevices(ids, System.currentTimeMillis() + DEVICES_CACHE_TTL));
+        return toDevices(jid, ids, excludeSelf);
     }
 
-    private Optional<Integer> parseDeviceId(Node child, Jid jid, boolean excludeSelf) {
+    private Optional<Integer> parseDeviceId(Node child) {
+        var deviceId = child.attributes().getInt("id");
+        return child.description().equals("device")
+                && (deviceId == 0 || child.attributes().hasKey("key-index")) ? Optional.of(deviceId) : Optional.empty();
+    }
+
+    private List<Jid> toDevices(Jid jid, List<Integer> ids, boolean excludeSelf) {
         var self = socketHandler.store()
                 .jid()
                 .orElse(null);
         if (self == null) {
-            return Optional.empty();
+            return List.of();
         }
 
-        var deviceId = child.attributes().getInt("id");
-        return child.description().equals("device")
-                && (!excludeSelf || deviceId != 0)
-                && (!jid.user().equals(self.user()) || self.device() != deviceId)
-                && (deviceId == 0 || child.attributes().hasKey("key-index")) ? Optional.of(deviceId) : Optional.empty();
+        return ids.stream()
+                .filter(deviceId -> !excludeSelf || deviceId != 0)
+                .filter(deviceId -> !jid.user().equals(self.user()) || self.device() != deviceId)
+                .map(deviceId -> Jid.ofDevice(jid.user(), deviceId))
+                .toList();
     }
 
     protected void parseSessions(Node node) {
@@ -650,22 +789,22 @@ class MessageHandler {
         var key = node.findNode("key")
                 .flatMap(SignalSignedKeyPair::of)
                 .orElse(null);
-        var builder = new SessionBuilder(jid.toSignalAddress(), socketHandler.keys());
-        builder.createOutgoing(registrationId, identity, signedKey, key);
+        var address = jid.toSignalAddress();
+        var builder = new SessionBuilder(address, socketHandler.keys());
+        signalLocks.run(address, () -> builder.createOutgoing(registrationId, identity, signedKey, key));
     }
 
-    // TODO: Make this async and move the lock as far as possible into the cipher chain for better performance
     public void decode(Node node, JidProvider chatOverride, boolean notify) {
         try {
             var businessName = getBusinessName(node);
             if (node.hasNode("unavailable")) {
-                decodeChatMessage(node, null, businessName, notify);
+                decodeChatMessageAsync(node, null, businessName, notify);
                 return;
             }
 
             var encrypted = node.findNodes("enc");
             if (!encrypted.isEmpty()) {
-                encrypted.forEach(message -> decodeChatMessage(node, message, businessName, notify));
+                decodeChatMessageAsync(node, encrypted, businessName, notify);
                 return;
             }
 
@@ -674,12 +813,41 @@ class MessageHandler {
                 return;
             }
 
-            decodeChatMessage(node, null, businessName, notify);
+            decodeChatMessageAsync(node, null, businessName, notify);
         } catch (Throwable throwable) {
             socketHandler.handleFailure(MESSAGE, throwable);
         }
     }
 
+    // Messages coming from the same device must be deciphered in order as they share a ratchet,
+    // so they are queued by sender while messages from different senders are deciphered in parallel
+    private void decodeChatMessageAsync(Node infoNode, List<Node> messageNodes, String businessName, boolean notify) {
+        var sender = infoNode.attributes()
+                .getJid("participant")
+                .or(() -> infoNode.attributes().getJid("from"))
+                .orElse(null);
+        if (sender == null) {
+            decodeChatMessages(infoNode, messageNodes, businessName, notify);
+            return;
+        }
+
+        invalidateUnknownDevice(sender);
+        var task = decodeQueues.compute(sender, (key, queue) -> {
+            var tail = queue == null ? CompletableFuture.<Void>completedFuture(null) : queue;
+            return tail.thenRunAsync(() -> decodeChatMessages(infoNode, messageNodes, businessName, notify), socketHandler.runtime().workers());
+        });
+        task.whenComplete((result, throwable) -> decodeQueues.remove(sender, task));
+    }
+
+    private void decodeChatMessages(Node infoNode, List<Node> messageNodes, String businessName, boolean notify) {
+        if (messageNodes == null) {
+            decodeChatMessage(infoNode, null, businessName, notify);
+            return;
+        }
+
+        messageNodes.forEach(message -> decodeChatMessage(infoNode, message, businessName, notify));
+    }
+
     private String getBusinessName(Node node) {
         return node.attributes()
                 .getOptionalString("verified_name")
@@ -772,7 +940,6 @@ class MessageHandler {
 
     private void decodeChatMessage(Node infoNode, Node messageNode, String businessName, boolean notify) {
         try {
-            lock.lock();
             var pushName = infoNode.attributes().getNullableString("notify");
             var timestamp = infoNode.attributes().getLong("t");
             var id = infoNode.attributes().getRequiredString("id");
@@ -784,7 +951,7 @@ class MessageHandler {
             var messageBuilder = new ChatMessageInfoBuilder()
                     .status(MessageStatus.PENDING);
             var keyBuilder = new ChatMessageKeyBuilder()
-                    .id(ChatMessageKey.randomId());
+                    .id(socketHandler.store().randomId());
             var receiver = socketHandler.store()
                     .jid()
                     .map(Jid::withoutDevice)
@@ -842,8 +1009,6 @@ class MessageHandler {
             sendEncMessageReceipt(infoNode, id, key.chatJid(), key.senderJid().orElse(null), key.fromMe());
         } catch (Throwable throwable) {
             socketHandler.handleFailure(MESSAGE, throwable);
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -881,21 +1046,23 @@ class MessageHandler {
                     Objects.requireNonNull(participant, "Cannot decipher skmsg without participant");
                     var senderName = new SenderKeyName(from.toString(), participant.toSignalAddress());
                     var signalGroup = new GroupCipher(senderName, socketHandler.keys());
-                    yield signalGroup.decrypt(encodedMessage);
+                    yield signalLocks.supply(senderName, () -> signalGroup.decrypt(encodedMessage));
                 }
                 case PKMSG -> {
                     var user = from.hasServer(JidServer.WHATSAPP) ? from : participant;
                     Objects.requireNonNull(user, "Cannot decipher pkmsg without user");
-                    var session = new SessionCipher(user.toSignalAddress(), socketHandler.keys());
+                    var address = user.toSignalAddress();
+                    var session = new SessionCipher(address, socketHandler.keys());
                     var preKey = SignalPreKeyMessage.ofSerialized(encodedMessage);
-                    yield session.decrypt(preKey);
+                    yield signalLocks.supply(address, () -> session.decrypt(preKey));
                 }
                 case MSG -> {
                     var user = from.hasServer(JidServer.WHATSAPP) ? from : participant;
                     Objects.requireNonNull(user, "Cannot decipher msg without user");
-                    var session = new SessionCipher(user.toSignalAddress(), socketHandler.keys());
+                    var address = user.toSignalAddress();
+                    var session = new SessionCipher(address, socketHandler.keys());
                     var signalMessage = SignalMessage.ofSerialized(encodedMessage);
-                    yield session.decrypt(signalMessage);
+                    yield signalLocks.supply(address, () -> session.decrypt(signalMessage));
                 }
                 default -> throw new IllegalArgumentException("Unsupported encoded message type: %s".formatted(type));
             };
@@ -917,6 +1084,7 @@ class MessageHandler {
         info.receipt().deliveredJids().add(self);
         info.receipt().readJids().add(self);
         info.setStatus(MessageStatus.READ);
+        socketHandler.store().markUpdated(info);
     }
 
     private void saveMessage(ChatMessageInfo info, boolean notify) {
@@ -963,7 +1131,7 @@ class MessageHandler {
         var groupName = new SenderKeyName(distributionMessage.groupId(), from.toSignalAddress());
         var builder = new GroupBuilder(socketHandler.keys());
         var message = SignalDistributionMessage.ofSerialized(distributionMessage.data());
-        builder.createIncoming(groupName, message);
+        signalLocks.run(groupName, () -> builder.createIncoming(groupName, message));
     }
 
     private void handleProtocolMessage(ChatMessageInfo info, ProtocolMessage protocolMessage) {
@@ -1151,12 +1319,13 @@ class MessageHandler {
     }
 
     private void scheduleHistorySyncTimeout() {
-        var executor = CompletableFuture.delayedExecutor(HISTORY_SYNC_TIMEOUT, TimeUnit.SECONDS);
         if (historySyncTask != null) {
-            historySyncTask.cancel(true);
+            historySyncTask.cancel();
         }
 
-        this.historySyncTask = CompletableFuture.runAsync(this::onForcedHistorySyncCompletion, executor);
+        this.historySyncTask = socketHandler.runtime()
+                .timer()
+                .schedule(this::onForcedHistorySyncCompletion, HISTORY_SYNC_TIMEOUT, TimeUnit.SECONDS);
     }
 
     private void onForcedHistorySyncCompletion() {
@@ -1334,8 +1503,22 @@ class MessageHandler {
 
     protected void dispose() {
         historyCache.clear();
-        historySyncTask = null;
+        if (historySyncTask != null) {
+            historySyncTask.cancel();
+            historySyncTask = null;
+        }
         historySyncTypes.clear();
+        decodeQueues.clear();
+        devicesCache.clear();
+        pendingSessionQueries.clear();
+        sessionQueries.values().forEach(future -> future.cancel(true));
+        sessionQueries.clear();
+    }
+
+    private record CachedDevices(List<Integer> ids, long expiration) {
+        public boolean isExpired() {
+            return System.currentTimeMillis() > expiration;
+        }
     }
 
     private record MessageDecodeResult(byte[] message, Throwable error) {
@@ -5,8 +5,9 @@ import it.auties.whatsapp.api.ErrorHandler.Location;
 import it.auties.whatsapp.binary.BinaryDecoder;
 import it.auties.whatsapp.controller.Keys;
 import it.auties.whatsapp.controller.Store;
-import it.auties.whatsapp.crypto.AesGcm;
+import it.auties.whatsapp.crypto.TransportCipher;
 import it.auties.whatsapp.listener.Listener;
+import it.auties.whatsapp.listener.ListenerEvent;
 import it.auties.whatsapp.model.action.Action;
 import it.auties.whatsapp.model.business.BusinessCategory;
 import it.auties.whatsapp.model.call.Call;
@@ -17,7 +18,6 @@ import it.auties.whatsapp.model.info.*;
 import it.auties.whatsapp.model.jid.Jid;
 import it.auties.whatsapp.model.jid.JidProvider;
 import it.auties.whatsapp.model.jid.JidServer;
-import it.auties.whatsapp.model.message.model.ChatMessageKey;
 import it.auties.whatsapp.model.message.model.ChatMessageKeyBuilder;
 import it.auties.whatsapp.model.message.model.MessageContainer;
 import it.auties.whatsapp.model.message.model.MessageStatus;
@@ -46,6 +46,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static it.auties.whatsapp.api.ErrorHandler.Location.*;
 import static it.auties.whatsapp.model.chat.GroupSetting.*;
@@ -82,7 +83,11 @@ public class SocketHandler implements SocketListener {
 
     private Thread shutdownHook;
 
-    private ExecutorService listenersService;
+    private final WhatsappRuntime runtime;
+
+    private final ConcurrentHashMap<Listener, ListenerQueue> listenerQueues;
+
+    private final UsyncBatcher usyncBatcher;
 
     public static boolean isConnected(UUID uuid) {
         return connectedUuids.contains(uuid);
@@ -96,8 +101,11 @@ public class SocketHandler implements SocketListener {
         return connectedAlias.contains(id);
     }
 
-    public SocketHandler(Whatsapp whatsapp, Store store, Keys keys, ErrorHandler errorHandler, WebVerificationSupport webVerificationSupport, Executor socketExecutor) {
+    public SocketHandler(Whatsapp whatsapp, Store store, Keys keys, ErrorHandler errorHandler, WebVerificationSupport webVerificationSupport, Executor socketExecutor, WhatsappRuntime runtime) {
         this.whatsapp = whatsapp;
+        this.runtime = Objects.requireNonNullElseGet(runtime, WhatsappRuntime::shared);
+        this.listenerQueues = new ConcurrentHashMap<>();
+        this.usyncBatcher = new UsyncBatcher(this);
         this.store = store;
         this.keys = keys;
         this.state = SocketState.WAITING;
@@ -120,15 +128,50 @@ public class SocketHandler implements SocketListener {
     }
 
     protected void onSocketEvent(SocketEvent event) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.SOCKET_EVENT, listener -> {
             listener.onSocketEvent(whatsapp, event);
             listener.onSocketEvent(event);
         });
     }
 
-    private void callListenersAsync(Consumer<Listener> consumer) {
-        var service = getOrCreateListenersService();
-        store.listeners().forEach(listener -> service.execute(() -> invokeListenerSafe(consumer, listener)));
+    private void callListenersAsync(ListenerEvent event, Consumer<Listener> consumer) {
+        callListenersAsync(event, null, consumer);
+    }
+
+    private void callListenersAsync(ListenerEvent event, Object coalesceKey, Consumer<Listener> consumer) {
+        var listeners = store.listeners(event);
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        var delivery = store.listenerDelivery();
+        if (!delivery.ordered()) {
+            var service = runtime.listeners();
+            for (var listener : listeners) {
+                service.execute(() -> invokeListenerSafe(consumer, listener));
+            }
+            return;
+        }
+
+        for (var listener : listeners) {
+            listenerQueue(listener, delivery).offer(coalesceKey, () -> invokeListenerSafe(consumer, listener));
+        }
+    }
+
+    private ListenerQueue listenerQueue(Listener listener, ListenerDelivery delivery) {
+        return listenerQueues.computeIfAbsent(listener, ignored -> new ListenerQueue(runtime.listeners(), delivery));
+    }
+
+    /**
+     * Returns the metrics of the queues of events that are waiting to be delivered to each listener
+     * Queues are only used if the delivery of events is ordered
+     *
+     * @return a non-null immutable map
+     */
+    public Map<Listener, ListenerQueueMetrics> listenerQueueMetrics() {
+        return listenerQueues.entrySet()
+                .stream()
+                .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().metrics()));
     }
 
     @Override
@@ -174,17 +217,17 @@ public class SocketHandler implements SocketListener {
             return;
         }
 
-        var readKey = keys.readKey();
-        if (readKey.isEmpty()) {
+        var readCipher = keys.readCipher();
+        if (readCipher.isEmpty()) {
             return;
         }
 
-        var decipheredMessage = decipherMessage(message, readKey.get());
+        var decipheredMessage = decipherMessage(message, readCipher.get());
         if(decipheredMessage == null) {
             return;
         }
 
-        try(var decoder = new BinaryDecoder(decipheredMessage)) {
+        try(var decoder = new BinaryDecoder(decipheredMessage, true)) {
             var node = decoder.decode();
             onNodeReceived(node);
             store.resolvePendingRequest(node, false);
@@ -194,9 +237,9 @@ public class SocketHandler implements SocketListener {
         }
     }
 
-    private byte[] decipherMessage(byte[] message, byte[] readKey) {
+    private byte[] decipherMessage(byte[] message, TransportCipher readCipher) {
         try {
-            return AesGcm.decrypt(keys.readCounter(true), message, readKey);
+            return readCipher.decrypt(keys.readCounter(true), message);
         }  catch (Throwable throwable) {
             return handleFailure(CRYPTOGRAPHY, throwable);
         }
@@ -204,7 +247,11 @@ public class SocketHandler implements SocketListener {
 
 
     private void onNodeReceived(Node deciphered) {
-        callListenersAsync(listener -> {
+        if (!store.hasListeners(ListenerEvent.NODE_RECEIVED)) {
+            return;
+        }
+
+        callListenersAsync(ListenerEvent.NODE_RECEIVED, listener -> {
             listener.onNodeReceived(whatsapp, deciphered);
             listener.onNodeReceived(deciphered);
         });
@@ -240,7 +287,7 @@ public class SocketHandler implements SocketListener {
             return CompletableFuture.completedFuture(null);
         }
 
-        this.session = SocketSession.of(store.proxy().orElse(null), socketExecutor, store.clientType() == ClientType.WEB);
+        this.session = SocketSession.of(store.proxy().orElse(null), socketExecutor, runtime.timer(), store.clientType() == ClientType.WEB);
         return session.connect(this);
     }
 
@@ -277,6 +324,8 @@ public class SocketHandler implements SocketListener {
                 store.deleteSession();
                 store.resolveAllPendingRequests();
                 var oldListeners = new ArrayList<>(store.listeners());
+                var oldListenerDelivery = store.listenerDelivery();
+                var oldTraceRequests = store.traceRequests();
                 if (session != null) {
                     session.disconnect();
                 }
@@ -287,6 +336,8 @@ public class SocketHandler implements SocketListener {
                 var result = ControllerHelper.create(uuid, number, store.alias(), store.clientType(), store.serializer());
                 this.keys = result.keys();
                 this.store = result.store();
+                store.setListenerDelivery(oldListenerDelivery);
+                store.setTraceRequests(oldTraceRequests);
                 store.addListeners(oldListeners);
                 yield connect();
             }
@@ -322,7 +373,7 @@ public class SocketHandler implements SocketListener {
         var jid = store.jid()
                 .orElseThrow(() -> new IllegalStateException("The session isn't connected"));
         var key = new ChatMessageKeyBuilder()
-                .id(ChatMessageKey.randomId())
+                .id(store.randomId())
                 .chatJid(companion)
                 .fromMe(true)
                 .senderJid(jid)
@@ -362,30 +413,46 @@ public class SocketHandler implements SocketListener {
             return CompletableFuture.completedFuture(null);
         }
 
-        return node.toRequest(null, false)
+        return node.toRequest(null, false, store.traceRequests(), store::randomId)
                 .sendWithNoResponse(session, keys, store)
                 .exceptionallyAsync(throwable -> handleFailure(STREAM, throwable))
                 .thenRunAsync(() -> onNodeSent(node));
     }
 
     private void onNodeSent(Node node) {
-        callListenersAsync(listener -> {
+        if (!store.hasListeners(ListenerEvent.NODE_SENT)) {
+            return;
+        }
+
+        callListenersAsync(ListenerEvent.NODE_SENT, listener -> {
             listener.onNodeSent(whatsapp, node);
             listener.onNodeSent(node);
         });
     }
 
     public CompletableFuture<Optional<ContactStatusResponse>> queryAbout(JidProvider chat) {
-        var query = Node.of("status");
-        var body = Node.of("user", Map.of("jid", chat.toJid()));
-        return sendInteractiveQuery(query, body).thenApplyAsync(this::parseStatus);
+        var jid = chat.toJid();
+        var body = Node.of("user", Map.of("jid", jid));
+        return sendUsyncQuery("interactive", Node.of("status"), Map.of(jid, body)).thenApplyAsync(this::parseStatus);
+    }
+
+    /**
+     * Queries some users through a usync query that can be merged with the concurrent ones that query the same data
+     *
+     * @param context   the context of the query, for example interactive or message
+     * @param queryNode the node that describes which data should be queried
+     * @param users     the user nodes to send, mapped by the jid of the user they describe
+     * @return a future that wraps the user nodes of the response that describe one of the queried users
+     */
+    public CompletableFuture<List<Node>> sendUsyncQuery(String context, Node queryNode, Map<Jid, Node> users) {
+        return usyncBatcher.query(context, queryNode, users);
     }
 
     public CompletableFuture<List<Node>> sendInteractiveQuery(Node queryNode, Node... queryBody) {
         var query = Node.of("query", queryNode);
         var list = Node.of("list", queryBody);
         var sync = Node.of("usync",
-                Map.of("sid", ChatMessageKey.randomId(), "mode", "query", "last", "true", "index", "0", "context", "interactive"),
+                Map.of("sid", store.randomId(), "mode", "query", "last", "true", "index", "0", "context", "interactive"),
                 query, list);
         return sendQuery("get", "usync", sync).thenApplyAsync(this::parseQueryResult);
     }
@@ -435,7 +502,7 @@ public class SocketHandler implements SocketListener {
             return CompletableFuture.completedFuture(node);
         }
 
-        var request = node.toRequest(filter, true);
+        var request = node.toRequest(filter, true, store.traceRequests(), store::randomId);
         var result = request.send(session, keys, store);
         onNodeSent(node);
         return result;
@@ -523,6 +590,7 @@ public class SocketHandler implements SocketListener {
                 .or(() -> response.findNode("group"))
                 .map(this::parseGroupMetadata)
                 .orElseThrow(() -> new NoSuchElementException("Erroneous response: %s".formatted(response)));
+        store.addGroupMetadata(metadata);
         var chat = store.findChatByJid(metadata.jid())
                 .orElseGet(() -> store().addNewChat(metadata.jid()));
         if (chat != null) {
@@ -635,14 +703,14 @@ public class SocketHandler implements SocketListener {
     }
 
     protected void onRegistrationCode(long code) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.REGISTRATION_CODE, listener -> {
             listener.onRegistrationCode(whatsapp, code);
             listener.onRegistrationCode(code);
         });
     }
 
     protected void onMetadata(Map<String, String> properties) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.METADATA, listener -> {
             listener.onMetadata(whatsapp, properties);
             listener.onMetadata(properties);
         });
@@ -650,7 +718,11 @@ public class SocketHandler implements SocketListener {
 
 
     protected void onMessageStatus(MessageInfo message) {
-        callListenersAsync(listener -> {
+        if (!store.hasListeners(ListenerEvent.MESSAGE_STATUS)) {
+            return;
+        }
+
+        callListenersAsync(ListenerEvent.MESSAGE_STATUS, listener -> {
             listener.onMessageStatus(whatsapp, message);
             listener.onMessageStatus(message);
         });
@@ -668,56 +740,64 @@ public class SocketHandler implements SocketListener {
         }
 
         chat.presences().put(jid, status);
-        callListenersAsync(listener -> {
+        if (!store.hasListeners(ListenerEvent.CONTACT_PRESENCE)) {
+            return;
+        }
+
+        callListenersAsync(ListenerEvent.CONTACT_PRESENCE, List.of(chat.jid(), jid), listener -> {
             listener.onContactPresence(whatsapp, chat, jid, status);
             listener.onContactPresence(chat, jid, status);
         });
     }
 
     protected void onNewMessage(ChatMessageInfo info) {
-        callListenersAsync(listener -> {
+        if (!store.hasListeners(ListenerEvent.NEW_MESSAGE)) {
+            return;
+        }
+
+        callListenersAsync(ListenerEvent.NEW_MESSAGE, listener -> {
             listener.onNewMessage(whatsapp, info);
             listener.onNewMessage(info);
         });
     }
 
     protected void onNewStatus(ChatMessageInfo info) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.NEW_STATUS, listener -> {
             listener.onNewStatus(whatsapp, info);
             listener.onNewStatus(info);
         });
     }
 
     protected void onChatRecentMessages(Chat chat, boolean last) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.CHAT_MESSAGES_SYNC, listener -> {
             listener.onChatMessagesSync(whatsapp, chat, last);
             listener.onChatMessagesSync(chat, last);
         });
     }
 
     protected void onFeatures(PrimaryFeature features) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.FEATURES, listener -> {
             listener.onFeatures(whatsapp, features.flags());
             listener.onFeatures(features.flags());
         });
     }
 
     protected void onSetting(Setting setting) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.SETTING, listener -> {
             listener.onSetting(whatsapp, setting);
             listener.onSetting(setting);
         });
     }
 
     protected void onMessageDeleted(ChatMessageInfo message, boolean everyone) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.MESSAGE_DELETED, listener -> {
             listener.onMessageDeleted(whatsapp, message, everyone);
             listener.onMessageDeleted(message, everyone);
         });
     }
 
     protected void onAction(Action action, MessageIndexInfo indexInfo) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.ACTION, listener -> {
             listener.onAction(whatsapp, action, indexInfo);
             listener.onAction(action, indexInfo);
         });
@@ -733,28 +813,52 @@ public class SocketHandler implements SocketListener {
                 Runtime.getRuntime().removeShutdownHook(shutdownHook);
             }
         }
-        callListenersSync(listener -> {
+        callListenersSync(ListenerEvent.DISCONNECTED, listener -> {
             listener.onDisconnected(whatsapp, loggedOut);
             listener.onDisconnected(loggedOut);
         });
     }
 
     protected void onLoggedIn() {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.LOGGED_IN, listener -> {
             listener.onLoggedIn(whatsapp);
             listener.onLoggedIn();
         });
     }
 
-    public void callListenersSync(Consumer<Listener> consumer) {
-        var service = getOrCreateListenersService();
-        var futures = store.listeners()
-                .stream()
-                .map(listener -> CompletableFuture.runAsync(() -> invokeListenerSafe(consumer, listener), service))
+    public void callListenersSync(ListenerEvent event, Consumer<Listener> consumer) {
+        var listeners = store.listeners(event);
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        var delivery = store.listenerDelivery();
+        var service = runtime.listeners();
+        var futures = listeners.stream()
+                .map(listener -> delivery.ordered() ? callListenerOrdered(listener, delivery, consumer) : CompletableFuture.runAsync(() -> invokeListenerSafe(consumer, listener), service))
                 .toArray(CompletableFuture[]::new);
         CompletableFuture.allOf(futures).join();
     }
 
+    // If the event is fired from a callback of the same listener, waiting for its queue would never complete
+    private CompletableFuture<Void> callListenerOrdered(Listener listener, ListenerDelivery delivery, Consumer<Listener> consumer) {
+        var queue = listenerQueue(listener, delivery);
+        if (queue.isDraining()) {
+            invokeListenerSafe(consumer, listener);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        var future = new CompletableFuture<Void>();
+        queue.offerSync(() -> {
+            try {
+                invokeListenerSafe(consumer, listener);
+            } finally {
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
     private void invokeListenerSafe(Consumer<Listener> consumer, Listener listener) {
         try {
             consumer.accept(listener);
@@ -764,42 +868,46 @@ public class SocketHandler implements SocketListener {
     }
 
     protected void onChats() {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.CHATS, listener -> {
             listener.onChats(whatsapp, store().chats());
             listener.onChats(store().chats());
         });
     }
 
     protected void onNewsletters() {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.NEWSLETTERS, listener -> {
             listener.onNewsletters(whatsapp, store().newsletters());
             listener.onNewsletters(store().newsletters());
         });
     }
 
     protected void onNewsletterMessage(NewsletterMessageInfo messageInfo) {
-        callListenersAsync(listener -> {
+        if (!store.hasListeners(ListenerEvent.NEW_MESSAGE)) {
+            return;
+        }
+
+        callListenersAsync(ListenerEvent.NEW_MESSAGE, listener -> {
             listener.onNewMessage(whatsapp, messageInfo);
             listener.onNewMessage(messageInfo);
         });
     }
 
     protected void onStatus() {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.STATUS, listener -> {
             listener.onStatus(whatsapp, store().status());
             listener.onStatus(store().status());
         });
     }
 
     protected void onContacts() {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.CONTACTS, listener -> {
             listener.onContacts(whatsapp, store().contacts());
             listener.onContacts(store().contacts());
         });
     }
 
     protected void onHistorySyncProgress(Integer progress, boolean recent) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.HISTORY_SYNC_PROGRESS, listener -> {
             listener.onHistorySyncProgress(whatsapp, progress, recent);
             listener.onHistorySyncProgress(progress, recent);
         });
@@ -811,35 +919,35 @@ public class SocketHandler implements SocketListener {
             return;
         }
         store.resolvePendingReply(info);
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.MESSAGE_REPLY, listener -> {
             listener.onMessageReply(whatsapp, info, quoted);
             listener.onMessageReply(info, quoted);
         });
     }
 
     protected void onGroupPictureChanged(Chat fromChat) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.GROUP_PICTURE_CHANGED, listener -> {
             listener.onGroupPictureChanged(whatsapp, fromChat);
             listener.onGroupPictureChanged(fromChat);
         });
     }
 
     protected void onContactPictureChanged(Contact fromContact) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.CONTACT_PICTURE_CHANGED, listener -> {
             listener.onProfilePictureChanged(whatsapp, fromContact);
             listener.onProfilePictureChanged(fromContact);
         });
     }
 
     protected void onUserAboutChanged(String newAbout, String oldAbout) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.ABOUT_CHANGED, listener -> {
             listener.onAboutChanged(whatsapp, oldAbout, newAbout);
             listener.onAboutChanged(oldAbout, newAbout);
         });
     }
 
     public void onUserPictureChanged(URI newPicture, URI oldPicture) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.PROFILE_PICTURE_CHANGED, listener -> {
             listener.onProfilePictureChanged(whatsapp, oldPicture, newPicture);
             listener.onProfilePictureChanged(oldPicture, newPicture);
         });
@@ -861,7 +969,7 @@ public class SocketHandler implements SocketListener {
     }
 
     private void onUserNameChanged(String newName, String oldName) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.NAME_CHANGED, listener -> {
             listener.onNameChanged(whatsapp, oldName, newName);
             listener.onNameChanged(oldName, newName);
         });
@@ -878,42 +986,42 @@ public class SocketHandler implements SocketListener {
     }
 
     private void onUserLocaleChanged(String newLocale, String oldLocale) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.LOCALE_CHANGED, listener -> {
             listener.onLocaleChanged(whatsapp, oldLocale, newLocale);
             listener.onLocaleChanged(oldLocale, newLocale);
         });
     }
 
     protected void onContactBlocked(Contact contact) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.CONTACT_BLOCKED, listener -> {
             listener.onContactBlocked(whatsapp, contact);
             listener.onContactBlocked(contact);
         });
     }
 
     protected void onNewContact(Contact contact) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.NEW_CONTACT, listener -> {
             listener.onNewContact(whatsapp, contact);
             listener.onNewContact(contact);
         });
     }
 
     protected void onDevices(LinkedHashMap<Jid, Integer> devices) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.LINKED_DEVICES, listener -> {
             listener.onLinkedDevices(whatsapp, devices.keySet());
             listener.onLinkedDevices(devices.keySet());
         });
     }
 
     public void onCall(Call call) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.CALL, listener -> {
             listener.onCall(whatsapp, call);
             listener.onCall(call);
         });
     }
 
     public void onPrivacySettingChanged(PrivacySettingEntry oldEntry, PrivacySettingEntry newEntry) {
-        callListenersAsync(listener -> {
+        callListenersAsync(ListenerEvent.PRIVACY_SETTING_CHANGED, listener -> {
             listener.onPrivacySettingChanged(whatsapp, oldEntry, newEntry);
             listener.onPrivacySettingChanged(oldEntry, newEntry);
         });
@@ -923,22 +1031,21 @@ public class SocketHandler implements SocketListener {
         messageHandler.querySessions(List.of(jid), true);
     }
 
+    protected void invalidateDevices(Jid jid) {
+        messageHandler.invalidateDevices(jid);
+    }
+
     private void dispose() {
         onSocketEvent(SocketEvent.CLOSE);
         streamHandler.dispose();
         messageHandler.dispose();
         appStateHandler.dispose();
-        if (listenersService != null) {
-            listenersService.shutdownNow();
-        }
+        listenerQueues.keySet().retainAll(store.listeners());
+        usyncBatcher.dispose();
     }
 
-    private ExecutorService getOrCreateListenersService() {
-        if (listenersService == null || listenersService.isShutdown()) {
-            listenersService = Executors.newCachedThreadPool();
-        }
-
-        return listenersService;
+    protected WhatsappRuntime runtime() {
+        return runtime;
     }
 
     protected <T> T handleFailure(Location location, Throwable throwable) {
@@ -956,7 +1063,11 @@ public class SocketHandler implements SocketListener {
     }
 
     public CompletableFuture<Void> querySessions(Jid jid) {
-        return messageHandler.getDevices(List.of(jid), true)
+        return querySessions(List.of(jid));
+    }
+
+    public CompletableFuture<Void> querySessions(List<Jid> jids) {
+        return messageHandler.getDevices(jids, true)
                 .thenCompose(values -> messageHandler.querySessions(values, false));
     }
 
@@ -9,20 +9,16 @@ import it.auties.whatsapp.model.node.Node;
 import it.auties.whatsapp.util.Exceptions;
 import it.auties.whatsapp.util.Specification;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
 import java.util.function.Function;
 
-import static java.util.concurrent.CompletableFuture.delayedExecutor;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * An abstract model class that represents a request made from the client to the server.
+ * The code that sent the request is only recorded in {@link #caller()} if tracing was requested, as walking the stack for every request is expensive.
  */
 @SuppressWarnings("UnusedReturnValue")
 public record SocketRequest(String id, Object body, CompletableFuture<Node> future,
@@ -33,43 +29,44 @@ public record SocketRequest(String id, Object body, CompletableFuture<Node> futu
     private static final int TIMEOUT = 60;
 
     /**
-     * The delayed executor used to cancel futures
+     * The length of the header that precedes every frame
      */
-    private static final Executor EXECUTOR = delayedExecutor(TIMEOUT, SECONDS);
+    private static final int FRAME_HEADER_LENGTH = 3;
 
-    private SocketRequest(String id, Function<Node, Boolean> filter, Object body) {
-        this(id, body, new CompletableFuture<>(), filter, trace(body));
-        EXECUTOR.execute(this::cancelTimedFuture);
+    private SocketRequest(String id, Function<Node, Boolean> filter, Object body, boolean trace) {
+        this(id, body, new CompletableFuture<>(), filter, trace ? trace() : null);
     }
 
-    private static Throwable trace(Object body) {
+    private static Throwable trace() {
         var current = Exceptions.current(null);
         var actualStackTrace = Arrays.stream(current.getStackTrace())
                 .filter(entry -> !entry.getClassName().equals(SocketRequest.class.getName()) && !entry.getClassName().equals(Node.class.getName()))
                 .toArray(StackTraceElement[]::new);
         current.setStackTrace(actualStackTrace);
-        return new RequestException(body instanceof Node node ? "%s node timed out".formatted(node.toString()) : "Binary timed out", current);
+        return current;
     }
 
-    private void cancelTimedFuture() {
-        if (future.isDone()) {
-            return;
-        }
-        future.completeExceptionally(caller);
+    /**
+     * Constructs a new request with the provided body expecting a newsletters
+     */
+    public static SocketRequest of(Node body, Function<Node, Boolean> filter) {
+        return of(body, filter, false);
     }
 
     /**
      * Constructs a new request with the provided body expecting a newsletters
+     *
+     * @param trace whether the code that sent the request should be recorded, so that it can be included in the exception thrown if the request fails
      */
-    public static SocketRequest of(Node body, Function<Node, Boolean> filter) {
-        return new SocketRequest(body.id(), filter, body);
+    public static SocketRequest of(Node body, Function<Node, Boolean> filter, boolean trace) {
+        return new SocketRequest(body.id(), filter, body, trace);
     }
 
     /**
      * Constructs a new request with the provided body expecting a newsletters
      */
     public static SocketRequest of(byte[] body) {
-        return new SocketRequest(null, null, body);
+        return new SocketRequest(null, null, body, false);
     }
 
     /**
@@ -92,22 +89,25 @@ public record SocketRequest(String id, Object body, CompletableFuture<Node> futu
      * @return this request
      */
     public CompletableFuture<Node> send(SocketSession session, Keys keys, Store store, boolean prologue, boolean response) {
-        var ciphered = encryptMessage(keys);
-        var byteArrayOutputStream = new ByteArrayOutputStream();
-        try(var dataOutputStream = new DataOutputStream(byteArrayOutputStream)) {
-            if(prologue) {
-                dataOutputStream.write(getPrologueData(store));
-            }
-            dataOutputStream.writeInt(ciphered.length >> 16);
-            dataOutputStream.writeShort(65535 & ciphered.length);
-            dataOutputStream.write(ciphered);
-            session.sendBinary(byteArrayOutputStream.toByteArray())
-                    .thenRunAsync(() -> onSendSuccess(store, response))
-                    .exceptionallyAsync(this::onSendError);
-            return future;
-        }catch (IOException exception) {
-            throw new RequestException(exception);
+        var prologueData = prologue ? getPrologueData(store) : null;
+        var headerOffset = prologueData == null ? 0 : prologueData.length;
+        var bodyOffset = headerOffset + FRAME_HEADER_LENGTH;
+        var frame = writeBody(session.bufferPool.acquire(bodyOffset + AesGcm.TAG_LENGTH), bodyOffset);
+        var buffer = frame.buffer();
+        var length = encryptBody(keys, buffer, bodyOffset, frame.end() - bodyOffset);
+        if (prologueData != null) {
+            System.arraycopy(prologueData, 0, buffer, 0, prologueData.length);
         }
+        buffer[headerOffset] = (byte) (length >> 16);
+        buffer[headerOffset + 1] = (byte) (length >> 8);
+        buffer[headerOffset + 2] = (byte) length;
+        var timeout = session.timer.schedule(() -> onTimeout(store), TIMEOUT, SECONDS);
+        future.whenComplete((ignored, throwable) -> timeout.cancel());
+        session.sendBinary(buffer, 0, bodyOffset + length)
+                .whenComplete((ignored, throwable) -> session.bufferPool.release(buffer))
+                .thenRunAsync(() -> onSendSuccess(store, response))
+                .exceptionallyAsync(this::onSendError);
+        return future;
     }
 
     private byte[] getPrologueData(Store store) {
@@ -117,30 +117,44 @@ public record SocketRequest(String id, Object body, CompletableFuture<Node> futu
         };
     }
 
-
-    private byte[] encryptMessage(Keys keys) {
-        var encodedBody = body();
-        var body = getBody(encodedBody);
-        return keys.writeKey()
-                .map(bytes -> AesGcm.encrypt(keys.writeCounter(true), body, bytes))
-                .orElse(body);
-    }
-
-    private byte[] getBody(Object encodedBody) {
-        return switch (encodedBody) {
-            case byte[] bytes -> bytes;
+    private Frame writeBody(byte[] buffer, int offset) {
+        return switch (body) {
+            case byte[] bytes -> {
+                var result = ensureCapacity(buffer, offset + bytes.length + AesGcm.TAG_LENGTH);
+                System.arraycopy(bytes, 0, result, offset, bytes.length);
+                yield new Frame(result, offset + bytes.length);
+            }
             case Node node -> {
-                try(var encoder = new BinaryEncoder()) {
-                    yield encoder.encode(node);
-                } catch (IOException exception) {
-                    throw new UncheckedIOException(exception);
+                try(var encoder = new BinaryEncoder(buffer, offset)) {
+                    var end = encoder.write(node);
+                    yield new Frame(ensureCapacity(encoder.buffer(), end + AesGcm.TAG_LENGTH), end);
                 }
             }
             case null, default ->
-                    throw new IllegalArgumentException("Cannot create request, illegal body: %s".formatted(encodedBody));
+                    throw new IllegalArgumentException("Cannot create request, illegal body: %s".formatted(body));
         };
     }
 
+    private byte[] ensureCapacity(byte[] buffer, int length) {
+        return buffer.length >= length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    private int encryptBody(Keys keys, byte[] buffer, int offset, int length) {
+        return keys.writeCipher()
+                .map(cipher -> cipher.encrypt(keys.writeCounter(true), buffer, offset, length))
+                .orElse(length);
+    }
+
+    /**
+     * A buffer holding an outgoing frame
+     *
+     * @param buffer the buffer, with enough space after the body for the authentication tag
+     * @param end    the position where the body ends
+     */
+    private record Frame(byte[] buffer, int end) {
+
+    }
+
     private void onSendSuccess(Store store, boolean response) {
         if (!response) {
             future.complete(null);
@@ -148,6 +162,17 @@ public record SocketRequest(String id, Object body, CompletableFuture<Node> futu
         }
 
         store.addRequest(this);
+        // The request could have timed out while it was being sent
+        if (future.isDone()) {
+            store.removeRequest(this);
+        }
+    }
+
+    private void onTimeout(Store store) {
+        var message = body instanceof Node node ? "%s node timed out".formatted(node.toString()) : "Binary timed out";
+        if (future.completeExceptionally(new RequestException(message, caller))) {
+            store.removeRequest(this);
+        }
     }
 
     private Void onSendError(Throwable throwable) {
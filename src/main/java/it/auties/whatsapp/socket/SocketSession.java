@@ -1,6 +1,7 @@
 package it.auties.whatsapp.socket;
 
 import it.auties.whatsapp.exception.RequestException;
+import it.auties.whatsapp.util.HashedWheelTimer;
 import it.auties.whatsapp.util.ProxyAuthenticator;
 import it.auties.whatsapp.util.Specification;
 
@@ -29,28 +30,36 @@ public abstract sealed class SocketSession permits SocketSession.WebSocketSessio
     final URI proxy;
     final Executor executor;
     final ReentrantLock outputLock;
+    final FrameBufferPool bufferPool;
+    final HashedWheelTimer timer;
     SocketListener listener;
 
-    private SocketSession(URI proxy, Executor executor) {
+    private SocketSession(URI proxy, Executor executor, HashedWheelTimer timer) {
         this.proxy = proxy;
         this.executor = executor;
         this.outputLock = new ReentrantLock(true);
+        this.bufferPool = new FrameBufferPool();
+        this.timer = timer;
     }
 
     abstract CompletableFuture<Void> connect(SocketListener listener);
 
     abstract void disconnect();
 
-    public abstract CompletableFuture<Void> sendBinary(byte[] bytes);
+    public CompletableFuture<Void> sendBinary(byte[] bytes) {
+        return sendBinary(bytes, 0, bytes.length);
+    }
+
+    public abstract CompletableFuture<Void> sendBinary(byte[] bytes, int offset, int length);
 
     abstract boolean isOpen();
 
-    static SocketSession of(URI proxy, Executor executor, boolean webSocket) {
+    static SocketSession of(URI proxy, Executor executor, HashedWheelTimer timer, boolean webSocket) {
         if (webSocket) {
-            return new WebSocketSession(proxy, executor);
+            return new WebSocketSession(proxy, executor, timer);
         }
 
-        return new RawSocketSession(proxy, executor);
+        return new RawSocketSession(proxy, executor, timer);
     }
 
     Proxy getProxy() {
@@ -80,8 +89,8 @@ public abstract sealed class SocketSession permits SocketSession.WebSocketSessio
         private WebSocket session;
         private final List<ByteBuffer> inputParts;
 
-        WebSocketSession(URI proxy, Executor executor) {
-            super(proxy, executor);
+        WebSocketSession(URI proxy, Executor executor, HashedWheelTimer timer) {
+            super(proxy, executor, timer);
             this.inputParts = new ArrayList<>(5);
         }
 
@@ -113,9 +122,9 @@ public abstract sealed class SocketSession permits SocketSession.WebSocketSessio
         }
 
         @Override
-        public CompletableFuture<Void> sendBinary(byte[] bytes) {
+        public CompletableFuture<Void> sendBinary(byte[] bytes, int offset, int length) {
             outputLock.lock();
-            return session.sendBinary(ByteBuffer.wrap(bytes), true)
+            return session.sendBinary(ByteBuffer.wrap(bytes, offset, length), true)
                     .thenRun(outputLock::unlock)
                     .exceptionally(exception -> {
                         outputLock.unlock();
@@ -203,8 +212,8 @@ public abstract sealed class SocketSession permits SocketSession.WebSocketSessio
         private Socket socket;
         private boolean closed;
 
-        RawSocketSession(URI proxy, Executor executor) {
-            super(proxy, executor);
+        RawSocketSession(URI proxy, Executor executor, HashedWheelTimer timer) {
+            super(proxy, executor, timer);
         }
 
         @Override
@@ -250,7 +259,7 @@ public abstract sealed class SocketSession permits SocketSession.WebSocketSessio
         }
 
         @Override
-        public CompletableFuture<Void> sendBinary(byte[] bytes) {
+        public CompletableFuture<Void> sendBinary(byte[] bytes, int offset, int length) {
             return CompletableFuture.runAsync(() -> {
                 try {
                     outputLock.lock();
@@ -258,7 +267,7 @@ public abstract sealed class SocketSession permits SocketSession.WebSocketSessio
                         return;
                     }
                     var stream = socket.getOutputStream();
-                    stream.write(bytes);
+                    stream.write(bytes, offset, length);
                     stream.flush();
                 } catch (SocketException exception) {
                     disconnect();
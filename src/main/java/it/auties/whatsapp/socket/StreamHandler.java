@@ -24,7 +24,6 @@ import it.auties.whatsapp.model.info.NewsletterMessageInfo;
 import it.auties.whatsapp.model.jid.Jid;
 import it.auties.whatsapp.model.jid.JidServer;
 import it.auties.whatsapp.model.media.MediaConnection;
-import it.auties.whatsapp.model.message.model.ChatMessageKey;
 import it.auties.whatsapp.model.message.model.ChatMessageKeyBuilder;
 import it.auties.whatsapp.model.message.model.MessageStatus;
 import it.auties.whatsapp.model.mobile.PhoneNumber;
@@ -82,7 +81,8 @@ class StreamHandler {
     private final WebVerificationSupport webVerificationSupport;
     private final Map<String, Integer> retries;
     private final AtomicReference<String> lastLinkCodeKey;
-    private ScheduledExecutorService service;
+    private HashedWheelTimer.Timeout pingTask;
+    private HashedWheelTimer.Timeout mediaConnectionTask;
 
     protected StreamHandler(SocketHandler socketHandler, WebVerificationSupport webVerificationSupport) {
         this.socketHandler = socketHandler;
@@ -180,6 +180,7 @@ class StreamHandler {
         }
 
         message.setStatus(messageStatus.get());
+        socketHandler.store().markUpdated(message);
         socketHandler.onMessageStatus(message);
     }
 
@@ -199,6 +200,7 @@ class StreamHandler {
         });
 
         message.setStatus(status);
+        socketHandler.store().markUpdated(message);
         if (Objects.equals(type.orElse(null), "retry")) {
             sendMessageRetry(message);
         }
@@ -307,6 +309,7 @@ class StreamHandler {
 
         if (error != 0) {
             match.setStatus(MessageStatus.ERROR);
+            socketHandler.store().markUpdated(match);
             return;
         }
 
@@ -315,6 +318,7 @@ class StreamHandler {
         }
 
         match.setStatus(MessageStatus.SERVER_ACK);
+        socketHandler.store().markUpdated(match);
     }
 
     private void digestCallAck(Node node) {
@@ -351,6 +355,7 @@ class StreamHandler {
                 case "server_sync" -> handleServerSyncNotification(node);
                 case "account_sync" -> handleAccountSyncNotification(node);
                 case "encrypt" -> handleEncryptNotification(node);
+                case "devices" -> socketHandler.invalidateDevices(from);
                 case "picture" -> handlePictureNotification(node);
                 case "registration" -> handleRegistrationNotification(node);
                 case "link_code_companion_reg" -> handleCompanionRegistration(node);
@@ -601,7 +606,7 @@ class StreamHandler {
                 .orElse(null);
         var parameters = getStubTypeParameters(metadata);
         var key = new ChatMessageKeyBuilder()
-                .id(ChatMessageKey.randomId())
+                .id(socketHandler.store().randomId())
                 .chatJid(chat.jid())
                 .senderJid(participantJid)
                 .build();
@@ -617,6 +622,7 @@ class StreamHandler {
         chat.addNewMessage(message);
         socketHandler.onNewMessage(message);
         if (participantJid == null) {
+            socketHandler.store().removeGroupMetadata(chat.jid());
             return;
         }
 
@@ -632,6 +638,27 @@ class StreamHandler {
             case GROUP_PARTICIPANT_DEMOTE ->
                     chat.findParticipant(participantJid).ifPresent(participant -> participant.setRole(GroupRole.USER));
         }
+        updateGroupMetadata(chat, stubType, participantJid);
+    }
+
+    // Role changes can be applied to the cached metadata, any other change invalidates it so that it's queried again before the next message
+    private void updateGroupMetadata(Chat chat, ChatMessageInfo.StubType stubType, Jid participantJid) {
+        var role = switch (stubType) {
+            case GROUP_PARTICIPANT_PROMOTE -> GroupRole.ADMIN;
+            case GROUP_PARTICIPANT_DEMOTE -> GroupRole.USER;
+            default -> null;
+        };
+        var metadata = socketHandler.store().findGroupMetadata(chat.jid());
+        if (role == null || metadata.isEmpty()) {
+            socketHandler.store().removeGroupMetadata(chat.jid());
+            return;
+        }
+
+        metadata.get()
+                .participants()
+                .stream()
+                .filter(participant -> Objects.equals(participant.jid(), participantJid))
+                .forEach(participant -> participant.setRole(role));
     }
 
     private List<String> getStubTypeParameters(Node metadata) {
@@ -659,6 +686,9 @@ class StreamHandler {
                 .getJid("from")
                 .orElseThrow(() -> new NoSuchElementException("Missing chat in notification"));
         if (!chat.isServerJid(JidServer.WHATSAPP)) {
+            if (node.hasNode("identity")) {
+                socketHandler.invalidateDevices(chat);
+            }
             return;
         }
         var keysSize = node.findNode("count")
@@ -701,6 +731,7 @@ class StreamHandler {
                 .jid()
                 .orElseThrow(() -> new IllegalStateException("The session isn't connected"))
                 .withoutDevice();
+        socketHandler.invalidateDevices(companionJid);
         var companionDevice = devices.remove(companionJid);
         devices.put(companionJid, companionDevice);
         socketHandler.store().setLinkedDevicesKeys(devices);
@@ -721,6 +752,7 @@ class StreamHandler {
     private void updateBlocklistEntry(Node entry) {
         entry.attributes().getJid("jid").flatMap(socketHandler.store()::findContactByJid).ifPresent(contact -> {
             contact.setBlocked(Objects.equals(entry.attributes().getString("action"), "block"));
+            socketHandler.store().setDirty(true);
             socketHandler.onContactBlocked(contact);
         });
     }
@@ -989,12 +1021,13 @@ class StreamHandler {
     }
 
     private void schedulePing() {
-        if (service != null && !service.isShutdown()) {
+        if (pingTask != null && !pingTask.isCancelled()) {
             return;
         }
 
-        service = Executors.newSingleThreadScheduledExecutor();
-        service.scheduleAtFixedRate(this::sendPing, 0, PING_INTERVAL, TimeUnit.SECONDS);
+        this.pingTask = socketHandler.runtime()
+                .timer()
+                .scheduleAtFixedRate(this::sendPing, 0, PING_INTERVAL, TimeUnit.SECONDS);
     }
 
     private void onInitialInfo() {
@@ -1142,6 +1175,7 @@ class StreamHandler {
             socketHandler.onNewContact(contact);
             return contact;
         }).setBlocked(true);
+        socketHandler.store().setDirty(true);
     }
 
     private CompletableFuture<Void> parsePrivacySettings(Node result) {
@@ -1213,8 +1247,13 @@ class StreamHandler {
     }
 
     private void scheduleMediaConnection(int seconds) {
-        var executor = CompletableFuture.delayedExecutor(seconds, TimeUnit.SECONDS);
-        CompletableFuture.runAsync(() -> createMediaConnection(0, null), executor);
+        if (mediaConnectionTask != null) {
+            mediaConnectionTask.cancel();
+        }
+
+        this.mediaConnectionTask = socketHandler.runtime()
+                .timer()
+                .schedule(() -> createMediaConnection(0, null), seconds, TimeUnit.SECONDS);
     }
 
     private void digestIq(Node node) {
@@ -1400,8 +1439,12 @@ class StreamHandler {
 
     protected void dispose() {
         retries.clear();
-        if (service != null) {
-            service.shutdownNow();
+        if (pingTask != null) {
+            pingTask.cancel();
+        }
+
+        if (mediaConnectionTask != null) {
+            mediaConnectionTask.cancel();
         }
 
         lastLinkCodeKey.set(null);
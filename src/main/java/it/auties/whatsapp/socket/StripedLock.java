@@ -0,0 +1,48 @@
+package it.auties.whatsapp.socket;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A fixed set of locks where each key is mapped to one of them by its hash.
+ * Operations on the same key are serialized, while operations on different keys can usually run in parallel.
+ * Callers must never hold the lock of a key while acquiring the lock of another one.
+ */
+final class StripedLock {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    StripedLock(int stripes) {
+        var size = Integer.highestOneBit(Math.max(stripes - 1, 1)) << 1;
+        this.locks = new ReentrantLock[size];
+        this.mask = size - 1;
+        for (var index = 0; index < size; index++) {
+            locks[index] = new ReentrantLock();
+        }
+    }
+
+    <T> T supply(Object key, Supplier<T> supplier) {
+        var lock = get(key);
+        lock.lock();
+        try {
+            return supplier.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void run(Object key, Runnable runnable) {
+        var lock = get(key);
+        lock.lock();
+        try {
+            runnable.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock get(Object key) {
+        var hash = key.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & mask];
+    }
+}
@@ -0,0 +1,173 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.node.Node;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Merges usync queries that ask the same protocol about different users into a single query.
+ * A query is sent right away if no other query with the same protocol is waiting for a response: otherwise, its users are held until that response arrives, or until enough users are pending to fill a batch, and sent together with the ones of every other query that arrived in the meantime.
+ * This way a single lookup doesn't wait for anything, while a burst of lookups costs a few queries instead of one for each.
+ * The users in the response are then handed back to the query that asked for them.
+ */
+final class UsyncBatcher {
+    private static final int MAX_BATCH_SIZE = 512;
+
+    private final SocketHandler socketHandler;
+    private final ConcurrentHashMap<String, Batch> batches;
+
+    UsyncBatcher(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+        this.batches = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Queries some users
+     *
+     * @param context   the context of the query, for example interactive or message
+     * @param queryNode the node that describes which data should be queried
+     * @param users     the user nodes to send, mapped by the jid of the user they describe
+     * @return a future that wraps the user nodes of the response that describe one of the queried users
+     */
+    CompletableFuture<List<Node>> query(String context, Node queryNode, Map<Jid, Node> users) {
+        if (users.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+
+        var batch = batches.computeIfAbsent("%s:%s".formatted(context, queryNode), ignored -> new Batch(context, queryNode));
+        var caller = new Caller(Set.copyOf(users.keySet()), new CompletableFuture<>());
+        Request request;
+        synchronized (batch) {
+            users.forEach(batch.users::putIfAbsent);
+            batch.callers.add(caller);
+            request = batch.inFlight == 0 || batch.users.size() >= MAX_BATCH_SIZE ? batch.drain() : null;
+        }
+
+        if (request != null) {
+            send(batch, request);
+        }
+
+        return caller.future();
+    }
+
+    private void send(Batch batch, Request request) {
+        CompletableFuture<Node> response;
+        try {
+            var sync = Node.of("usync",
+                    Map.of("sid", socketHandler.store().randomId(), "mode", "query", "last", "true", "index", "0", "context", batch.context),
+                    Node.of("query", batch.queryNode),
+                    Node.of("list", request.users()));
+            response = socketHandler.sendQuery("get", "usync", sync);
+        } catch (Throwable throwable) {
+            response = CompletableFuture.failedFuture(throwable);
+        }
+
+        response.whenCompleteAsync((result, throwable) -> {
+            try {
+                if (throwable != null) {
+                    fail(request, throwable);
+                } else if (result == null) {
+                    fail(request, new IllegalStateException("The usync query was cancelled because the session was closed"));
+                } else {
+                    complete(request, result);
+                }
+            } catch (Throwable error) {
+                fail(request, error);
+            } finally {
+                onResponse(batch);
+            }
+        });
+    }
+
+    private void fail(Request request, Throwable throwable) {
+        request.callers().forEach(caller -> caller.future().completeExceptionally(throwable));
+    }
+
+    private void complete(Request request, Node result) {
+        var usersByName = new HashMap<String, List<Node>>();
+        result.findNodes("usync")
+                .stream()
+                .map(node -> node.findNode("list"))
+                .flatMap(Optional::stream)
+                .map(node -> node.findNodes("user"))
+                .flatMap(Collection::stream)
+                .forEach(node -> node.attributes()
+                        .getJid("jid")
+                        .ifPresent(jid -> usersByName.computeIfAbsent(jid.user(), ignored -> new ArrayList<>()).add(node)));
+        for (var caller : request.callers()) {
+            var users = caller.jids()
+                    .stream()
+                    .map(Jid::user)
+                    .distinct()
+                    .map(user -> usersByName.getOrDefault(user, List.of()))
+                    .flatMap(Collection::stream)
+                    .toList();
+            caller.future().complete(users);
+        }
+    }
+
+    private void onResponse(Batch batch) {
+        Request request;
+        synchronized (batch) {
+            batch.inFlight--;
+            request = batch.inFlight == 0 && !batch.callers.isEmpty() ? batch.drain() : null;
+        }
+
+        if (request != null) {
+            send(batch, request);
+        }
+    }
+
+    /**
+     * Fails the lookups that are waiting to be sent and forgets every batch, so that the ones that are still waiting for a response can't hold back the lookups of a new session
+     */
+    void dispose() {
+        var exception = new IllegalStateException("The session was closed");
+        for (var batch : batches.values()) {
+            List<Caller> callers;
+            synchronized (batch) {
+                callers = batch.callers;
+                batch.users = new LinkedHashMap<>();
+                batch.callers = new ArrayList<>();
+            }
+
+            callers.forEach(caller -> caller.future().completeExceptionally(exception));
+        }
+
+        batches.clear();
+    }
+
+    private static final class Batch {
+        private final String context;
+        private final Node queryNode;
+        private LinkedHashMap<Jid, Node> users;
+        private List<Caller> callers;
+        private int inFlight;
+
+        private Batch(String context, Node queryNode) {
+            this.context = context;
+            this.queryNode = queryNode;
+            this.users = new LinkedHashMap<>();
+            this.callers = new ArrayList<>();
+        }
+
+        private Request drain() {
+            var result = new Request(List.copyOf(users.values()), callers);
+            this.users = new LinkedHashMap<>();
+            this.callers = new ArrayList<>();
+            this.inFlight++;
+            return result;
+        }
+    }
+
+    private record Request(List<Node> users, List<Caller> callers) {
+
+    }
+
+    private record Caller(Set<Jid> jids, CompletableFuture<List<Node>> future) {
+
+    }
+}
@@ -15,6 +15,7 @@ import it.auties.whatsapp.model.signal.keypair.SignalSignedKeyPair;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class ControllerHelper {
     public static Optional<StoreAndKeysPair> deserialize(UUID uuid, Long phoneNumber, String alias, ClientType clientType, ControllerSerializer serializer) {
@@ -135,7 +136,7 @@ public class ControllerHelper {
                 SignalSignedKeyPair.of(registrationId, identityKeyPair),
                 null,
                 null,
-                new ArrayList<>(),
+                new CopyOnWriteArrayList<>(),
                 KeyHelper.phoneId(),
                 KeyHelper.deviceId(),
                 KeyHelper.identityId(),
@@ -1,18 +1,22 @@
 package it.auties.whatsapp.util;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import it.auties.whatsapp.api.ClientType;
 import it.auties.whatsapp.controller.Controller;
 import it.auties.whatsapp.controller.ControllerSerializer;
 import it.auties.whatsapp.controller.Keys;
+import it.auties.whatsapp.controller.KeysJournalEntry;
 import it.auties.whatsapp.controller.Store;
 import it.auties.whatsapp.model.chat.Chat;
 import it.auties.whatsapp.model.chat.ChatBuilder;
 import it.auties.whatsapp.model.jid.Jid;
 import it.auties.whatsapp.model.mobile.PhoneNumber;
 import it.auties.whatsapp.model.newsletter.Newsletter;
+import it.auties.whatsapp.model.sync.HistorySyncMessage;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
@@ -32,13 +36,18 @@ import java.util.zip.GZIPOutputStream;
 public class DefaultControllerSerializer implements ControllerSerializer {
     private static final Path DEFAULT_SERIALIZER_PATH = Path.of(System.getProperty("user.home") + "/.cobalt/");
     private static final String CHAT_PREFIX = "chat_";
+    private static final String MESSAGES_PREFIX = "messages_";
+    private static final String ARCHIVE_PREFIX = "archive_";
     private static final String NEWSLETTER_PREFIX = "newsletter_";
     private static final String STORE_NAME = "store.smile";
     private static final String KEYS_NAME = "keys.smile";
+    private static final String KEYS_JOURNAL_NAME = "keys.journal";
+    private static final long KEYS_JOURNAL_MAX_SIZE = 4 * 1024 * 1024;
 
     private static final Map<Path, DefaultControllerSerializer> serializers = new ConcurrentHashMap<>();
     private final Path baseDirectory;
     private final ConcurrentMap<UUID, CompletableFuture<Void>> attributeStoreSerializers;
+    private final ConcurrentMap<UUID, KeysJournal> keysJournals;
     private LinkedList<UUID> cachedUuids;
     private LinkedList<PhoneNumber> cachedPhoneNumbers;
 
@@ -64,6 +73,7 @@ public class DefaultControllerSerializer implements ControllerSerializer {
     private DefaultControllerSerializer(Path baseDirectory) {
         this.baseDirectory = baseDirectory;
         this.attributeStoreSerializers = new ConcurrentHashMap<>();
+        this.keysJournals = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -137,16 +147,54 @@ public class DefaultControllerSerializer implements ControllerSerializer {
             cachedUuids.add(keys.uuid());
         }
 
+        var journal = getKeysJournal(keys);
+        if (async && !keys.dirty() && journal.size() < KEYS_JOURNAL_MAX_SIZE) {
+            return CompletableFuture.runAsync(journal::flush)
+                    .exceptionallyAsync(this::onError);
+        }
+
         var outputFile = getSessionFile(keys.clientType(), keys.uuid().toString(), KEYS_NAME);
         if (async) {
-            return CompletableFuture.runAsync(() -> writeFile(keys, KEYS_NAME, outputFile))
+            return CompletableFuture.runAsync(() -> writeKeys(keys, journal, outputFile))
                     .exceptionallyAsync(this::onError);
         }
 
-        writeFile(keys, KEYS_NAME, outputFile);
+        writeKeys(keys, journal, outputFile);
         return CompletableFuture.completedFuture(null);
     }
 
+    private void writeKeys(Keys keys, KeysJournal journal, Path outputFile) {
+        keys.setDirty(false);
+        try {
+            journal.compact(() -> writeFile(keys, KEYS_NAME, outputFile));
+        } catch (Throwable throwable) {
+            keys.setDirty(true);
+            throw throwable;
+        }
+    }
+
+    @Override
+    public void journalKeys(Keys keys, KeysJournalEntry entry) {
+        try {
+            getKeysJournal(keys).append(entry);
+        } catch (UncheckedIOException exception) {
+            keys.setDirty(true);
+            onError(exception);
+        }
+    }
+
+    private KeysJournal getKeysJournal(Keys keys) {
+        return keysJournals.computeIfAbsent(keys.uuid(), id -> newKeysJournal(keys, getSessionFile(keys.clientType(), id.toString(), KEYS_JOURNAL_NAME)));
+    }
+
+    // A record that can't be written leaves the keys dirty, so that the next snapshot includes the change it held
+    private KeysJournal newKeysJournal(Keys keys, Path file) {
+        return new KeysJournal(file, throwable -> {
+            keys.setDirty(true);
+            onError(throwable);
+        });
+    }
+
     @Override
     public CompletableFuture<Void> serializeStore(Store store, boolean async) {
         if (cachedUuids != null && !cachedUuids.contains(store.uuid())) {
@@ -168,10 +216,8 @@ public class DefaultControllerSerializer implements ControllerSerializer {
         var dependableFutures = Stream.of(chatsFutures, newslettersFutures)
                 .flatMap(Arrays::stream)
                 .toArray(CompletableFuture[]::new);
-        var result = CompletableFuture.allOf(dependableFutures).thenRunAsync(() -> {
-            var storePath = getSessionFile(store, STORE_NAME);
-            writeFile(store, STORE_NAME, storePath);
-        });
+        var result = CompletableFuture.allOf(dependableFutures)
+                .thenRunAsync(() -> serializeStoreFile(store, async));
         if (async) {
             return result;
         }
@@ -180,6 +226,21 @@ public class DefaultControllerSerializer implements ControllerSerializer {
         return CompletableFuture.completedFuture(null);
     }
 
+    private void serializeStoreFile(Store store, boolean async) {
+        if (async && !store.dirty()) {
+            return;
+        }
+
+        store.setDirty(false);
+        try {
+            var storePath = getSessionFile(store, STORE_NAME);
+            writeFile(store, STORE_NAME, storePath);
+        } catch (Throwable throwable) {
+            store.setDirty(true);
+            throw throwable;
+        }
+    }
+
     private CompletableFuture<?>[] serializeChatsAsync(Store store) {
         return store.chats()
                 .stream()
@@ -188,14 +249,37 @@ public class DefaultControllerSerializer implements ControllerSerializer {
     }
 
     private CompletableFuture<Void> serializeChatAsync(Store store, Chat chat) {
+        var archived = chat.trimHistory(store.chatHistoryLimit(), store.chatHistoryRetention().orElse(null));
         if (!chat.hasUpdate()) {
+            chat.releaseHistory();
             return CompletableFuture.completedFuture(null);
         }
 
         var fileName = CHAT_PREFIX + chat.jid() + ".smile";
         var outputFile = getSessionFile(store, fileName);
-        return CompletableFuture.runAsync(() -> writeFile(chat, fileName, outputFile))
-                .exceptionallyAsync(this::onError);
+        var messagesFileName = MESSAGES_PREFIX + chat.jid() + ".smile";
+        var messagesOutputFile = getSessionFile(store, messagesFileName);
+        var archiveFile = getSessionFile(store, ARCHIVE_PREFIX + chat.jid() + ".smile");
+        var messages = chat.hasLoadedHistory() && !chat.hasHistoryLoadFailed() ? chat.historySyncMessages() : null;
+        chat.setUpdate(false);
+        chat.setHistoryLoader(() -> deserializeMessages(store, chat.jid()));
+        chat.setArchiveLoader(() -> deserializeArchive(store, chat.jid()));
+        return CompletableFuture.runAsync(() -> {
+                    if (!archived.isEmpty()) {
+                        appendArchive(archived, archiveFile);
+                        chat.releaseArchived(archived);
+                    }
+
+                    if (messages != null) {
+                        writeFile(messages, messagesFileName, messagesOutputFile);
+                    }
+
+                    writeFile(chat, fileName, outputFile);
+                })
+                .exceptionallyAsync(throwable -> {
+                    chat.setUpdate(true);
+                    return onError(throwable);
+                });
     }
 
     private Void onError(Throwable error) {
@@ -212,9 +296,18 @@ public class DefaultControllerSerializer implements ControllerSerializer {
     }
 
     private CompletableFuture<Void> serializeNewsletterAsync(Store store, Newsletter newsletter) {
+        if (!newsletter.hasUpdate()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
         var fileName = NEWSLETTER_PREFIX + newsletter.jid() + ".smile";
         var outputFile = getSessionFile(store, fileName);
-        return CompletableFuture.runAsync(() -> writeFile(newsletter, fileName, outputFile));
+        newsletter.setUpdate(false);
+        return CompletableFuture.runAsync(() -> writeFile(newsletter, fileName, outputFile))
+                .exceptionallyAsync(throwable -> {
+                    newsletter.setUpdate(true);
+                    return onError(throwable);
+                });
     }
 
     private void writeFile(Object object, String fileName, Path outputFile) {
@@ -265,7 +358,10 @@ public class DefaultControllerSerializer implements ControllerSerializer {
     private Optional<Keys> deserializeKeysFromId(ClientType type, String id) {
         var path = getSessionFile(type, id, "keys.smile");
         try (var input = new GZIPInputStream(Files.newInputStream(path))) {
-            return Optional.of(Smile.readValue(input, Keys.class));
+            var keys = Smile.readValue(input, Keys.class);
+            var journal = keysJournals.computeIfAbsent(keys.uuid(), uuid -> newKeysJournal(keys, getSessionFile(type, id, KEYS_JOURNAL_NAME)));
+            journal.replay(keys);
+            return Optional.of(keys);
         } catch (IOException exception) {
             return Optional.empty();
         }
@@ -372,6 +468,11 @@ public class DefaultControllerSerializer implements ControllerSerializer {
 
     @Override
     public void deleteSession(Controller<?> controller) {
+        var journal = keysJournals.remove(controller.uuid());
+        if (journal != null) {
+            journal.close();
+        }
+
         try {
             var folderPath = getSessionDirectory(controller.clientType(), controller.uuid().toString());
             delete(folderPath);
@@ -421,12 +522,77 @@ public class DefaultControllerSerializer implements ControllerSerializer {
 
     private void deserializeChat(Store store, Path chatFile) {
         try (var input = new GZIPInputStream(Files.newInputStream(chatFile))) {
-            store.addChatDirect(Smile.readValue(input, Chat.class));
+            var chat = Smile.readValue(input, Chat.class);
+            if (chat.hasLoadedHistory()) {
+                chat.setUpdate(true); // Written before messages were moved to their own file
+            }
+
+            chat.setHistoryLoader(() -> deserializeMessages(store, chat.jid()));
+            chat.setArchiveLoader(() -> deserializeArchive(store, chat.jid()));
+            store.addChatDirect(chat);
         } catch (IOException exception) {
             store.addChatDirect(rescueChat(chatFile));
         }
     }
 
+    private List<HistorySyncMessage> deserializeMessages(Store store, Jid chatJid) {
+        var messagesFile = getSessionFile(store, MESSAGES_PREFIX + chatJid + ".smile");
+        if (Files.notExists(messagesFile)) {
+            return List.of();
+        }
+
+        try (var input = new GZIPInputStream(Files.newInputStream(messagesFile))) {
+            return Smile.readValue(input, new TypeReference<>() {});
+        } catch (IOException exception) {
+            var error = new UncheckedIOException("Cannot read the messages of " + chatJid, exception);
+            onError(error);
+            throw error;
+        }
+    }
+
+    private void appendArchive(List<HistorySyncMessage> messages, Path archiveFile) {
+        try {
+            var payload = Smile.writeValueAsBytes(messages);
+            var record = ByteBuffer.allocate(Integer.BYTES + payload.length)
+                    .putInt(payload.length)
+                    .put(payload)
+                    .array();
+            Files.write(archiveFile, record, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot archive messages", exception);
+        }
+    }
+
+    private List<HistorySyncMessage> deserializeArchive(Store store, Jid chatJid) {
+        var archiveFile = getSessionFile(store, ARCHIVE_PREFIX + chatJid + ".smile");
+        if (Files.notExists(archiveFile)) {
+            return List.of();
+        }
+
+        try {
+            var buffer = ByteBuffer.wrap(Files.readAllBytes(archiveFile));
+            var results = new ArrayList<HistorySyncMessage>();
+            while (buffer.remaining() >= Integer.BYTES) {
+                var length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+
+                results.addAll(Arrays.asList(Smile.readValue(buffer.array(), buffer.position(), length, HistorySyncMessage[].class)));
+                buffer.position(buffer.position() + length);
+            }
+
+            // The same message can be archived twice if the process stopped before the history it was removed from was written again
+            var ids = new HashSet<String>();
+            results.removeIf(entry -> entry.messageInfo().id() != null && !ids.add(entry.messageInfo().id()));
+            results.sort(Comparator.comparingLong(entry -> entry.messageInfo().timestampSeconds().orElse(0L)));
+            return results;
+        } catch (IOException exception) {
+            onError(new UncheckedIOException("Cannot read the archived messages of " + chatJid, exception));
+            return List.of();
+        }
+    }
+
     private Chat rescueChat(Path entry) {
         try {
             Files.deleteIfExists(entry);
@@ -444,7 +610,9 @@ public class DefaultControllerSerializer implements ControllerSerializer {
 
     private void deserializeNewsletter(Store store, Path newsletterFile) {
         try (var input = new GZIPInputStream(Files.newInputStream(newsletterFile))) {
-            store.addNewsletter(Smile.readValue(input, Newsletter.class));
+            var newsletter = Smile.readValue(input, Newsletter.class);
+            store.addNewsletter(newsletter);
+            newsletter.setUpdate(false);
         } catch (IOException exception) {
             store.addNewsletter(rescueNewsletter(newsletterFile));
         }
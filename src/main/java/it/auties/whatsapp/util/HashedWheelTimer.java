@@ -0,0 +1,290 @@
+package it.auties.whatsapp.util;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer that schedules tasks on a wheel of buckets, each covering one tick, and runs them on an executor once their bucket is reached.
+ * Scheduling and cancelling a task are constant time operations and a single thread serves every task, so the timer is suited for large numbers of timeouts that are mostly cancelled before they expire.
+ * Tasks run with the precision of a tick.
+ * The thread of the timer is only alive while there are tasks to run, so an idle timer doesn't prevent the JVM from exiting.
+ * A timer that is shut down cancels its tasks and stops its thread.
+ */
+public final class HashedWheelTimer {
+    private final String name;
+    private final long tickNanos;
+    private final Queue<Entry>[] wheel;
+    private final int mask;
+    private final Queue<Entry> pending;
+    private final AtomicInteger size;
+    private final Executor executor;
+    private final long startTime;
+    private Thread worker;
+    private long tick;
+    private volatile boolean shutdown;
+
+    /**
+     * Constructs a new timer
+     *
+     * @param name          the non-null name of the thread of the timer
+     * @param tickDuration  the non-null duration of a tick
+     * @param ticksPerWheel the number of buckets of the wheel, rounded up to a power of two
+     * @param executor      the non-null executor that runs the tasks
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(String name, Duration tickDuration, int ticksPerWheel, Executor executor) {
+        Validate.isTrue(!tickDuration.isNegative() && !tickDuration.isZero(), "Invalid tick duration: %s", tickDuration);
+        Validate.isTrue(ticksPerWheel > 0 && ticksPerWheel <= 1 << 20, "Invalid ticks per wheel: %s", ticksPerWheel);
+        this.name = name;
+        this.tickNanos = tickDuration.toNanos();
+        var length = 1;
+        while (length < ticksPerWheel) {
+            length <<= 1;
+        }
+        this.wheel = new Queue[length];
+        for (var index = 0; index < length; index++) {
+            wheel[index] = new ArrayDeque<>();
+        }
+        this.mask = length - 1;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.size = new AtomicInteger();
+        this.executor = executor;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Schedules a task to run once after a delay
+     *
+     * @param task  the non-null task
+     * @param delay the delay
+     * @param unit  the non-null unit of the delay
+     * @return a non-null handle that can cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return add(new Entry(task, deadline(delay, unit), 0));
+    }
+
+    /**
+     * Schedules a task to run periodically until it's cancelled
+     *
+     * @param task         the non-null task
+     * @param initialDelay the delay before the first run
+     * @param period       the delay between two runs
+     * @param unit         the non-null unit of the delays
+     * @return a non-null handle that can cancel the task
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        Validate.isTrue(period > 0, "Invalid period: %s", period);
+        return add(new Entry(task, deadline(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    private long deadline(long delay, TimeUnit unit) {
+        return System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+    }
+
+    private Entry add(Entry entry) {
+        size.incrementAndGet();
+        synchronized (this) {
+            if (shutdown) {
+                entry.cancel();
+                return entry;
+            }
+
+            pending.add(entry);
+            if (worker == null) {
+                this.tick = (System.nanoTime() - startTime) / tickNanos;
+                this.worker = Thread.ofPlatform()
+                        .name(name)
+                        .start(this::run);
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Cancels every task of this timer and stops its thread
+     * Tasks that are scheduled afterwards are cancelled right away
+     */
+    public void shutdown() {
+        synchronized (this) {
+            this.shutdown = true;
+            if (worker != null) {
+                LockSupport.unpark(worker);
+                return;
+            }
+        }
+
+        cancelPending();
+    }
+
+    private void run() {
+        while (true) {
+            if (shutdown) {
+                cancelAll();
+                return;
+            }
+
+            var sleep = tickNanos * (tick + 1) - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+            if (size.get() == 0 && stop()) {
+                return;
+            }
+        }
+    }
+
+    private synchronized boolean stop() {
+        if (size.get() != 0 || !pending.isEmpty()) {
+            return false;
+        }
+
+        for (var bucket : wheel) {
+            bucket.clear();
+        }
+
+        this.worker = null;
+        return true;
+    }
+
+    private synchronized void cancelAll() {
+        cancelPending();
+        for (var bucket : wheel) {
+            bucket.forEach(Entry::cancel);
+            bucket.clear();
+        }
+
+        this.worker = null;
+    }
+
+    private void cancelPending() {
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            entry.cancel();
+        }
+    }
+
+    private void transferPending() {
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            if (entry.isCancelled()) {
+                continue;
+            }
+
+            var ticks = Math.max(entry.deadline / tickNanos, tick);
+            entry.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(entry);
+        }
+    }
+
+    private void expire(Queue<Entry> bucket) {
+        var iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.isCancelled()) {
+                iterator.remove();
+                continue;
+            }
+
+            if (entry.rounds > 0) {
+                entry.rounds--;
+                continue;
+            }
+
+            iterator.remove();
+            fire(entry);
+        }
+    }
+
+    private void fire(Entry entry) {
+        if (entry.period == 0 && !entry.expire()) {
+            return;
+        }
+
+        try {
+            executor.execute(entry.task);
+        } catch (RejectedExecutionException ignored) {
+            // The executor was shut down, so there's nowhere to run the task
+        }
+
+        if (entry.period != 0 && !entry.isCancelled()) {
+            entry.deadline += entry.period;
+            pending.add(entry);
+        }
+    }
+
+    /**
+     * A handle to a task scheduled on a {@link HashedWheelTimer}
+     */
+    public interface Timeout {
+        /**
+         * Cancels the task if it didn't run yet, or stops it from running again if it's periodic
+         *
+         * @return whether the task was cancelled
+         */
+        boolean cancel();
+
+        /**
+         * Returns whether the task was cancelled
+         *
+         * @return a boolean
+         */
+        boolean isCancelled();
+    }
+
+    private final class Entry implements Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long period;
+        private final AtomicInteger state;
+        private long deadline;
+        private long rounds;
+
+        private Entry(Runnable task, long deadline, long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+            this.state = new AtomicInteger(WAITING);
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+
+            size.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private boolean expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED)) {
+                return false;
+            }
+
+            size.decrementAndGet();
+            return true;
+        }
+    }
+}
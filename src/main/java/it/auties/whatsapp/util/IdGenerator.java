@@ -0,0 +1,39 @@
+package it.auties.whatsapp.util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A generator of ids made of sixteen uppercase hex characters, the same format as random ids.
+ * Each id is a random prefix, drawn once when the generator is created, followed by a counter that starts at a random value,
+ * so generating an id doesn't draw random bytes and different generators are very unlikely to produce the same ids.
+ */
+public final class IdGenerator {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int ID_LENGTH = 16;
+
+    private final long prefix;
+    private final AtomicInteger counter;
+
+    public IdGenerator() {
+        var random = new SecureRandom();
+        this.prefix = (long) random.nextInt() << 32;
+        this.counter = new AtomicInteger(random.nextInt());
+    }
+
+    /**
+     * Generates a new id
+     *
+     * @return a non-null String
+     */
+    public String next() {
+        var value = prefix | (counter.getAndIncrement() & 0xFFFFFFFFL);
+        var result = new char[ID_LENGTH];
+        for (var index = ID_LENGTH - 1; index >= 0; index--) {
+            result[index] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+
+        return new String(result);
+    }
+}
@@ -0,0 +1,247 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.controller.Keys;
+import it.auties.whatsapp.controller.KeysJournalEntry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * An append-only file that holds the changes made to {@link Keys} since they were last serialized.
+ * Each record is framed by its length and by the index of its type, so that a record that was only partially written
+ * when the process died can be detected and discarded while replaying the journal.
+ * Records are encoded by the thread that appends them, so that they reflect the state of the entry at that moment, and written to disk in batches on a background thread,
+ * so that appending a record never waits for the file or for other threads.
+ */
+final class KeysJournal {
+    private static final List<Class<? extends KeysJournalEntry>> TYPES = List.of(
+            KeysJournalEntry.SessionEntry.class,
+            KeysJournalEntry.SenderKeyEntry.class,
+            KeysJournalEntry.PreKeyEntry.class,
+            KeysJournalEntry.HashStateEntry.class,
+            KeysJournalEntry.AppKeysEntry.class,
+            KeysJournalEntry.GroupPreKeysEntry.class
+    );
+    private static final int HEADER_LENGTH = Integer.BYTES + 1;
+
+    private final Path file;
+    private final Path rotatedFile;
+    private final Object compactionLock;
+    private final ConcurrentLinkedQueue<ByteBuffer> pending;
+    private final AtomicBoolean writeScheduled;
+    private final Consumer<Throwable> errorHandler;
+    private FileChannel channel;
+    private long size;
+
+    KeysJournal(Path file, Consumer<Throwable> errorHandler) {
+        this.file = file;
+        this.rotatedFile = file.resolveSibling(file.getFileName() + ".old");
+        this.compactionLock = new Object();
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.writeScheduled = new AtomicBoolean();
+        this.errorHandler = errorHandler;
+        this.size = -1;
+    }
+
+    void append(KeysJournalEntry entry) {
+        try {
+            var payload = Smile.writeValueAsBytes(entry);
+            var record = ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                    .putInt(payload.length)
+                    .put((byte) TYPES.indexOf(entry.getClass()))
+                    .put(payload)
+                    .flip();
+            pending.add(record);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot journal keys", exception);
+        }
+
+        if (writeScheduled.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(this::writeScheduled);
+        }
+    }
+
+    private void writeScheduled() {
+        do {
+            try {
+                writePending();
+            } catch (Throwable throwable) {
+                errorHandler.accept(throwable);
+            } finally {
+                writeScheduled.set(false);
+            }
+        } while (!pending.isEmpty() && writeScheduled.compareAndSet(false, true));
+    }
+
+    private synchronized void writePending() {
+        var records = new ArrayList<ByteBuffer>();
+        ByteBuffer record;
+        while ((record = pending.poll()) != null) {
+            records.add(record);
+        }
+
+        if (records.isEmpty()) {
+            return;
+        }
+
+        try {
+            var buffers = records.toArray(ByteBuffer[]::new);
+            var channel = channel();
+            var last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                size += channel.write(buffers);
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot journal keys", exception);
+        }
+    }
+
+    synchronized long size() {
+        try {
+            if (size == -1) {
+                size = Files.exists(file) ? Files.size(file) : 0;
+            }
+
+            return size;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot read journal size", exception);
+        }
+    }
+
+    synchronized void flush() {
+        writePending();
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot flush journal", exception);
+        }
+    }
+
+    /**
+     * Replaces the journal with a snapshot of the keys.
+     * The current journal is moved aside before the snapshot is taken and deleted only after it was written,
+     * so that the changes it holds are never lost if the snapshot cannot be completed.
+     *
+     * @param snapshot the task that writes the snapshot
+     */
+    void compact(Runnable snapshot) {
+        synchronized (compactionLock) {
+            rotate();
+            snapshot.run();
+            try {
+                Files.deleteIfExists(rotatedFile);
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot delete rotated journal", exception);
+            }
+        }
+    }
+
+    private synchronized void rotate() {
+        writePending();
+        try {
+            close();
+            if (Files.notExists(file)) {
+                return;
+            }
+
+            if (Files.notExists(rotatedFile)) {
+                Files.move(file, rotatedFile);
+                return;
+            }
+
+            try (var source = FileChannel.open(file, READ); var target = FileChannel.open(rotatedFile, WRITE, APPEND)) {
+                var position = 0L;
+                while (position < source.size()) {
+                    position += source.transferTo(position, source.size() - position, target);
+                }
+            }
+            Files.delete(file);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot rotate journal", exception);
+        }
+    }
+
+    synchronized void replay(Keys keys) {
+        replay(rotatedFile, keys);
+        replay(file, keys);
+    }
+
+    private void replay(Path path, Keys keys) {
+        if (Files.notExists(path)) {
+            return;
+        }
+
+        try {
+            var buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            var valid = 0;
+            while (buffer.remaining() >= HEADER_LENGTH) {
+                var length = buffer.getInt();
+                var type = buffer.get();
+                if (length < 0 || type < 0 || type >= TYPES.size() || length > buffer.remaining()) {
+                    break;
+                }
+
+                var entry = readEntry(buffer, length, type);
+                if (entry == null) {
+                    break;
+                }
+
+                keys.applyJournalEntry(entry);
+                buffer.position(buffer.position() + length);
+                valid = buffer.position();
+            }
+
+            if (valid != buffer.capacity()) {
+                try (var channel = FileChannel.open(path, WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot replay journal", exception);
+        }
+    }
+
+    private KeysJournalEntry readEntry(ByteBuffer buffer, int length, int type) {
+        try {
+            return Smile.readValue(buffer.array(), buffer.position(), length, TYPES.get(type));
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    synchronized void close() {
+        writePending();
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            size = -1;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot close journal", exception);
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, CREATE, WRITE, APPEND);
+            size = channel.size();
+        }
+
+        return channel;
+    }
+}
@@ -0,0 +1,404 @@
+package it.auties.whatsapp.util;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.controller.Controller;
+import it.auties.whatsapp.controller.ControllerSerializer;
+import it.auties.whatsapp.controller.Keys;
+import it.auties.whatsapp.controller.KeysJournalEntry;
+import it.auties.whatsapp.controller.Store;
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.mobile.PhoneNumber;
+import it.auties.whatsapp.model.newsletter.Newsletter;
+import it.auties.whatsapp.model.sync.HistorySyncMessage;
+import it.auties.whatsapp.util.LogStructuredStore.Keyspace;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * A serializer that keeps every session of a client type in a single memory-mapped, log-structured file.
+ * Chats, newsletters and each kind of key change live in their own keyspace, so they can be written and read one at a time
+ * instead of through a file each.
+ */
+public class LogControllerSerializer implements ControllerSerializer {
+    private static final Path DEFAULT_SERIALIZER_PATH = Path.of(System.getProperty("user.home") + "/.cobalt/");
+    private static final Map<Keyspace, Class<? extends KeysJournalEntry>> JOURNAL_KEYSPACES = Map.of(
+            Keyspace.SESSIONS, KeysJournalEntry.SessionEntry.class,
+            Keyspace.SENDER_KEYS, KeysJournalEntry.SenderKeyEntry.class,
+            Keyspace.PRE_KEYS, KeysJournalEntry.PreKeyEntry.class,
+            Keyspace.HASH_STATES, KeysJournalEntry.HashStateEntry.class,
+            Keyspace.APP_KEYS, KeysJournalEntry.AppKeysEntry.class,
+            Keyspace.GROUP_PRE_KEYS, KeysJournalEntry.GroupPreKeysEntry.class
+    );
+
+    private static final Map<Path, LogControllerSerializer> serializers = new ConcurrentHashMap<>();
+    private final Path baseDirectory;
+    private final ConcurrentMap<ClientType, LogStructuredStore> stores;
+    private final ConcurrentMap<UUID, CompletableFuture<Void>> attributeStoreSerializers;
+
+    public static ControllerSerializer of() {
+        return of(DEFAULT_SERIALIZER_PATH);
+    }
+
+    public static ControllerSerializer of(Path baseDirectory) {
+        return serializers.computeIfAbsent(baseDirectory, LogControllerSerializer::new);
+    }
+
+    private LogControllerSerializer(Path baseDirectory) {
+        this.baseDirectory = baseDirectory;
+        this.stores = new ConcurrentHashMap<>();
+        this.attributeStoreSerializers = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public LinkedList<UUID> listIds(ClientType type) {
+        return getStore(type).keys(Keyspace.STORES, "")
+                .stream()
+                .map(this::parseId)
+                .flatMap(Optional::stream)
+                .collect(Collectors.toCollection(LinkedList::new));
+    }
+
+    @Override
+    public LinkedList<PhoneNumber> listPhoneNumbers(ClientType type) {
+        return getStore(type).keys(Keyspace.LINKS, "")
+                .stream()
+                .map(this::parsePhoneNumber)
+                .flatMap(Optional::stream)
+                .collect(Collectors.toCollection(LinkedList::new));
+    }
+
+    private Optional<UUID> parseId(String value) {
+        try {
+            return Optional.of(UUID.fromString(value));
+        } catch (IllegalArgumentException ignored) {
+            return Optional.empty();
+        }
+    }
+
+    private Optional<PhoneNumber> parsePhoneNumber(String value) {
+        try {
+            return PhoneNumber.ofNullable(Long.parseLong(value));
+        } catch (IllegalArgumentException ignored) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> serializeKeys(Keys keys, boolean async) {
+        var store = getStore(keys.clientType());
+        if (async && !keys.dirty()) {
+            return CompletableFuture.runAsync(store::flush)
+                    .exceptionallyAsync(this::onError);
+        }
+
+        if (async) {
+            return CompletableFuture.runAsync(() -> writeKeys(store, keys))
+                    .exceptionallyAsync(this::onError);
+        }
+
+        writeKeys(store, keys);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void writeKeys(LogStructuredStore store, Keys keys) {
+        keys.setDirty(false);
+        try {
+            store.put(Keyspace.KEYS, keys.uuid().toString(), writeValue(keys));
+            store.flush();
+        } catch (Throwable throwable) {
+            keys.setDirty(true);
+            throw throwable;
+        }
+    }
+
+    // Changes are queued by the thread that made them, which may hold the lock of the session, and written in the background
+    @Override
+    public void journalKeys(Keys keys, KeysJournalEntry entry) {
+        var prefix = keys.uuid() + "/";
+        switch (entry) {
+            case KeysJournalEntry.SessionEntry sessionEntry ->
+                    journalKeys(keys, Keyspace.SESSIONS, prefix + sessionEntry.address(), entry);
+            case KeysJournalEntry.SenderKeyEntry senderKeyEntry ->
+                    journalKeys(keys, Keyspace.SENDER_KEYS, prefix + senderKeyEntry.name(), entry);
+            case KeysJournalEntry.PreKeyEntry preKeyEntry ->
+                    journalKeys(keys, Keyspace.PRE_KEYS, prefix + preKeyEntry.preKey().id(), entry);
+            case KeysJournalEntry.HashStateEntry hashStateEntry ->
+                    journalKeys(keys, Keyspace.HASH_STATES, prefix + hashStateEntry.device() + "/" + hashStateEntry.state().name(), entry);
+            case KeysJournalEntry.AppKeysEntry appKeysEntry ->
+                    journalKeys(keys, Keyspace.APP_KEYS, prefix + appKeysEntry.jid(), entry);
+            case KeysJournalEntry.GroupPreKeysEntry groupPreKeysEntry ->
+                    journalKeys(keys, Keyspace.GROUP_PRE_KEYS, prefix + groupPreKeysEntry.group(), entry);
+        }
+    }
+
+    private void journalKeys(Keys keys, Keyspace keyspace, String key, KeysJournalEntry entry) {
+        try {
+            getStore(keys.clientType()).putLater(keyspace, key, writeValue(entry), throwable -> {
+                keys.setDirty(true);
+                onError(throwable);
+            });
+        } catch (UncheckedIOException exception) {
+            keys.setDirty(true);
+            onError(exception);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> serializeStore(Store store, boolean async) {
+        var task = attributeStoreSerializers.get(store.uuid());
+        if (task != null && !task.isDone()) {
+            return task;
+        }
+
+        var result = CompletableFuture.runAsync(() -> writeStore(store, async))
+                .exceptionallyAsync(this::onError);
+        if (async) {
+            return result;
+        }
+
+        result.join();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void writeStore(Store store, boolean async) {
+        var logStore = getStore(store.clientType());
+        var prefix = store.uuid() + "/";
+        for (var chat : store.chats()) {
+            var archived = chat.trimHistory(store.chatHistoryLimit(), store.chatHistoryRetention().orElse(null));
+            if (!chat.hasUpdate()) {
+                chat.releaseHistory();
+                continue;
+            }
+
+            var key = prefix + chat.jid();
+            var messages = chat.hasLoadedHistory() && !chat.hasHistoryLoadFailed() ? chat.historySyncMessages() : null;
+            chat.setUpdate(false);
+            chat.setHistoryLoader(() -> readMessages(logStore, key));
+            chat.setArchiveLoader(() -> readArchive(logStore, key));
+            try {
+                if (!archived.isEmpty()) {
+                    var segment = logStore.keys(Keyspace.ARCHIVES, key + "/").size();
+                    logStore.put(Keyspace.ARCHIVES, "%s/%016x".formatted(key, segment), writeValue(archived));
+                    chat.releaseArchived(archived);
+                }
+
+                if (messages != null) {
+                    logStore.put(Keyspace.MESSAGES, prefix + chat.jid(), writeValue(messages));
+                }
+
+                logStore.put(Keyspace.CHATS, prefix + chat.jid(), writeValue(chat));
+            } catch (Throwable throwable) {
+                chat.setUpdate(true);
+                throw throwable;
+            }
+        }
+
+        for (var newsletter : store.newsletters()) {
+            if (!newsletter.hasUpdate()) {
+                continue;
+            }
+
+            newsletter.setUpdate(false);
+            try {
+                logStore.put(Keyspace.NEWSLETTERS, prefix + newsletter.jid(), writeValue(newsletter));
+            } catch (Throwable throwable) {
+                newsletter.setUpdate(true);
+                throw throwable;
+            }
+        }
+
+        if (!async || store.dirty()) {
+            store.setDirty(false);
+            try {
+                logStore.put(Keyspace.STORES, store.uuid().toString(), writeValue(store));
+            } catch (Throwable throwable) {
+                store.setDirty(true);
+                throw throwable;
+            }
+        }
+
+        logStore.flush();
+    }
+
+    private byte[] writeValue(Object value) {
+        try {
+            return Smile.writeValueAsBytes(value);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot serialize value", exception);
+        }
+    }
+
+    private <T> Optional<T> readValue(byte[] value, Class<T> type) {
+        try {
+            return Optional.of(Smile.readValue(value, 0, value.length, type));
+        } catch (IOException exception) {
+            return Optional.empty();
+        }
+    }
+
+    private List<HistorySyncMessage> readMessages(LogStructuredStore logStore, String key) {
+        try {
+            var value = logStore.get(Keyspace.MESSAGES, key);
+            if (value.isEmpty()) {
+                return List.of();
+            }
+
+            return Smile.readValue(value.get(), new TypeReference<>() {});
+        } catch (IOException exception) {
+            var error = new UncheckedIOException("Cannot read the messages of " + key, exception);
+            onError(error);
+            throw error;
+        } catch (UncheckedIOException exception) {
+            onError(exception);
+            throw exception;
+        }
+    }
+
+    private List<HistorySyncMessage> readArchive(LogStructuredStore logStore, String key) {
+        var results = new ArrayList<HistorySyncMessage>();
+        for (var segment : logStore.keys(Keyspace.ARCHIVES, key + "/")) {
+            logStore.get(Keyspace.ARCHIVES, segment)
+                    .flatMap(value -> readValue(value, HistorySyncMessage[].class))
+                    .ifPresent(messages -> results.addAll(Arrays.asList(messages)));
+        }
+
+        // The same message can be archived twice if the process stopped before the history it was removed from was written again
+        var ids = new HashSet<String>();
+        results.removeIf(entry -> entry.messageInfo().id() != null && !ids.add(entry.messageInfo().id()));
+        results.sort(Comparator.comparingLong(entry -> entry.messageInfo().timestampSeconds().orElse(0L)));
+        return results;
+    }
+
+    private Void onError(Throwable error) {
+        var logger = System.getLogger("Serializer");
+        logger.log(System.Logger.Level.ERROR, error);
+        return null;
+    }
+
+    @Override
+    public Optional<Keys> deserializeKeys(ClientType type, UUID id) {
+        var store = getStore(type);
+        var prefix = id + "/";
+        var keys = store.get(Keyspace.KEYS, id.toString())
+                .flatMap(value -> readValue(value, Keys.class));
+        keys.ifPresent(result -> JOURNAL_KEYSPACES.forEach((keyspace, entryType) -> store.keys(keyspace, prefix)
+                .forEach(key -> store.get(keyspace, key)
+                        .flatMap(value -> readValue(value, entryType))
+                        .ifPresent(result::applyJournalEntry))));
+        return keys;
+    }
+
+    @Override
+    public Optional<Keys> deserializeKeys(ClientType type, long phoneNumber) {
+        return findLinkedId(type, String.valueOf(phoneNumber))
+                .flatMap(id -> deserializeKeys(type, id));
+    }
+
+    @Override
+    public Optional<Keys> deserializeKeys(ClientType type, String alias) {
+        return findLinkedId(type, alias)
+                .flatMap(id -> deserializeKeys(type, id));
+    }
+
+    @Override
+    public Optional<Store> deserializeStore(ClientType type, UUID id) {
+        return getStore(type).get(Keyspace.STORES, id.toString())
+                .flatMap(value -> readValue(value, Store.class));
+    }
+
+    @Override
+    public Optional<Store> deserializeStore(ClientType type, long phoneNumber) {
+        return findLinkedId(type, String.valueOf(phoneNumber))
+                .flatMap(id -> deserializeStore(type, id));
+    }
+
+    @Override
+    public Optional<Store> deserializeStore(ClientType type, String alias) {
+        return findLinkedId(type, alias)
+                .flatMap(id -> deserializeStore(type, id));
+    }
+
+    private Optional<UUID> findLinkedId(ClientType type, String link) {
+        return getStore(type).get(Keyspace.LINKS, link)
+                .map(value -> new String(value, StandardCharsets.UTF_8))
+                .flatMap(this::parseId);
+    }
+
+    @Override
+    public CompletableFuture<Void> attributeStore(Store store) {
+        return attributeStoreSerializers.computeIfAbsent(store.uuid(), ignored -> {
+            var logStore = getStore(store.clientType());
+            var prefix = store.uuid() + "/";
+            var chats = CompletableFuture.runAsync(() -> logStore.keys(Keyspace.CHATS, prefix)
+                    .parallelStream()
+                    .forEach(key -> logStore.get(Keyspace.CHATS, key)
+                            .flatMap(value -> readValue(value, Chat.class))
+                            .ifPresent(chat -> {
+                                if (chat.hasLoadedHistory()) {
+                                    chat.setUpdate(true); // Written before messages were moved to their own keyspace
+                                }
+
+                                chat.setHistoryLoader(() -> readMessages(logStore, prefix + chat.jid()));
+                                chat.setArchiveLoader(() -> readArchive(logStore, prefix + chat.jid()));
+                                store.addChatDirect(chat);
+                            })));
+            var newsletters = CompletableFuture.runAsync(() -> logStore.keys(Keyspace.NEWSLETTERS, prefix)
+                    .parallelStream()
+                    .forEach(key -> logStore.get(Keyspace.NEWSLETTERS, key)
+                            .flatMap(value -> readValue(value, Newsletter.class))
+                            .ifPresent(newsletter -> {
+                                store.addNewsletter(newsletter);
+                                newsletter.setUpdate(false);
+                            })));
+            return CompletableFuture.allOf(chats, newsletters);
+        });
+    }
+
+    @Override
+    public void deleteSession(Controller<?> controller) {
+        var store = getStore(controller.clientType());
+        var id = controller.uuid().toString();
+        var prefix = id + "/";
+        for (var keyspace : Keyspace.values()) {
+            switch (keyspace) {
+                case LINKS -> store.keys(Keyspace.LINKS, "")
+                        .stream()
+                        .filter(link -> store.get(Keyspace.LINKS, link).filter(value -> id.equals(new String(value, StandardCharsets.UTF_8))).isPresent())
+                        .forEach(link -> store.delete(Keyspace.LINKS, link));
+                case STORES, KEYS -> store.delete(keyspace, id);
+                default -> store.deleteByPrefix(keyspace, prefix);
+            }
+        }
+        store.flush();
+        attributeStoreSerializers.remove(controller.uuid());
+    }
+
+    @Override
+    public void linkMetadata(Controller<?> controller) {
+        controller.phoneNumber()
+                .ifPresent(phoneNumber -> linkToUuid(controller.clientType(), controller.uuid(), phoneNumber.toString()));
+        controller.alias()
+                .forEach(alias -> linkToUuid(controller.clientType(), controller.uuid(), alias));
+    }
+
+    private void linkToUuid(ClientType type, UUID uuid, String link) {
+        if (findLinkedId(type, link).filter(uuid::equals).isPresent()) {
+            return;
+        }
+
+        getStore(type).put(Keyspace.LINKS, link, uuid.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private LogStructuredStore getStore(ClientType type) {
+        return stores.computeIfAbsent(type, key -> new LogStructuredStore(baseDirectory.resolve(key == ClientType.MOBILE ? "mobile.log" : "web.log")));
+    }
+}
@@ -0,0 +1,465 @@
+package it.auties.whatsapp.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A single file key-value store split in keyspaces.
+ * Every write is appended to the end of the file, while an in-memory index maps each key to the position of its latest value,
+ * which is then read through a memory mapping of the segment of the file that holds it, or through the channel if that segment is still being written.
+ * Records are framed by their length and followed by their checksum, so that a torn tail is discarded when the file is opened.
+ * Values that change often can be queued and written in batches on a background thread, so that the thread that changed them never waits for the file.
+ * Once the space taken by overwritten and deleted values outgrows the live data, the file is compacted on a background thread by rewriting only the latter.
+ */
+final class LogStructuredStore implements AutoCloseable {
+    private static final int LENGTH_BYTES = Integer.BYTES;
+    private static final int HEADER_LENGTH = 2 + Short.BYTES;
+    private static final int CHECKSUM_LENGTH = Integer.BYTES;
+    private static final byte PUT = 0;
+    private static final byte DELETE = 1;
+    private static final long COMPACTION_MIN_SIZE = 16 * 1024 * 1024;
+    private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private final Path file;
+    private final Map<Keyspace, ConcurrentSkipListMap<String, Slot>> index;
+    private final ReentrantReadWriteLock lock;
+    private final ConcurrentHashMap<Long, MappedByteBuffer> segments;
+    private final ConcurrentLinkedQueue<PendingPut> pending;
+    private final AtomicBoolean writeScheduled;
+    private final AtomicBoolean compactionScheduled;
+    private FileChannel channel;
+    private long size;
+    private long garbage;
+
+    LogStructuredStore(Path file) {
+        this.file = file;
+        this.index = new EnumMap<>(Keyspace.class);
+        for (var keyspace : Keyspace.values()) {
+            index.put(keyspace, new ConcurrentSkipListMap<>());
+        }
+        this.lock = new ReentrantReadWriteLock();
+        this.segments = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.writeScheduled = new AtomicBoolean();
+        this.compactionScheduled = new AtomicBoolean();
+        open();
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(file.getParent());
+            this.channel = FileChannel.open(file, CREATE, READ, WRITE);
+            var fileSize = channel.size();
+            var position = 0L;
+            while (position + LENGTH_BYTES + HEADER_LENGTH + CHECKSUM_LENGTH <= fileSize) {
+                var length = readFully(ByteBuffer.allocate(LENGTH_BYTES), position).getInt(0);
+                if (length < HEADER_LENGTH + CHECKSUM_LENGTH || position + LENGTH_BYTES + length > fileSize) {
+                    break;
+                }
+
+                var body = readFully(ByteBuffer.allocate(length), position + LENGTH_BYTES);
+                if (!recover(body, position)) {
+                    break;
+                }
+
+                position += LENGTH_BYTES + length;
+            }
+
+            if (position != fileSize) {
+                channel.truncate(position);
+            }
+
+            this.size = position;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot open store", exception);
+        }
+    }
+
+    private boolean recover(ByteBuffer body, long position) {
+        var length = body.capacity();
+        var checksum = new CRC32C();
+        checksum.update(body.array(), 0, length - CHECKSUM_LENGTH);
+        if ((int) checksum.getValue() != body.getInt(length - CHECKSUM_LENGTH)) {
+            return false;
+        }
+
+        var keyspaceIndex = body.get(0);
+        var type = body.get(1);
+        var keyLength = Short.toUnsignedInt(body.getShort(2));
+        if (keyspaceIndex < 0 || keyspaceIndex >= Keyspace.values().length || HEADER_LENGTH + keyLength + CHECKSUM_LENGTH > length) {
+            return false;
+        }
+
+        var keyspace = Keyspace.values()[keyspaceIndex];
+        var key = new String(body.array(), HEADER_LENGTH, keyLength, StandardCharsets.UTF_8);
+        var recordSize = LENGTH_BYTES + length;
+        if (type == DELETE) {
+            release(index.get(keyspace).remove(key));
+            garbage += recordSize;
+            return true;
+        }
+
+        var valueOffset = position + LENGTH_BYTES + HEADER_LENGTH + keyLength;
+        var valueLength = length - HEADER_LENGTH - keyLength - CHECKSUM_LENGTH;
+        release(index.get(keyspace).put(key, new Slot(valueOffset, valueLength, recordSize)));
+        return true;
+    }
+
+    /**
+     * Reads the latest value associated with a key
+     *
+     * @param keyspace the non-null keyspace of the key
+     * @param key      the non-null key
+     * @return a non-null optional
+     */
+    Optional<byte[]> get(Keyspace keyspace, String key) {
+        writePending();
+        lock.readLock().lock();
+        try {
+            var slot = index.get(keyspace).get(key);
+            if (slot == null) {
+                return Optional.empty();
+            }
+
+            return Optional.of(read(slot));
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot read from store", exception);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the keys that start with a prefix, sorted by the position of their value in the file
+     *
+     * @param keyspace the non-null keyspace to search
+     * @param prefix   the non-null prefix
+     * @return a non-null list
+     */
+    List<String> keys(Keyspace keyspace, String prefix) {
+        writePending();
+        lock.readLock().lock();
+        try {
+            return index.get(keyspace)
+                    .subMap(prefix, true, prefix + Character.MAX_VALUE, true)
+                    .entrySet()
+                    .stream()
+                    .sorted(Comparator.comparingLong(entry -> entry.getValue().offset()))
+                    .map(Map.Entry::getKey)
+                    .toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Associates a value with a key
+     *
+     * @param keyspace the non-null keyspace of the key
+     * @param key      the non-null key
+     * @param value    the non-null value
+     */
+    void put(Keyspace keyspace, String key, byte[] value) {
+        lock.writeLock().lock();
+        try {
+            var slot = append(keyspace, PUT, key, value);
+            release(index.get(keyspace).put(key, slot));
+            scheduleCompaction();
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot write to store", exception);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Queues a value to be associated with a key by a background thread, together with the other values that are queued in the meantime
+     * Queued values are also written before any read, flush or delete, so they are never read out of order
+     *
+     * @param keyspace     the non-null keyspace of the key
+     * @param key          the non-null key
+     * @param value        the non-null value
+     * @param errorHandler the non-null handler that is notified if the value can't be written
+     */
+    void putLater(Keyspace keyspace, String key, byte[] value, Consumer<Throwable> errorHandler) {
+        pending.add(new PendingPut(keyspace, key, value, errorHandler));
+        if (writeScheduled.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(this::writeScheduled);
+        }
+    }
+
+    private void writeScheduled() {
+        do {
+            try {
+                writePending();
+            } finally {
+                writeScheduled.set(false);
+            }
+        } while (!pending.isEmpty() && writeScheduled.compareAndSet(false, true));
+    }
+
+    private void writePending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            PendingPut entry;
+            while ((entry = pending.poll()) != null) {
+                try {
+                    var slot = append(entry.keyspace(), PUT, entry.key(), entry.value());
+                    release(index.get(entry.keyspace()).put(entry.key(), slot));
+                } catch (Throwable throwable) {
+                    entry.errorHandler().accept(throwable);
+                }
+            }
+
+            scheduleCompaction();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a key
+     *
+     * @param keyspace the non-null keyspace of the key
+     * @param key      the non-null key
+     */
+    void delete(Keyspace keyspace, String key) {
+        deleteAll(keyspace, List.of(key));
+    }
+
+    /**
+     * Removes every key that starts with a prefix
+     *
+     * @param keyspace the non-null keyspace to clear
+     * @param prefix   the non-null prefix
+     */
+    void deleteByPrefix(Keyspace keyspace, String prefix) {
+        deleteAll(keyspace, List.copyOf(index.get(keyspace).subMap(prefix, true, prefix + Character.MAX_VALUE, true).keySet()));
+    }
+
+    private void deleteAll(Keyspace keyspace, List<String> keys) {
+        writePending();
+        lock.writeLock().lock();
+        try {
+            var slots = index.get(keyspace);
+            for (var key : keys) {
+                if (!slots.containsKey(key)) {
+                    continue;
+                }
+
+                var tombstone = append(keyspace, DELETE, key, new byte[0]);
+                release(slots.remove(key));
+                garbage += tombstone.size();
+            }
+
+            scheduleCompaction();
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot delete from store", exception);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces the written values on disk
+     */
+    void flush() {
+        writePending();
+        try {
+            channel.force(false);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot flush store", exception);
+        }
+    }
+
+    private Slot append(Keyspace keyspace, byte type, String key, byte[] value) throws IOException {
+        var encodedKey = key.getBytes(StandardCharsets.UTF_8);
+        if (encodedKey.length > 0xFFFF) {
+            throw new IllegalArgumentException("Key is too long: %s".formatted(key));
+        }
+
+        var length = HEADER_LENGTH + encodedKey.length + value.length + CHECKSUM_LENGTH;
+        var record = ByteBuffer.allocate(LENGTH_BYTES + length)
+                .putInt(length)
+                .put((byte) keyspace.ordinal())
+                .put(type)
+                .putShort((short) encodedKey.length)
+                .put(encodedKey)
+                .put(value);
+        var checksum = new CRC32C();
+        checksum.update(record.array(), LENGTH_BYTES, length - CHECKSUM_LENGTH);
+        record.putInt((int) checksum.getValue()).flip();
+        var position = size;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+
+        var slot = new Slot(size + LENGTH_BYTES + HEADER_LENGTH + encodedKey.length, value.length, LENGTH_BYTES + length);
+        size = position;
+        return slot;
+    }
+
+    private void release(Slot slot) {
+        if (slot != null) {
+            garbage += slot.size();
+        }
+    }
+
+    // Appends don't move existing values, so a segment is mapped once when the file grows past its end and never again until the file is compacted
+    private byte[] read(Slot slot) throws IOException {
+        var result = new byte[slot.length()];
+        var segmentIndex = slot.offset() / SEGMENT_SIZE;
+        var segmentStart = segmentIndex * SEGMENT_SIZE;
+        var segmentEnd = segmentStart + SEGMENT_SIZE;
+        if (slot.offset() + slot.length() > segmentEnd || segmentEnd > size) {
+            readFully(ByteBuffer.wrap(result), slot.offset());
+            return result;
+        }
+
+        var segment = segments.get(segmentIndex);
+        if (segment == null) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, SEGMENT_SIZE);
+            var previous = segments.putIfAbsent(segmentIndex, segment);
+            if (previous != null) {
+                segment = previous;
+            }
+        }
+
+        segment.get((int) (slot.offset() - segmentStart), result);
+        return result;
+    }
+
+    private ByteBuffer readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            var read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+
+        return buffer;
+    }
+
+    private boolean needsCompaction() {
+        return size >= COMPACTION_MIN_SIZE && garbage >= size / 2;
+    }
+
+    private void scheduleCompaction() {
+        if (needsCompaction() && compactionScheduled.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(this::compactScheduled);
+        }
+    }
+
+    private void compactScheduled() {
+        lock.writeLock().lock();
+        try {
+            if (channel.isOpen() && needsCompaction()) {
+                compact();
+            }
+        } catch (Throwable throwable) {
+            var logger = System.getLogger("LogStructuredStore");
+            logger.log(System.Logger.Level.ERROR, throwable);
+        } finally {
+            compactionScheduled.set(false);
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compact() throws IOException {
+        var compactedFile = file.resolveSibling(file.getFileName() + ".compact");
+        var compactedIndex = new EnumMap<Keyspace, Map<String, Slot>>(Keyspace.class);
+        try (var output = FileChannel.open(compactedFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            var position = 0L;
+            for (var keyspace : index.entrySet()) {
+                var slots = new HashMap<String, Slot>();
+                for (var entry : keyspace.getValue().entrySet()) {
+                    var slot = entry.getValue();
+                    var start = slot.offset() + slot.length() - slot.size() + CHECKSUM_LENGTH;
+                    var transferred = 0L;
+                    while (transferred < slot.size()) {
+                        transferred += channel.transferTo(start + transferred, slot.size() - transferred, output);
+                    }
+
+                    slots.put(entry.getKey(), new Slot(position + slot.offset() - start, slot.length(), slot.size()));
+                    position += slot.size();
+                }
+
+                compactedIndex.put(keyspace.getKey(), slots);
+            }
+
+            output.force(true);
+            Files.move(compactedFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            segments.clear();
+            compactedIndex.forEach((keyspace, slots) -> index.get(keyspace).putAll(slots));
+            this.channel = FileChannel.open(file, READ, WRITE);
+            this.size = position;
+            this.garbage = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        writePending();
+        lock.writeLock().lock();
+        try {
+            channel.close();
+            segments.clear();
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot close store", exception);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The independent namespaces of keys held by a store.
+     * Constants are identified by their ordinal on disk, so new ones can only be appended.
+     */
+    enum Keyspace {
+        LINKS,
+        STORES,
+        KEYS,
+        CHATS,
+        NEWSLETTERS,
+        SESSIONS,
+        SENDER_KEYS,
+        PRE_KEYS,
+        HASH_STATES,
+        APP_KEYS,
+        GROUP_PRE_KEYS,
+        MESSAGES,
+        ARCHIVES
+    }
+
+    private record Slot(long offset, int length, int size) {
+
+    }
+
+    private record PendingPut(Keyspace keyspace, String key, byte[] value, Consumer<Throwable> errorHandler) {
+
+    }
+}
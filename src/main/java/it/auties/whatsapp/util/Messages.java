@@ -3,19 +3,80 @@ package it.auties.whatsapp.util;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
+/**
+ * An ordered collection of messages without duplicates.
+ * Every message is identified by the id returned by the id extractor of this collection, or by itself if it doesn't have one, and mapped to its node,
+ * so that inserting, deduplicating, looking up and removing a message never walks the collection.
+ * Mutations are serialized, while iterators are weakly consistent and never throw {@link ConcurrentModificationException}.
+ */
 public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
-    private final AtomicReference<Node<E>> head;
-    private final AtomicReference<Node<E>> tail;
-    private final Set<Integer> hashes;
-
+    private final Function<? super E, String> idExtractor;
+    private final Map<Object, Node<E>> nodes;
+    private volatile Node<E> head;
+    private volatile Node<E> tail;
+
+    /**
+     * Constructs an empty collection whose messages are identified by themselves
+     * This constructor is used by deserializers: the owner of the messages should copy them into a collection that knows their ids
+     */
     public Messages() {
-        this.head = new AtomicReference<>(null);
-        this.tail = new AtomicReference<>(null);
-        this.hashes = ConcurrentHashMap.newKeySet();
+        this(null);
+    }
+
+    /**
+     * Constructs an empty collection
+     *
+     * @param idExtractor the function that returns the id of a message, or null if messages should be identified by themselves
+     */
+    public Messages(Function<? super E, String> idExtractor) {
+        this.idExtractor = idExtractor;
+        this.nodes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Constructs a collection that contains some messages, in the order they are returned by their iterator
+     *
+     * @param idExtractor the function that returns the id of a message, or null if messages should be identified by themselves
+     * @param messages    the non-null messages to add
+     */
+    public Messages(Function<? super E, String> idExtractor, Collection<? extends E> messages) {
+        this(idExtractor);
+        messages.forEach(this::add);
+    }
+
+    /**
+     * Queries the message with the provided id without walking the collection
+     *
+     * @param id the id to search
+     * @return a non-null optional
+     */
+    public Optional<E> findById(String id) {
+        if (id == null) {
+            return Optional.empty();
+        }
+
+        var node = nodes.get(id);
+        return node == null ? Optional.empty() : Optional.of(node.item);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object keyOf(Object item) {
+        if (item == null || idExtractor == null) {
+            return item;
+        }
+
+        String id;
+        try {
+            id = idExtractor.apply((E) item);
+        } catch (ClassCastException exception) {
+            // Lookups can be made with any object, which can't be one of the messages if it doesn't have their type
+            return item;
+        }
+
+        return id != null ? id : item;
     }
 
     @Override
@@ -39,134 +100,148 @@ public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
     }
 
     @Override
-    public boolean add(E e) {
-        var hash = Objects.hashCode(e);
-        if (hashes.contains(hash)) {
+    public synchronized boolean add(E e) {
+        Objects.requireNonNull(e, "Messages cannot hold null elements");
+        var key = keyOf(e);
+        if (nodes.containsKey(key)) {
             return false;
         }
 
-        var newNode = new Node<>(e);
-        var oldTail = tail.getAndSet(newNode);
+        var newNode = new Node<>(key, e);
+        var oldTail = tail;
         if (oldTail == null) {
-            head.set(newNode);
+            head = newNode;
         } else {
             oldTail.next = newNode;
             newNode.prev = oldTail;
         }
 
-        hashes.add(hash);
+        tail = newNode;
+        nodes.put(key, newNode);
         return true;
     }
 
     @Override
     public boolean offerFirst(E e) {
-        addFirst(e);
-        return true;
+        return insertFirst(e);
     }
 
     @Override
     public void addFirst(E message) {
-        var hash = Objects.hashCode(message);
-        if (hashes.contains(hash)) {
-            return;
+        insertFirst(message);
+    }
+
+    private synchronized boolean insertFirst(E e) {
+        Objects.requireNonNull(e, "Messages cannot hold null elements");
+        var key = keyOf(e);
+        if (nodes.containsKey(key)) {
+            return false;
         }
 
-        var newNode = new Node<>(message);
-        var oldHead = head.getAndSet(newNode);
+        var newNode = new Node<>(key, e);
+        var oldHead = head;
         if (oldHead == null) {
-            tail.set(newNode);
+            tail = newNode;
         } else {
             oldHead.prev = newNode;
             newNode.next = oldHead;
         }
 
-        hashes.add(hash);
+        head = newNode;
+        nodes.put(key, newNode);
+        return true;
     }
 
     @Override
-    public E removeLast() {
-        return remove();
+    public synchronized boolean remove(Object o) {
+        var node = nodes.get(keyOf(o));
+        if (node == null || !Objects.equals(node.item, o)) {
+            return false;
+        }
+
+        unlink(node);
+        return true;
     }
 
     @Override
-    public boolean remove(Object o) {
-        var hash = Objects.hashCode(o);
-        if (!hashes.contains(hash)) {
-            return false;
+    public boolean removeAll(Collection<?> collection) {
+        var result = false;
+        for (var entry : collection) {
+            result |= remove(entry);
         }
 
-        var node = head.get();
-        while (node != null) {
-            if (node.item.equals(o)) {
-                removeNode(node);
-                hashes.remove(hash);
-                return true;
+        return result;
+    }
+
+    @Override
+    public synchronized boolean removeIf(Predicate<? super E> filter) {
+        var result = false;
+        for (var node = head; node != null; node = node.next) {
+            if (filter.test(node.item)) {
+                unlink(node);
+                result = true;
             }
-            node = node.next;
         }
 
-        return false;
+        return result;
     }
 
     @Override
-    public boolean removeAll(Collection<?> collection) {
-        var hashCodes = collection.stream()
-                .map(Objects::hashCode)
-                .collect(Collectors.toUnmodifiableSet());
-        var node = head.get();
-        while (node != null) {
-            var hash = Objects.hashCode(node.item);
-            if (hashCodes.contains(hash)) {
-                removeNode(node);
-                hashes.remove(hash);
-                return true;
+    public synchronized void clear() {
+        nodes.clear();
+        head = null;
+        tail = null;
+    }
+
+    // Removed nodes keep their forward link, so that iterators that are positioned on them can keep walking
+    private void unlink(Node<E> node) {
+        if (nodes.remove(node.key, node)) {
+            var prev = node.prev;
+            var next = node.next;
+            if (prev == null) {
+                head = next;
+            } else {
+                prev.next = next;
             }
-            node = node.next;
-        }
 
-        return false;
+            if (next == null) {
+                tail = prev;
+            } else {
+                next.prev = prev;
+            }
+        }
     }
 
     @Override
     public E poll() {
-        return remove();
+        return pollFirst();
     }
 
     @Override
-    public E pollLast() {
-        return remove();
+    public E remove() {
+        return removeFirst();
     }
 
     @Override
-    public E remove() {
-        var headItem = head.get();
-        if (headItem == null) {
+    public synchronized E pollFirst() {
+        var node = head;
+        if (node == null) {
             return null;
         }
 
-        var node = head.getAndSet(headItem.next);
-        if (node == tail.get()) {
-            tail.compareAndSet(node, node.prev);
-        }
-
-        hashes.remove(Objects.hashCode(node.item));
+        unlink(node);
         return node.item;
     }
 
-    private void removeNode(Node<E> node) {
-        if (node == head.get()) {
-            head.compareAndSet(node, node.next);
-        } else if (node == tail.get()) {
-            tail.compareAndSet(node, node.prev);
-        } else {
-            node.prev.next = node.next;
-            node.next.prev = node.prev;
+    @Override
+    public synchronized E pollLast() {
+        var node = tail;
+        if (node == null) {
+            return null;
         }
-    }
 
-    @Override
-    public E pollFirst() {
-        return removeFirst();
+        unlink(node);
+        return node.item;
     }
 
     @Override
@@ -176,32 +251,44 @@ public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
 
     @Override
     public E removeFirst() {
-        var node = head.getAndSet(head.get().next);
-        if (node == tail.get()) {
-            tail.compareAndSet(node, node.prev);
+        var result = pollFirst();
+        if (result == null) {
+            throw new NoSuchElementException();
         }
-        return node.item;
+
+        return result;
+    }
+
+    @Override
+    public E removeLast() {
+        var result = pollLast();
+        if (result == null) {
+            throw new NoSuchElementException();
+        }
+
+        return result;
     }
 
     @Override
     public int size() {
-        return hashes.size();
+        return nodes.size();
     }
 
     @Override
     public boolean isEmpty() {
-        return head.get() == null;
+        return head == null;
     }
 
     @Override
     public boolean contains(Object o) {
-        return hashes.contains(Objects.hashCode(o));
+        var node = nodes.get(keyOf(o));
+        return node != null && Objects.equals(node.item, o);
     }
 
     @Override
     public Iterator<E> iterator() {
         return new Iterator<>() {
-            private Node<E> nextNode = head.get();
+            private Node<E> nextNode = head;
 
             @Override
             public boolean hasNext() {
@@ -223,7 +310,7 @@ public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
 
     public Iterator<E> descendingIterator() {
         return new Iterator<>() {
-            private Node<E> previousNode = tail.get();
+            private Node<E> previousNode = tail;
 
             @Override
             public boolean hasNext() {
@@ -246,7 +333,7 @@ public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
 
     @Override
     public E element() {
-        return peek();
+        return getFirst();
     }
 
     @Override
@@ -256,7 +343,7 @@ public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
 
     @Override
     public E peek() {
-        var headItem = head.get();
+        var headItem = head;
         if (headItem == null) {
             return null;
         }
@@ -266,7 +353,7 @@ public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
 
     @Override
     public E peekLast() {
-        var tailItem = tail.get();
+        var tailItem = tail;
         if (tailItem == null) {
             return null;
         }
@@ -276,7 +363,7 @@ public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
 
     @Override
     public E getFirst() {
-        var result = pollFirst();
+        var result = peekFirst();
         if (result == null) {
             throw new NoSuchElementException();
         }
@@ -286,7 +373,7 @@ public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
 
     @Override
     public E getLast() {
-        var result = pollLast();
+        var result = peekLast();
         if (result == null) {
             throw new NoSuchElementException();
         }
@@ -294,52 +381,25 @@ public class Messages<E> extends AbstractQueue<E> implements Deque<E> {
         return result;
     }
 
+    // Elements are unique, so the first occurrence is also the last one
     @Override
     public boolean removeFirstOccurrence(Object o) {
-        var node = head.get();
-        while (node != null) {
-            if (node.item.equals(o)) {
-                removeNode(node);
-                return true;
-            }
-            node = node.next;
-        }
-        return false;
-    }
-
-    @Override
-    public boolean removeIf(Predicate<? super E> filter) {
-        var node = tail.get();
-        while (node != null) {
-            if (filter.test(node.item)) {
-                removeNode(node);
-                return true;
-            }
-            node = node.prev;
-        }
-
-        return false;
+        return remove(o);
     }
 
     @Override
     public boolean removeLastOccurrence(Object o) {
-        var node = tail.get();
-        while (node != null) {
-            if (node.item.equals(o)) {
-                removeNode(node);
-                return true;
-            }
-            node = node.prev;
-        }
-        return false;
+        return remove(o);
     }
 
     private static class Node<E> {
+        final Object key;
         final E item;
-        Node<E> next;
-        Node<E> prev;
+        volatile Node<E> next;
+        volatile Node<E> prev;
 
-        Node(E item) {
+        Node(Object key, E item) {
+            this.key = key;
             this.item = item;
         }
     }
@@ -0,0 +1,102 @@
+package it.auties.whatsapp.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A case-insensitive index of values by their names, which supports both exact and prefix lookups.
+ * Each value can be indexed under any number of names, which are replaced every time it's indexed again.
+ *
+ * @param <T> the type of the indexed values
+ */
+public final class NameIndex<T> {
+    private final ConcurrentSkipListMap<String, Set<T>> valuesByName;
+    private final ConcurrentHashMap<T, List<String>> namesByValue;
+
+    public NameIndex() {
+        this.valuesByName = new ConcurrentSkipListMap<>();
+        this.namesByValue = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Indexes a value under the provided names, replacing the ones it was previously indexed under
+     *
+     * @param value the non-null value to index
+     * @param names the names of the value, null entries are ignored
+     */
+    public synchronized void index(T value, Collection<String> names) {
+        unindex(value);
+        var folded = names.stream()
+                .filter(Objects::nonNull)
+                .map(NameIndex::fold)
+                .distinct()
+                .toList();
+        for (var name : folded) {
+            valuesByName.computeIfAbsent(name, ignored -> ConcurrentHashMap.newKeySet()).add(value);
+        }
+
+        namesByValue.put(value, folded);
+    }
+
+    /**
+     * Removes a value from the index
+     *
+     * @param value the non-null value to remove
+     */
+    public synchronized void remove(T value) {
+        unindex(value);
+    }
+
+    private void unindex(T value) {
+        var names = namesByValue.remove(value);
+        if (names == null) {
+            return;
+        }
+
+        for (var name : names) {
+            valuesByName.computeIfPresent(name, (ignored, values) -> {
+                values.remove(value);
+                return values.isEmpty() ? null : values;
+            });
+        }
+    }
+
+    /**
+     * Queries the values indexed under a name, ignoring its case
+     *
+     * @param name the name to search
+     * @return a non-null immutable set
+     */
+    public Set<T> find(String name) {
+        if (name == null) {
+            return Set.of();
+        }
+
+        var values = valuesByName.get(fold(name));
+        return values == null ? Set.of() : Set.copyOf(values);
+    }
+
+    /**
+     * Queries the values indexed under a name that starts with a prefix, ignoring its case
+     *
+     * @param prefix the prefix to search
+     * @return a non-null immutable set
+     */
+    public Set<T> findByPrefix(String prefix) {
+        if (prefix == null) {
+            return Set.of();
+        }
+
+        var folded = fold(prefix);
+        var results = new HashSet<T>();
+        valuesByName.subMap(folded, true, folded + Character.MAX_VALUE, true)
+                .values()
+                .forEach(results::addAll);
+        return Collections.unmodifiableSet(results);
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
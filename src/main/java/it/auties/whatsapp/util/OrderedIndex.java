@@ -0,0 +1,92 @@
+package it.auties.whatsapp.util;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An index that keeps values sorted by a rank, from the highest to the lowest, as their rank changes.
+ * Values with the same rank are kept in the order they were first indexed in.
+ * The sorted view is cached until the index is changed, so reading it repeatedly doesn't copy the values every time.
+ *
+ * @param <T> the type of the indexed values
+ */
+public final class OrderedIndex<T> {
+    private static final Comparator<Position> ORDER = Comparator.comparingLong(Position::rank)
+            .reversed()
+            .thenComparingLong(Position::sequence);
+
+    private final ConcurrentSkipListMap<Position, T> values;
+    private final ConcurrentHashMap<T, Position> positions;
+    private final AtomicLong sequence;
+    private volatile List<T> snapshot;
+
+    public OrderedIndex() {
+        this.values = new ConcurrentSkipListMap<>(ORDER);
+        this.positions = new ConcurrentHashMap<>();
+        this.sequence = new AtomicLong();
+    }
+
+    /**
+     * Indexes a value with the provided rank, or moves it if it was already indexed with a different one
+     *
+     * @param value the non-null value to index
+     * @param rank  the rank of the value
+     */
+    public synchronized void index(T value, long rank) {
+        var oldPosition = positions.get(value);
+        if (oldPosition != null && oldPosition.rank() == rank && values.get(oldPosition) == value) {
+            return;
+        }
+
+        if (oldPosition != null) {
+            values.remove(oldPosition);
+        }
+
+        var newPosition = new Position(rank, oldPosition != null ? oldPosition.sequence() : sequence.getAndIncrement());
+        values.put(newPosition, value);
+        positions.put(value, newPosition);
+        this.snapshot = null;
+    }
+
+    /**
+     * Removes a value from the index
+     *
+     * @param value the non-null value to remove
+     */
+    public synchronized void remove(T value) {
+        var position = positions.remove(value);
+        if (position == null) {
+            return;
+        }
+
+        values.remove(position);
+        this.snapshot = null;
+    }
+
+    /**
+     * Returns the indexed values from the highest to the lowest rank
+     *
+     * @return an immutable list
+     */
+    public List<T> values() {
+        var result = snapshot;
+        if (result != null) {
+            return result;
+        }
+
+        synchronized (this) {
+            if (snapshot == null) {
+                this.snapshot = List.copyOf(values.values());
+            }
+
+            return snapshot;
+        }
+    }
+
+    private record Position(long rank, long sequence) {
+
+    }
+}
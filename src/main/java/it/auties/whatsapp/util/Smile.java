@@ -57,6 +57,10 @@ public final class Smile {
         return smile.readValue(value, clazz);
     }
 
+    public static <T> T readValue(byte[] value, int offset, int length, Class<T> clazz) throws IOException {
+        return smile.readValue(value, offset, length, clazz);
+    }
+
     public static <T> T readValue(InputStream inputStream, Class<T> clazz) throws IOException {
         return smile.readValue(inputStream, clazz);
     }